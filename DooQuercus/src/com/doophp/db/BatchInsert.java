@@ -0,0 +1,227 @@
+package com.doophp.db;
+
+import io.vertx.core.json.JsonArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites a single row INSERT ... VALUES (?, ?) into multi-row statements
+ * INSERT ... VALUES (?, ?), (?, ?), ... chunked so that each statement stays under a bind param count and packet size.
+ *
+ * Statements that can't be rewritten safely (INSERT ... SELECT, placeholders after the VALUES tuple, multi tuple VALUES)
+ * are rejected by parse() returning null, callers then fall back to one statement per row.
+ */
+public class BatchInsert {
+
+    protected String head;
+    protected String tuple;
+    protected String tail;
+    protected int paramsPerRow;
+    protected boolean returning;
+    protected boolean consecutiveKeys;
+
+    protected BatchInsert(String head, String tuple, String tail, int paramsPerRow) {
+        this.head = head;
+        this.tuple = tuple;
+        this.tail = tail;
+        this.paramsPerRow = paramsPerRow;
+        this.returning = tail.toUpperCase().contains("RETURNING");
+        // skipped (IGNORE) or updated (ON DUPLICATE KEY) rows take no new id, the keys of a chunk are not a sequence
+        this.consecutiveKeys = !head.toUpperCase().matches("(?s)\\s*INSERT\\s+(LOW_PRIORITY\\s+|DELAYED\\s+|HIGH_PRIORITY\\s+)?IGNORE\\b.*")
+                && !tail.toUpperCase().matches("(?s).*\\bON\\s+DUPLICATE\\s+KEY\\b.*");
+    }
+
+    public static class Chunk {
+        public final String sql;
+        public final JsonArray params;
+        public final int rows;
+
+        public Chunk(String sql, JsonArray params, int rows) {
+            this.sql = sql;
+            this.params = params;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * @return the parsed statement or null when sql is not a single row INSERT ... VALUES (...)
+     */
+    public static BatchInsert parse(String sql) {
+        if (sql == null || !sql.trim().toUpperCase().startsWith("INSERT")) {
+            return null;
+        }
+        int valuesPos = findValuesKeyword(sql);
+        if (valuesPos < 0) {
+            return null;
+        }
+        int open = valuesPos + 6;
+        while (open < sql.length() && Character.isWhitespace(sql.charAt(open))) {
+            open++;
+        }
+        if (open >= sql.length() || sql.charAt(open) != '(') {
+            return null;
+        }
+        int close = findClosingParen(sql, open);
+        if (close < 0) {
+            return null;
+        }
+
+        String tuple = sql.substring(open, close + 1);
+        String tail = sql.substring(close + 1);
+        if (tail.trim().startsWith(",") || countPlaceholders(tail) > 0) {
+            return null;
+        }
+        return new BatchInsert(sql.substring(0, open), tuple, tail, countPlaceholders(tuple));
+    }
+
+    public int getParamsPerRow() {
+        return paramsPerRow;
+    }
+
+    /**
+     * True when the statement has a RETURNING clause (Postgres), keys are then read from the result rows.
+     */
+    public boolean isReturning() {
+        return returning;
+    }
+
+    /**
+     * True when every row of a multi-row insert gets a new auto increment id, so the keys of a chunk can be derived
+     * from the first insert id (MySQL). False for INSERT IGNORE and ON DUPLICATE KEY UPDATE.
+     */
+    public boolean hasConsecutiveKeys() {
+        return consecutiveKeys;
+    }
+
+    public String sql(int rows) {
+        StringBuilder sb = new StringBuilder(head.length() + tail.length() + rows * (tuple.length() + 2));
+        sb.append(head);
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(tuple);
+        }
+        sb.append(tail);
+        return sb.toString();
+    }
+
+    /**
+     * Splits rows into statements holding at most maxParams bind params and roughly maxPacketBytes of SQL plus values.
+     */
+    public List<Chunk> chunks(List<JsonArray> rows, int maxParams, int maxPacketBytes) {
+        List<Chunk> chunks = new ArrayList<>();
+        int maxRows = paramsPerRow > 0 ? Math.max(1, maxParams / paramsPerRow) : rows.size();
+        int baseBytes = head.length() + tail.length();
+
+        JsonArray params = new JsonArray();
+        int count = 0;
+        int bytes = baseBytes;
+
+        for (JsonArray row : rows) {
+            if (row.size() != paramsPerRow) {
+                throw new IllegalArgumentException("Batch insert row has " + row.size() + " params, statement expects " + paramsPerRow);
+            }
+            int rowBytes = estimateBytes(row) + tuple.length() + 2;
+
+            if (count > 0 && (count >= maxRows || bytes + rowBytes > maxPacketBytes)) {
+                chunks.add(new Chunk(sql(count), params, count));
+                params = new JsonArray();
+                count = 0;
+                bytes = baseBytes;
+            }
+            params.addAll(row);
+            count++;
+            bytes += rowBytes;
+        }
+
+        if (count > 0) {
+            chunks.add(new Chunk(sql(count), params, count));
+        }
+        return chunks;
+    }
+
+    protected static int estimateBytes(JsonArray row) {
+        int bytes = 0;
+        for (int i = 0; i < row.size(); i++) {
+            Object val = row.getValue(i);
+            // quoted literal plus separator, strings may be escaped so count them generously
+            bytes += val == null ? 4 : val.toString().length() + 4;
+        }
+        return bytes;
+    }
+
+    protected static int findValuesKeyword(String sql) {
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && (c == 'V' || c == 'v') && sql.regionMatches(true, i, "VALUES", 0, 6)) {
+                boolean startOk = i == 0 || !Character.isLetterOrDigit(sql.charAt(i - 1)) && sql.charAt(i - 1) != '_';
+                boolean endOk = i + 6 >= sql.length() || !Character.isLetterOrDigit(sql.charAt(i + 6)) && sql.charAt(i + 6) != '_';
+                if (startOk && endOk) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    protected static int findClosingParen(String sql, int open) {
+        int depth = 0;
+        char quote = 0;
+        for (int i = open; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth == 0) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    protected static int countPlaceholders(String sql) {
+        int count = 0;
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
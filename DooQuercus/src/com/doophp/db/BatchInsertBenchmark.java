@@ -0,0 +1,162 @@
+package com.doophp.db;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.VertxImpl;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.SQLConnection;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Times the one statement per row batch insert against the multi-row path (SQLClient.batchInsertRaw) for the same rows.
+ * Not part of the runtime, run it by hand against a test database:
+ *
+ *   java -cp ... com.doophp.db.BatchInsertBenchmark db.json "INSERT INTO t (name, qty) VALUES (?, ?)" '["a", 1]' 1000 5
+ *
+ * Arguments are the pool config file (same keys as SQLClient), the single row INSERT, a sample row, the number of rows
+ * and the number of runs. Every row is a copy of the sample row, so use a table without unique keys on its columns.
+ * Each path runs in a transaction that is rolled back, the table is left as it was. Prints one JSON line per run.
+ */
+public class BatchInsertBenchmark {
+
+    protected final SQLClient client;
+    protected final String sql;
+    protected final List<JsonArray> rows;
+
+    public BatchInsertBenchmark(SQLClient client, String sql, List<JsonArray> rows) {
+        this.client = client;
+        this.sql = sql;
+        this.rows = rows;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: BatchInsertBenchmark <config.json> <insert sql> <sample row json> <rows> [runs]");
+            System.exit(1);
+        }
+        JsonObject config = new JsonObject(new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8));
+        JsonArray sample = new JsonArray(args[2]);
+        int count = Integer.parseInt(args[3]);
+        int runs = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+        List<JsonArray> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(sample.copy());
+        }
+
+        VertxImpl vertx = (VertxImpl) Vertx.vertx();
+        CountDownLatch finished = new CountDownLatch(1);
+        vertx.runOnContext(v -> {
+            BatchInsertBenchmark bench;
+            try {
+                bench = new BatchInsertBenchmark(SQLClient.forPool(vertx, config, "batch-insert-benchmark"), args[1], rows);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                finished.countDown();
+                return;
+            }
+            bench.run(runs, result -> System.out.println(result.encode()), err -> {
+                err.printStackTrace();
+                finished.countDown();
+            }, done -> finished.countDown());
+        });
+        finished.await();
+        vertx.close();
+    }
+
+    /**
+     * Calls onRun with {run, rows, statements (multi-row statements sent), per_row_ms, multi_row_ms}
+     * after every run, done once all runs are through or errorHandler on the first failure.
+     */
+    public void run(int runs, Handler<JsonObject> onRun, Handler<Throwable> errorHandler, Handler<Void> done) {
+        nextRun(1, runs, onRun, errorHandler, done);
+    }
+
+    protected void nextRun(int run, int runs, Handler<JsonObject> onRun, Handler<Throwable> errorHandler, Handler<Void> done) {
+        if (run > runs) {
+            done.handle(null);
+            return;
+        }
+        BatchInsert insert = BatchInsert.parse(sql);
+        final int statements = insert == null ? rows.size() : insert.chunks(rows, client.batchMaxParams, client.batchMaxPacketBytes).size();
+
+        timePerRow(perRowMs -> timeMultiRow(multiRowMs -> {
+            onRun.handle(new JsonObject()
+                    .put("run", run)
+                    .put("rows", rows.size())
+                    .put("statements", statements)
+                    .put("per_row_ms", perRowMs)
+                    .put("multi_row_ms", multiRowMs));
+            nextRun(run + 1, runs, onRun, errorHandler, done);
+        }, errorHandler), errorHandler);
+    }
+
+    protected void timePerRow(Handler<Double> handler, Handler<Throwable> errorHandler) {
+        inRolledBackTx((conn, finished) -> nextRow(conn, rows.iterator(), finished), handler, errorHandler);
+    }
+
+    protected void timeMultiRow(Handler<Double> handler, Handler<Throwable> errorHandler) {
+        inRolledBackTx((conn, finished) -> client.batchInsertRaw(conn, sql, rows, keys -> finished.handle(null), finished::handle), handler, errorHandler);
+    }
+
+    protected void nextRow(SQLConnection conn, Iterator<JsonArray> iterator, Handler<Throwable> finished) {
+        if (!iterator.hasNext()) {
+            finished.handle(null);
+            return;
+        }
+        conn.updateWithParams(sql, iterator.next(), res -> {
+            if (res.failed()) {
+                finished.handle(res.cause());
+                return;
+            }
+            nextRow(conn, iterator, finished);
+        });
+    }
+
+    protected interface Work {
+        /**
+         * Calls finished with null when done, with the error otherwise.
+         */
+        void run(SQLConnection conn, Handler<Throwable> finished);
+    }
+
+    /**
+     * Runs work in a transaction that is always rolled back, handler receives the time the work took in ms.
+     */
+    protected void inRolledBackTx(Work work, Handler<Double> handler, Handler<Throwable> errorHandler) {
+        client.connect(connRes -> {
+            if (connRes.failed()) {
+                errorHandler.handle(connRes.cause());
+                return;
+            }
+            final SQLConnection conn = connRes.result();
+            conn.setAutoCommit(false, resTx -> {
+                if (resTx.failed()) {
+                    conn.close();
+                    errorHandler.handle(resTx.cause());
+                    return;
+                }
+                final long start = System.nanoTime();
+                work.run(conn, err -> {
+                    final double ms = (System.nanoTime() - start) / 1e6;
+                    conn.rollback(resRollback -> {
+                        conn.close();
+                        if (err != null) {
+                            errorHandler.handle(err);
+                        } else {
+                            handler.handle(ms);
+                        }
+                    });
+                });
+            });
+        });
+    }
+}
@@ -0,0 +1,274 @@
+package com.doophp.db;
+
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.Value;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Per request loader that turns N by-id lookups into one WHERE key IN (...) query per table.
+ *
+ * Keys requested during the same event loop tick are queued and fetched together on the next tick, in chunks of maxBatch.
+ * Each key is fetched once for the lifetime of the loader, loads of a key whose fetch is running wait for it and later
+ * loads are answered from memory, so create one loader per request (scope) and let it go with the request.
+ *
+ * PHP usage:
+ *   $loader = new BatchLoader($db);
+ *   foreach ($orders as $o) {
+ *       $loader->load('user', $o['user_id'], function($user) { ... });
+ *   }
+ */
+public class BatchLoader {
+
+    protected static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z0-9_.]+");
+
+    protected SQLClient client;
+    protected int maxBatch = 500;
+    protected Map<String, String> keyColumns = new HashMap<>();
+    protected Map<String, String> selectColumns = new HashMap<>();
+
+    /**
+     * table => key => handlers waiting for the next dispatch
+     */
+    protected Map<String, LinkedHashMap<String, Pending>> queued = new HashMap<>();
+    /**
+     * table => key => handlers of a fetch that is running
+     */
+    protected Map<String, Map<String, Pending>> fetching = new HashMap<>();
+    /**
+     * table => key => row already fetched in this scope, a Row without values when the key does not exist
+     */
+    protected Map<String, Map<String, Row>> loaded = new HashMap<>();
+    protected boolean scheduled = false;
+
+    public static class Row {
+        public final List<String> columns;
+        public final JsonArray values;
+        public final Throwable error;
+
+        public Row(List<String> columns, JsonArray values, Throwable error) {
+            this.columns = columns;
+            this.values = values;
+            this.error = error;
+        }
+
+        public boolean found() {
+            return values != null;
+        }
+    }
+
+    protected static class Pending {
+        final Object key;
+        final List<Handler<Row>> handlers = new ArrayList<>();
+
+        Pending(Object key) {
+            this.key = key;
+        }
+    }
+
+    public BatchLoader(SQLClient client) {
+        this.client = client;
+    }
+
+    /**
+     * maxBatch is the most keys per IN (...) query, at least 1.
+     */
+    public BatchLoader(SQLClient client, int maxBatch) {
+        this.client = client;
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * Key column of a table, defaults to id.
+     */
+    public BatchLoader keyColumn(String table, String column) {
+        keyColumns.put(checkIdentifier(table), checkIdentifier(column));
+        return this;
+    }
+
+    /**
+     * Comma separated columns to select from a table, defaults to *. Has to include the key column.
+     */
+    public BatchLoader columns(String table, String columns) {
+        for (String col : columns.split(",")) {
+            checkIdentifier(col.trim());
+        }
+        selectColumns.put(checkIdentifier(table), columns);
+        return this;
+    }
+
+    public void load(Env env, String table, Value key, final Callable handler, final Callable errorHandler) {
+        load(table, key.toJavaObject(), row -> {
+            if (row.error != null) {
+                if (errorHandler != null) {
+                    errorHandler.call(env, env.wrapJava(row.error));
+                }
+                return;
+            }
+            if (handler == null) {
+                return;
+            }
+            if (!row.found()) {
+                handler.call(env, NullValue.NULL);
+            } else {
+                handler.call(env, ResultSetHydrator.toRow(env, ResultSetHydrator.columnKeys(env, row.columns), row.values));
+            }
+        });
+    }
+
+    public void load(String table, Object key, Handler<Row> handler) {
+        checkIdentifier(table);
+        checkKeySelected(table);
+        final String k = String.valueOf(key);
+
+        Map<String, Row> rows = loaded.get(table);
+        if (rows != null && rows.containsKey(k)) {
+            handler.handle(rows.get(k));
+            return;
+        }
+        Map<String, Pending> running = fetching.get(table);
+        if (running != null && running.containsKey(k)) {
+            running.get(k).handlers.add(handler);
+            return;
+        }
+
+        queued.computeIfAbsent(table, t -> new LinkedHashMap<>())
+                .computeIfAbsent(k, x -> new Pending(key))
+                .handlers.add(handler);
+
+        if (!scheduled) {
+            scheduled = true;
+            client.getVertx().runOnContext(v -> dispatch());
+        }
+    }
+
+    /**
+     * Forget rows loaded so far, eg. after this request wrote to the tables.
+     */
+    public void clear() {
+        loaded.clear();
+    }
+
+    public void clear(String table) {
+        loaded.remove(table);
+    }
+
+    protected void dispatch() {
+        scheduled = false;
+        Map<String, LinkedHashMap<String, Pending>> batch = queued;
+        queued = new HashMap<>();
+
+        for (Map.Entry<String, LinkedHashMap<String, Pending>> entry : batch.entrySet()) {
+            fetching.computeIfAbsent(entry.getKey(), t -> new HashMap<>()).putAll(entry.getValue());
+            List<Pending> pending = new ArrayList<>(entry.getValue().values());
+            for (int i = 0; i < pending.size(); i += maxBatch) {
+                fetch(entry.getKey(), pending.subList(i, Math.min(i + maxBatch, pending.size())));
+            }
+        }
+    }
+
+    protected void fetch(String table, List<Pending> pending) {
+        String keyColumn = keyColumns.getOrDefault(table, "id");
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(selectColumns.getOrDefault(table, "*"))
+                .append(" FROM ").append(table)
+                .append(" WHERE ").append(keyColumn).append(" IN (");
+        JsonArray params = new JsonArray();
+        for (int i = 0; i < pending.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            params.add(pending.get(i).key);
+        }
+        sql.append(")");
+
+        client.queryResultSet(sql.toString(), params, false, res -> {
+            Map<String, Pending> running = fetching.get(table);
+            for (Pending p : pending) {
+                running.remove(String.valueOf(p.key));
+            }
+            if (running.isEmpty()) {
+                fetching.remove(table);
+            }
+
+            ResultSet rs = res.succeeded() ? res.result() : null;
+            List<String> columns = rs == null ? null : rs.getColumnNames();
+            int keyIndex = columns == null ? -1 : indexOf(columns, unqualified(keyColumn));
+            if (res.failed() || keyIndex < 0) {
+                Row failed = new Row(null, null, res.failed() ? res.cause()
+                        : new IllegalStateException("Key column " + keyColumn + " of " + table + " is not in the result"));
+                for (Pending p : pending) {
+                    complete(p.handlers, failed);
+                }
+                return;
+            }
+
+            Map<String, Row> found = new HashMap<>();
+            if (rs.getResults() != null) {
+                for (JsonArray values : rs.getResults()) {
+                    found.put(String.valueOf(values.getValue(keyIndex)), new Row(columns, values, null));
+                }
+            }
+
+            Map<String, Row> rows = loaded.computeIfAbsent(table, t -> new HashMap<>());
+            Row missing = new Row(columns, null, null);
+            for (Pending p : pending) {
+                String key = String.valueOf(p.key);
+                Row row = found.getOrDefault(key, missing);
+                rows.put(key, row);
+                complete(p.handlers, row);
+            }
+        });
+    }
+
+    protected void complete(List<Handler<Row>> handlers, Row row) {
+        for (Handler<Row> h : handlers) {
+            h.handle(row);
+        }
+    }
+
+    /**
+     * Without its key column in the select list no fetched row could be matched to the key it was loaded by.
+     */
+    protected void checkKeySelected(String table) {
+        String columns = selectColumns.get(table);
+        if (columns == null) {
+            return;
+        }
+        String key = unqualified(keyColumns.getOrDefault(table, "id"));
+        for (String col : columns.split(",")) {
+            if (unqualified(col.trim()).equalsIgnoreCase(key)) {
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Columns of " + table + " have to include its key column " + key);
+    }
+
+    protected static String unqualified(String column) {
+        return column.substring(column.lastIndexOf('.') + 1);
+    }
+
+    protected static int indexOf(List<String> columns, String column) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected static String checkIdentifier(String name) {
+        if (name == null || !IDENTIFIER.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid table or column name: " + name);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,865 @@
+package com.doophp.db;
+
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.Value;
+import com.doophp.db.jdbc.JDBCConnection;
+import com.doophp.db.jdbc.JDBCPool;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.lang.php.util.PhpTypes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.regex.Pattern;
+
+/**
+ * Loads many rows into one table with the database's bulk loader instead of one INSERT per row:
+ * $db->bulkLoad('user', ['name', 'email'])->rows($rows)->progress(function($n){})->execute(function($count){}, $onError);
+ *
+ * Rows come from a list (PHP array of lists or of arrays keyed by column), a ReadStream of JsonArray, or a CSV file.
+ * On the JDBC backend rows are encoded to CSV as they arrive and streamed in chunks of bulk_chunk_bytes through
+ * COPY ... FROM STDIN (Postgres) or LOAD DATA LOCAL INFILE (MySQL/MariaDB, needs "allowLoadLocalInfile": true in
+ * jdbc_properties and local_infile on the server). At most bulk_buffer_chunks chunks wait for the database, the source
+ * is paused while the buffer is full. A CSV file is passed through unchanged to COPY, for LOAD DATA it is parsed and
+ * encoded like generated rows so line ends, quoting and NULLs are read the same way as on the INSERT path.
+ *
+ * LOAD DATA LOCAL doesn't fail on duplicate keys or values that don't fit a column, it skips or converts those rows
+ * and reports warnings instead, where COPY and the INSERT path fail. The warning count is logged and available from
+ * getWarnings() once the load is done, check it when silently skipped rows matter.
+ *
+ * With the async driver, other dialects or bulk_load_native off the rows go in multi-row INSERTs of bulk_insert_rows
+ * rows (see SQLClient.batchInsertRaw) in one transaction. Either way the handler gets the number of rows loaded.
+ */
+public class BulkLoad {
+
+    protected static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z0-9_.]+");
+    protected static final int ROWS_PER_TICK = 512;
+
+    protected final SQLClient client;
+    protected final String table;
+    protected final List<String> columns;
+
+    protected ReadStream<JsonArray> stream;
+    protected String file;
+    protected boolean header = false;
+    protected Handler<Long> progressHandler;
+    protected long progressEvery = 10000;
+    protected volatile long warnings = 0;
+
+    public BulkLoad(SQLClient client, String table, List<String> columns) {
+        if (columns == null || columns.isEmpty()) {
+            throw new IllegalArgumentException("Bulk load needs at least one column");
+        }
+        checkIdentifier(table);
+        for (String col : columns) {
+            checkIdentifier(col);
+        }
+        this.client = client;
+        this.table = table;
+        this.columns = new ArrayList<>(columns);
+    }
+
+    /**
+     * Rows as lists of values in column order.
+     */
+    public BulkLoad rows(List<JsonArray> rows) {
+        RowQueue queue = new RowQueue();
+        queue.rows.addAll(rows);
+        queue.ended = true;
+        return stream(queue);
+    }
+
+    /**
+     * PHP variant, every row is a list in column order or an array keyed by column name.
+     */
+    public BulkLoad rows(Env env, Value rowsArr) {
+        JsonArray list = PhpTypes.arrayToJsonArray(env, rowsArr);
+        List<JsonArray> rows = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            Object row = list.getValue(i);
+            if (row instanceof JsonObject) {
+                JsonArray values = new JsonArray();
+                for (String col : columns) {
+                    Object val = ((JsonObject) row).getValue(col);
+                    if (val == null) {
+                        values.addNull();
+                    } else {
+                        values.add(val);
+                    }
+                }
+                rows.add(values);
+            } else {
+                rows.add((JsonArray) row);
+            }
+        }
+        return rows(rows);
+    }
+
+    public BulkLoad stream(ReadStream<JsonArray> rows) {
+        this.stream = rows;
+        this.file = null;
+        return this;
+    }
+
+    /**
+     * CSV file with the columns in order, "\n" or "\r\n" line ends, fields quoted with " where needed.
+     * With header the first line is skipped.
+     */
+    public BulkLoad file(String path, boolean header) {
+        this.file = path;
+        this.header = header;
+        this.stream = null;
+        return this;
+    }
+
+    public BulkLoad file(String path) {
+        return file(path, false);
+    }
+
+    /**
+     * Called with the number of rows sent so far every "every" rows (not for files loaded with COPY).
+     */
+    public BulkLoad progress(Handler<Long> handler, long every) {
+        this.progressHandler = handler;
+        this.progressEvery = Math.max(1, every);
+        return this;
+    }
+
+    public BulkLoad progress(Handler<Long> handler) {
+        return progress(handler, progressEvery);
+    }
+
+    public BulkLoad progress(Env env, final Callable handler) {
+        return progress(count -> handler.call(env, LongValue.create(count)));
+    }
+
+    public BulkLoad progress(Env env, final Callable handler, long every) {
+        return progress(count -> handler.call(env, LongValue.create(count)), every);
+    }
+
+    /**
+     * Warnings LOAD DATA LOCAL reported for the last load, rows it skipped or converted. Always 0 on the other paths.
+     */
+    public long getWarnings() {
+        return warnings;
+    }
+
+    protected boolean isPostgres() {
+        return "POSTGRES".equals(client.getDialect());
+    }
+
+    protected boolean isMySQL() {
+        return "MYSQL".equals(client.getDialect()) || "MARIADB".equals(client.getDialect());
+    }
+
+    /**
+     * Handler gets the number of rows loaded.
+     */
+    public void execute(Handler<AsyncResult<Long>> handler) {
+        if (stream == null && file == null) {
+            handler.handle(Future.failedFuture(new IllegalStateException("Bulk load has no rows, call rows(), stream() or file()")));
+            return;
+        }
+        warnings = 0;
+        if (client.bulkLoadNative && client.sqlClient() instanceof JDBCPool && (isPostgres() || isMySQL())) {
+            loadNative(handler);
+        } else {
+            loadInserts(handler);
+        }
+    }
+
+    /**
+     * PHP variant, handler is called with the number of rows loaded.
+     */
+    public void execute(Env env, final Callable handler, final Callable errorHandler) {
+        execute(res -> {
+            if (res.failed()) {
+                if (errorHandler != null) {
+                    errorHandler.call(env, env.wrapJava(res.cause()));
+                }
+                return;
+            }
+            if (handler != null) {
+                handler.call(env, LongValue.create(res.result()));
+            }
+        });
+    }
+
+    protected void openFile(Handler<AsyncResult<AsyncFile>> handler) {
+        client.getVertx().fileSystem().open(file, new OpenOptions().setRead(true).setWrite(false).setCreate(false), handler);
+    }
+
+    protected void loadNative(Handler<AsyncResult<Long>> handler) {
+        final String sql = loadStatement();
+        if (file == null) {
+            loadNative(sql, stream, handler);
+            return;
+        }
+        openFile(res -> {
+            if (res.failed()) {
+                handler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            // LOAD DATA reads line ends and empty fields differently from CSV, parse the file and send it encoded
+            ReadStream<?> source = isMySQL() ? new CsvRowStream(res.result(), header ? 1 : 0) : res.result();
+            loadNative(sql, source, done -> {
+                res.result().close();
+                handler.handle(done);
+            });
+        });
+    }
+
+    protected void loadNative(String sql, ReadStream<?> source, Handler<AsyncResult<Long>> handler) {
+        client.connect(res -> {
+            if (res.failed()) {
+                client.logError("SQL Connection Failed!", res.cause());
+                handler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            final SQLConnection conn = res.result();
+            SQLConnection jdbc = conn;
+            while (jdbc instanceof TrackedConnection) {
+                jdbc = ((TrackedConnection) jdbc).delegate();
+            }
+            client.logDebug("Executing SQL Bulk Load: {}", sql);
+
+            final Pipe pipe = new Pipe(client.bulkBufferChunks);
+            final Feeder feeder = new Feeder(client.getVertx().getOrCreateContext(), pipe, source);
+            final boolean postgres = isPostgres();
+
+            ((JDBCConnection) jdbc).withConnection(c -> copyIn(c, sql, pipe, postgres), client.<Long>timed(sql, null, done -> {
+                feeder.finish();
+                conn.close();
+                if (done.failed()) {
+                    Throwable err = feeder.error != null ? feeder.error : unwrap(done.cause());
+                    client.logError("SQL Bulk Load Failed! {}", sql, err);
+                    handler.handle(Future.failedFuture(err));
+                    return;
+                }
+                client.invalidateTables(Collections.singleton(QueryCache.normalizeTable(table)));
+                if (warnings > 0) {
+                    client.logError("SQL Bulk Load skipped or converted rows, " + warnings + " warnings: {}", sql);
+                }
+                handler.handle(done);
+            }));
+            feeder.start();
+        });
+    }
+
+    /**
+     * Runs on the JDBC executor, blocks reading pipe until the feeder ends it.
+     */
+    protected long copyIn(Connection c, String sql, InputStream in, boolean postgres) {
+        try {
+            if (postgres) {
+                Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+                Object copyApi = pgConnection.getMethod("getCopyAPI").invoke(c.unwrap(pgConnection));
+                return (Long) copyApi.getClass().getMethod("copyIn", String.class, InputStream.class).invoke(copyApi, sql, in);
+            }
+            try (Statement stmt = c.createStatement()) {
+                localInfile(stmt, in);
+                long count = stmt.executeUpdate(sql);
+                try (java.sql.ResultSet rs = stmt.executeQuery("SHOW COUNT(*) WARNINGS")) {
+                    warnings = rs.next() ? rs.getLong(1) : 0;
+                }
+                return count;
+            }
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sets the stream LOAD DATA LOCAL INFILE reads from, Connector/J 8, 5.x and MariaDB Connector/J statements.
+     */
+    protected static void localInfile(Statement stmt, InputStream in) throws Exception {
+        for (String name : new String[]{"com.mysql.cj.jdbc.JdbcStatement", "com.mysql.jdbc.Statement", "org.mariadb.jdbc.MariaDbStatement"}) {
+            Class<?> type;
+            try {
+                type = Class.forName(name);
+            } catch (ClassNotFoundException e) {
+                continue;
+            }
+            if (stmt.isWrapperFor(type)) {
+                Method set = type.getMethod("setLocalInfileInputStream", InputStream.class);
+                set.invoke(stmt.unwrap(type), in);
+                return;
+            }
+        }
+        throw new IllegalStateException("JDBC driver has no setLocalInfileInputStream(), LOAD DATA LOCAL INFILE needs MySQL or MariaDB Connector/J");
+    }
+
+    protected static Throwable unwrap(Throwable err) {
+        return err.getClass() == RuntimeException.class && err.getCause() != null ? err.getCause() : err;
+    }
+
+    protected String loadStatement() {
+        String cols = String.join(", ", columns);
+        if (isPostgres()) {
+            return "COPY " + table + " (" + cols + ") FROM STDIN WITH (FORMAT csv" + (file != null && header ? ", HEADER true" : "") + ")";
+        }
+        // files are parsed and encoded too, what LOAD DATA reads is always generated rows escaped with \
+        return "LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + table + " CHARACTER SET utf8mb4"
+                + " FIELDS TERMINATED BY ',' OPTIONALLY ENCLOSED BY '\"' ESCAPED BY '\\\\'"
+                + " LINES TERMINATED BY '\\n' (" + cols + ")";
+    }
+
+    protected void loadInserts(Handler<AsyncResult<Long>> handler) {
+        if (file == null) {
+            loadInserts(stream, handler);
+            return;
+        }
+        openFile(res -> {
+            if (res.failed()) {
+                handler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            loadInserts(new CsvRowStream(res.result(), header ? 1 : 0), done -> {
+                res.result().close();
+                handler.handle(done);
+            });
+        });
+    }
+
+    protected void loadInserts(ReadStream<JsonArray> rows, Handler<AsyncResult<Long>> handler) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (").append(String.join(", ", columns)).append(") VALUES (");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        final String insert = sql.append(")").toString();
+        final int batchRows = Math.max(1, client.bulkInsertRows);
+
+        client.<Long>inTransaction((conn, done) -> {
+            final List<JsonArray> batch = new ArrayList<>(batchRows);
+            final long[] count = {0};
+            final boolean[] ended = {false};
+
+            Handler<Void> flush = new Handler<Void>() {
+                @Override
+                public void handle(Void v) {
+                    if (batch.isEmpty()) {
+                        if (ended[0]) {
+                            done.tryComplete(count[0]);
+                        } else {
+                            rows.resume();
+                        }
+                        return;
+                    }
+                    final List<JsonArray> chunk = new ArrayList<>(batch);
+                    batch.clear();
+                    client.batchInsertRaw(conn, insert, chunk, keys -> {
+                        count[0] += chunk.size();
+                        progressed(count[0] - chunk.size(), count[0]);
+                        handle(null);
+                    }, err -> {
+                        rows.pause();
+                        done.tryFail(err);
+                    });
+                }
+            };
+
+            rows.exceptionHandler(done::tryFail);
+            rows.endHandler(v -> {
+                ended[0] = true;
+                flush.handle(null);
+            });
+            rows.handler(row -> {
+                if (done.isComplete()) {
+                    return;
+                }
+                batch.add(row);
+                if (batch.size() >= batchRows) {
+                    rows.pause();
+                    flush.handle(null);
+                }
+            });
+        }, count -> {
+            client.invalidateTables(Collections.singleton(QueryCache.normalizeTable(table)));
+            handler.handle(Future.succeededFuture(count));
+        }, err -> {
+            client.logError("SQL Bulk Load Failed! {}", insert, err);
+            handler.handle(Future.failedFuture(err));
+        });
+    }
+
+    protected void progressed(long before, long after) {
+        if (progressHandler != null && before / progressEvery != after / progressEvery) {
+            progressHandler.handle(after);
+        }
+    }
+
+    protected static void checkIdentifier(String name) {
+        if (name == null || !IDENTIFIER.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid identifier for bulk load: " + name);
+        }
+    }
+
+    /**
+     * Encodes one row as a CSV line. Postgres: NULL is an empty unquoted field, strings are always quoted so "" stays
+     * an empty string, bytea as \x hex. MySQL (ESCAPED BY '\'): NULL is \N, quotes and backslashes are escaped.
+     */
+    protected static void encode(ByteArrayOutputStream out, JsonArray row, int columns, boolean postgres) {
+        for (int i = 0; i < columns; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            Object val = i < row.size() ? row.getValue(i) : null;
+            if (val == null) {
+                if (!postgres) {
+                    out.write('\\');
+                    out.write('N');
+                }
+            } else if (val instanceof Boolean) {
+                ascii(out, postgres ? ((Boolean) val ? "t" : "f") : ((Boolean) val ? "1" : "0"));
+            } else if (val instanceof Number) {
+                ascii(out, val.toString());
+            } else if (val instanceof byte[] && postgres) {
+                ascii(out, "\\x");
+                for (byte b : (byte[]) val) {
+                    out.write(Character.forDigit((b >> 4) & 0xF, 16));
+                    out.write(Character.forDigit(b & 0xF, 16));
+                }
+            } else {
+                byte[] bytes = val instanceof byte[] ? (byte[]) val
+                        : (val instanceof JsonObject ? ((JsonObject) val).encode() : val instanceof JsonArray ? ((JsonArray) val).encode() : val.toString()).getBytes(StandardCharsets.UTF_8);
+                quoted(out, bytes, postgres);
+            }
+        }
+        out.write('\n');
+    }
+
+    protected static void quoted(ByteArrayOutputStream out, byte[] bytes, boolean postgres) {
+        out.write('"');
+        for (byte b : bytes) {
+            // UTF-8 continuation bytes never match an ASCII character, escaping byte by byte is safe
+            if (b == '"') {
+                out.write(postgres ? '"' : '\\');
+            } else if (!postgres && b == '\\') {
+                out.write('\\');
+            } else if (!postgres && b == 0) {
+                out.write('\\');
+                b = '0';
+            }
+            out.write(b);
+        }
+        out.write('"');
+    }
+
+    protected static void ascii(ByteArrayOutputStream out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+
+    /**
+     * Moves rows (encoded) or file buffers (as they are) from the source into the pipe on the event loop, pausing
+     * the source while the pipe is full and resuming it once the database has taken a chunk.
+     */
+    protected class Feeder {
+        final Context context;
+        final Pipe pipe;
+        final ReadStream<?> source;
+        final boolean postgres = isPostgres();
+        final int chunkBytes = Math.max(1024, client.bulkChunkBytes);
+        final Deque<byte[]> pending = new ArrayDeque<>();
+        final ByteArrayOutputStream chunk;
+        long rows = 0;
+        boolean paused = false;
+        boolean ended = false;
+        boolean finished = false;
+        volatile Throwable error;
+
+        Feeder(Context context, Pipe pipe, ReadStream<?> source) {
+            this.context = context;
+            this.pipe = pipe;
+            this.source = source;
+            this.chunk = new ByteArrayOutputStream(chunkBytes + 1024);
+        }
+
+        void start() {
+            pipe.onSpace = () -> context.runOnContext(v -> drain());
+            source.exceptionHandler(err -> {
+                if (!finished) {
+                    error = err;
+                    pipe.fail(err);
+                }
+            });
+            source.endHandler(v -> {
+                if (finished) {
+                    return;
+                }
+                flush();
+                ended = true;
+                pending.add(Pipe.EOF);
+                drain();
+            });
+            source.handler(item -> {
+                if (finished || ended) {
+                    return;
+                }
+                if (item instanceof Buffer) {
+                    Buffer buf = (Buffer) item;
+                    chunk.write(buf.getBytes(), 0, buf.length());
+                } else {
+                    encode(chunk, (JsonArray) item, columns.size(), postgres);
+                    rows++;
+                    progressed(rows - 1, rows);
+                }
+                if (chunk.size() >= chunkBytes) {
+                    flush();
+                }
+            });
+        }
+
+        void flush() {
+            if (chunk.size() > 0) {
+                pending.add(chunk.toByteArray());
+                chunk.reset();
+                drain();
+            }
+        }
+
+        void drain() {
+            if (finished) {
+                return;
+            }
+            while (!pending.isEmpty()) {
+                if (!pipe.offer(pending.peek())) {
+                    if (!paused && !ended) {
+                        paused = true;
+                        source.pause();
+                    }
+                    return;
+                }
+                pending.poll();
+            }
+            if (paused && !ended) {
+                paused = false;
+                source.resume();
+            }
+        }
+
+        /**
+         * The load completed or failed, nothing more is read from the source.
+         */
+        void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            pipe.abort();
+            pending.clear();
+            if (!ended) {
+                source.pause();
+            }
+        }
+    }
+
+    /**
+     * Bounded chunk queue read as an InputStream by the JDBC driver on its worker thread. The event loop side never
+     * blocks: offer() returns false when the queue is full and onSpace runs once the reader took a chunk.
+     */
+    protected static class Pipe extends InputStream {
+        static final byte[] EOF = new byte[0];
+
+        final ArrayBlockingQueue<byte[]> queue;
+        volatile Runnable onSpace;
+        volatile boolean full = false;
+        volatile boolean aborted = false;
+        volatile Throwable error;
+        byte[] current;
+        int pos;
+
+        Pipe(int chunks) {
+            queue = new ArrayBlockingQueue<>(Math.max(1, chunks));
+        }
+
+        boolean offer(byte[] chunk) {
+            if (aborted || queue.offer(chunk)) {
+                return true;
+            }
+            full = true;
+            // the reader may have taken a chunk before full was set and would not call onSpace
+            if (queue.offer(chunk)) {
+                full = false;
+                return true;
+            }
+            return false;
+        }
+
+        void fail(Throwable err) {
+            error = err;
+            queue.clear();
+            queue.offer(EOF);
+        }
+
+        void abort() {
+            aborted = true;
+            queue.clear();
+        }
+
+        protected boolean next() throws IOException {
+            if (current == EOF) {
+                return false;
+            }
+            if (current != null && pos < current.length) {
+                return true;
+            }
+            try {
+                current = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Bulk load interrupted", e);
+            }
+            pos = 0;
+            if (full) {
+                full = false;
+                Runnable space = onSpace;
+                if (space != null) {
+                    space.run();
+                }
+            }
+            if (error != null) {
+                throw new IOException("Bulk load source failed", error);
+            }
+            return current != EOF;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!next()) {
+                return -1;
+            }
+            return current[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!next()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    /**
+     * ReadStream of queued rows that honours pause() and hands out at most ROWS_PER_TICK rows per event loop turn,
+     * so a large PHP array does not hold the event loop while it is encoded.
+     */
+    protected class RowQueue implements ReadStream<JsonArray> {
+        final Deque<JsonArray> rows = new ArrayDeque<>();
+        Handler<JsonArray> handler;
+        Handler<Void> endHandler;
+        Handler<Throwable> exceptionHandler;
+        boolean paused = false;
+        boolean ended = false;
+        boolean endSent = false;
+        boolean scheduled = false;
+
+        @Override
+        public RowQueue exceptionHandler(Handler<Throwable> handler) {
+            this.exceptionHandler = handler;
+            return this;
+        }
+
+        @Override
+        public RowQueue handler(Handler<JsonArray> handler) {
+            this.handler = handler;
+            schedule();
+            return this;
+        }
+
+        @Override
+        public RowQueue pause() {
+            paused = true;
+            return this;
+        }
+
+        @Override
+        public RowQueue resume() {
+            paused = false;
+            schedule();
+            return this;
+        }
+
+        @Override
+        public RowQueue endHandler(Handler<Void> endHandler) {
+            this.endHandler = endHandler;
+            return this;
+        }
+
+        void schedule() {
+            if (!scheduled && handler != null) {
+                scheduled = true;
+                client.getVertx().runOnContext(v -> {
+                    scheduled = false;
+                    drain();
+                });
+            }
+        }
+
+        void drain() {
+            int sent = 0;
+            while (!paused && !rows.isEmpty()) {
+                if (sent++ == ROWS_PER_TICK) {
+                    schedule();
+                    return;
+                }
+                handler.handle(rows.poll());
+            }
+            if (!paused && ended && rows.isEmpty() && !endSent) {
+                endSent = true;
+                if (endHandler != null) {
+                    endHandler.handle(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rows parsed from a CSV file read as buffers, fields are strings, an empty unquoted field is NULL.
+     * Parsed rows wait in the queue while paused, the file is paused until they are taken.
+     */
+    protected class CsvRowStream extends RowQueue {
+        final ReadStream<Buffer> file;
+        final ByteArrayOutputStream field = new ByteArrayOutputStream();
+        JsonArray row = new JsonArray();
+        int skip;
+        boolean inQuotes = false;
+        boolean quoted = false;
+        boolean quotePending = false;
+        boolean filePaused = false;
+
+        CsvRowStream(ReadStream<Buffer> file, int skip) {
+            this.file = file;
+            this.skip = skip;
+            file.exceptionHandler(err -> {
+                if (exceptionHandler != null) {
+                    exceptionHandler.handle(err);
+                }
+            });
+            file.endHandler(v -> {
+                if (quotePending || quoted || field.size() > 0 || row.size() > 0) {
+                    quotePending = false;
+                    inQuotes = false;
+                    endField();
+                    endRow();
+                }
+                ended = true;
+                schedule();
+            });
+        }
+
+        @Override
+        public CsvRowStream handler(Handler<JsonArray> handler) {
+            this.handler = handler;
+            file.handler(buf -> {
+                for (int i = 0; i < buf.length(); i++) {
+                    parse(buf.getByte(i));
+                }
+                if (!rows.isEmpty()) {
+                    if (paused && !filePaused) {
+                        filePaused = true;
+                        file.pause();
+                    }
+                    schedule();
+                }
+            });
+            return this;
+        }
+
+        @Override
+        void drain() {
+            super.drain();
+            if (!paused && rows.isEmpty() && filePaused && !ended) {
+                filePaused = false;
+                file.resume();
+            }
+        }
+
+        void parse(byte b) {
+            if (inQuotes) {
+                if (quotePending) {
+                    quotePending = false;
+                    if (b == '"') {
+                        field.write(b);
+                        return;
+                    }
+                    inQuotes = false;
+                } else {
+                    if (b == '"') {
+                        quotePending = true;
+                    } else {
+                        field.write(b);
+                    }
+                    return;
+                }
+            }
+            if (b == '"' && field.size() == 0 && !quoted) {
+                inQuotes = true;
+                quoted = true;
+            } else if (b == ',') {
+                endField();
+            } else if (b == '\n') {
+                if (row.size() > 0 || field.size() > 0 || quoted) {
+                    endField();
+                    endRow();
+                }
+            } else if (b != '\r') {
+                field.write(b);
+            }
+        }
+
+        void endField() {
+            if (field.size() == 0 && !quoted) {
+                row.addNull();
+            } else {
+                row.add(new String(field.toByteArray(), StandardCharsets.UTF_8));
+            }
+            field.reset();
+            quoted = false;
+        }
+
+        void endRow() {
+            if (skip > 0) {
+                skip--;
+            } else {
+                rows.add(row);
+            }
+            row = new JsonArray();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.doophp.db;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens after breaker_failures consecutive connection level failures, so requests fail fast while the database is down
+ * instead of each one waiting for its own connect timeout. After breaker_reset_ms one trial request is let through,
+ * its success closes the breaker again, its failure keeps it open for another period.
+ */
+public class CircuitBreaker {
+
+    public static final String CLOSED = "closed";
+    public static final String OPEN = "open";
+    public static final String HALF_OPEN = "half_open";
+
+    protected static final Map<String, CircuitBreaker> pools = new ConcurrentHashMap<>();
+
+    protected final int failureThreshold;
+    protected final long resetMs;
+    protected volatile String state = CLOSED;
+    protected volatile int failures = 0;
+    protected long openedAt = 0;
+    protected long trialAt = 0;
+    protected long opened = 0;
+    protected long rejected = 0;
+
+    public CircuitBreaker(int failureThreshold, long resetMs) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.resetMs = resetMs;
+    }
+
+    /**
+     * Breaker of a pool, null when "breaker" is false.
+     */
+    public static CircuitBreaker forPool(String poolName, JsonObject config) {
+        if (!config.getBoolean("breaker", true)) {
+            return null;
+        }
+        return pools.computeIfAbsent(poolName, name -> new CircuitBreaker(config.getInteger("breaker_failures", 10), config.getLong("breaker_reset_ms", 5000L)));
+    }
+
+    public synchronized boolean allowRequest() {
+        if (state == CLOSED) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        // half open: one trial at a time, another one if the trial never reported back
+        long since = state == OPEN ? openedAt : trialAt;
+        if (now - since >= resetMs) {
+            state = HALF_OPEN;
+            trialAt = now;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    public void success() {
+        if (state == CLOSED && failures == 0) {
+            return;
+        }
+        synchronized (this) {
+            failures = 0;
+            state = CLOSED;
+        }
+    }
+
+    public synchronized void failure() {
+        failures++;
+        if (state == HALF_OPEN || (state == CLOSED && failures >= failureThreshold)) {
+            state = OPEN;
+            openedAt = System.currentTimeMillis();
+            opened++;
+        }
+    }
+
+    public synchronized String getState() {
+        return state;
+    }
+
+    /**
+     * Failures that say the database (not the statement) is in trouble: broken connections and timeouts.
+     */
+    public static boolean isFailure(Throwable err) {
+        if (err instanceof SQLOverloadException || err instanceof SQLDeadlineException) {
+            return false;
+        }
+        for (Throwable e = err; e != null; e = e.getCause()) {
+            if (e.getClass().getSimpleName().contains("Timeout")) {
+                return true;
+            }
+        }
+        return ReplicaPool.isConnectionError(err);
+    }
+
+    public synchronized JsonObject stats() {
+        return new JsonObject()
+                .put("state", state)
+                .put("failures", failures)
+                .put("opened", opened)
+                .put("rejected", rejected);
+    }
+}
@@ -0,0 +1,180 @@
+package com.doophp.db;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adaptive cap on the connections a pool hands out at once, with a short bounded wait queue in front of it.
+ *
+ * The limit follows a latency gradient: a long term average of statement latency (the baseline) is compared with
+ * a short term one, while the short term latency stays within tolerance of the baseline the limit grows by about
+ * sqrt(limit), when the database slows down it shrinks in proportion (by at most half per step). Failed statements
+ * count as a drop and cut the limit by 10%. Requests over the limit wait in the queue for up to queueTimeoutMs,
+ * when the queue is full or the wait is over they fail with SQLOverloadException instead of piling up in the pool.
+ */
+public class ConcurrencyLimiter {
+
+    protected static final double TOLERANCE = 1.5;
+    protected static final double SMOOTHING = 0.2;
+    protected static final double BACKOFF = 0.9;
+
+    protected static final Map<String, ConcurrencyLimiter> pools = new ConcurrentHashMap<>();
+
+    protected final Vertx vertx;
+    protected final int minLimit;
+    protected final int maxLimit;
+    protected final int maxQueue;
+    protected final long queueTimeoutMs;
+    protected double limit;
+    protected int inFlight = 0;
+    protected double shortRtt = 0;
+    protected double longRtt = 0;
+    protected final Deque<Waiter> queue = new ArrayDeque<>();
+    protected long rejected = 0;
+    protected long timedOut = 0;
+
+    protected static class Waiter {
+        final Context context;
+        final Handler<AsyncResult<Void>> handler;
+        final long waitMs;
+        long timerId = -1;
+
+        Waiter(Context context, Handler<AsyncResult<Void>> handler, long waitMs) {
+            this.context = context;
+            this.handler = handler;
+            this.waitMs = waitMs;
+        }
+    }
+
+    public ConcurrencyLimiter(Vertx vertx, int initialLimit, int minLimit, int maxLimit, int maxQueue, long queueTimeoutMs) {
+        this.vertx = vertx;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.maxQueue = maxQueue;
+        this.queueTimeoutMs = queueTimeoutMs;
+    }
+
+    /**
+     * Limiter of a pool, null when "limiter" is false. Starts at maxPoolSize and moves between "limiter_min" (1)
+     * and "limiter_max" (2 x maxPoolSize), "limiter_queue_size" requests (2 x maxPoolSize) wait up to
+     * "limiter_queue_timeout_ms" (1000) for a slot.
+     */
+    public static ConcurrencyLimiter forPool(Vertx vertx, String poolName, JsonObject config) {
+        if (!config.getBoolean("limiter", true)) {
+            return null;
+        }
+        return pools.computeIfAbsent(poolName, name -> {
+            int poolSize = config.getInteger("maxPoolSize", 10);
+            return new ConcurrencyLimiter(vertx, poolSize,
+                    config.getInteger("limiter_min", 1),
+                    config.getInteger("limiter_max", poolSize * 2),
+                    config.getInteger("limiter_queue_size", poolSize * 2),
+                    config.getLong("limiter_queue_timeout_ms", 1000L));
+        });
+    }
+
+    /**
+     * Handler succeeds once a slot is free (call release() when done with it) or fails with SQLOverloadException.
+     */
+    public void acquire(Handler<AsyncResult<Void>> handler) {
+        acquire(queueTimeoutMs, handler);
+    }
+
+    /**
+     * Like acquire(handler), a queued request waits at most maxWaitMs (capped by queueTimeoutMs), eg. what is left of its deadline.
+     */
+    public void acquire(long maxWaitMs, Handler<AsyncResult<Void>> handler) {
+        SQLOverloadException rejection = null;
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+            } else if (queue.size() < maxQueue) {
+                Waiter waiter = new Waiter(vertx.getOrCreateContext(), handler, Math.max(1, Math.min(maxWaitMs, queueTimeoutMs)));
+                waiter.timerId = vertx.setTimer(waiter.waitMs, id -> timeout(waiter));
+                queue.add(waiter);
+                return;
+            } else {
+                rejected++;
+                rejection = new SQLOverloadException(SQLOverloadException.Reason.LIMIT, "SQL concurrency limit " + (int) limit + " reached and " + queue.size() + " requests queued");
+            }
+        }
+        handler.handle(rejection == null ? Future.succeededFuture() : Future.failedFuture(rejection));
+    }
+
+    public void release() {
+        List<Waiter> ready = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            while (inFlight < (int) limit && !queue.isEmpty()) {
+                Waiter waiter = queue.poll();
+                vertx.cancelTimer(waiter.timerId);
+                inFlight++;
+                ready.add(waiter);
+            }
+        }
+        for (Waiter waiter : ready) {
+            waiter.context.runOnContext(v -> waiter.handler.handle(Future.succeededFuture()));
+        }
+    }
+
+    protected void timeout(Waiter waiter) {
+        synchronized (this) {
+            if (!queue.remove(waiter)) {
+                return;
+            }
+            timedOut++;
+        }
+        waiter.handler.handle(Future.failedFuture(new SQLOverloadException(SQLOverloadException.Reason.QUEUE_TIMEOUT, "Waited " + waiter.waitMs + " ms for a SQL connection slot")));
+    }
+
+    /**
+     * Latency of a finished statement, dropped when it failed.
+     */
+    public synchronized void sample(long rttNanos, boolean dropped) {
+        if (dropped) {
+            limit = Math.max(minLimit, limit * BACKOFF);
+            return;
+        }
+        double rtt = Math.max(1, rttNanos);
+        shortRtt = shortRtt == 0 ? rtt : shortRtt * 0.9 + rtt * 0.1;
+        longRtt = longRtt == 0 ? rtt : longRtt * 0.99 + rtt * 0.01;
+        if (longRtt / shortRtt > 2) {
+            // latency dropped well below the baseline after an overload, let the baseline catch up
+            longRtt *= 0.95;
+        }
+        if (inFlight < limit / 2) {
+            // most slots idle, latency says nothing about how far the limit can go
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized JsonObject stats() {
+        return new JsonObject()
+                .put("limit", (int) limit)
+                .put("in_flight", inFlight)
+                .put("queued", queue.size())
+                .put("rejected", rejected)
+                .put("timed_out", timedOut)
+                .put("latency_short_ms", shortRtt / 1e6)
+                .put("latency_long_ms", longRtt / 1e6);
+    }
+}
@@ -0,0 +1,157 @@
+package com.doophp.db;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks every connection checked out of a pool and reports the ones held longer than leak_detection_ms.
+ *
+ * A checkout records when it happened, the statement or caller tag it was taken for and, with leak_detection_stack on,
+ * the stack of the code that asked for it (captured when the connection is requested, so it points at the caller rather
+ * than the pool callback). Each leak is logged and published on leak_detection_address once, and logged again when
+ * the connection is finally released.
+ */
+public class ConnectionLeakDetector {
+
+    protected static final Map<String, ConnectionLeakDetector> pools = new ConcurrentHashMap<>();
+
+    public static class Checkout {
+        public final long id;
+        public final long at;
+        public final String sql;
+        public final String tag;
+        public final Throwable site;
+        protected volatile boolean reported = false;
+
+        public Checkout(long id, String sql, String tag, Throwable site) {
+            this.id = id;
+            this.at = System.currentTimeMillis();
+            this.sql = sql;
+            this.tag = tag;
+            this.site = site;
+        }
+
+        public long age() {
+            return System.currentTimeMillis() - at;
+        }
+
+        public JsonObject toJson() {
+            JsonObject json = new JsonObject()
+                    .put("id", id)
+                    .put("checked_out", at)
+                    .put("age_ms", age())
+                    .put("sql", sql)
+                    .put("tag", tag);
+            if (site != null) {
+                JsonArray stack = new JsonArray();
+                for (StackTraceElement el : site.getStackTrace()) {
+                    stack.add(el.toString());
+                }
+                json.put("stack", stack);
+            }
+            return json;
+        }
+    }
+
+    protected final Vertx vertx;
+    protected final String poolName;
+    protected final long thresholdMs;
+    protected final boolean captureStack;
+    protected final Map<Long, Checkout> checkouts = new ConcurrentHashMap<>();
+    protected final AtomicLong ids = new AtomicLong();
+    protected final AtomicLong leaks = new AtomicLong();
+    protected String address;
+    protected SQLClient reporter;
+
+    public ConnectionLeakDetector(Vertx vertx, String poolName, long thresholdMs, boolean captureStack) {
+        this.vertx = vertx;
+        this.poolName = poolName;
+        this.thresholdMs = thresholdMs;
+        this.captureStack = captureStack;
+    }
+
+    /**
+     * Detector of a pool, null when "leak_detection_ms" is not above 0. Leaks are logged through the first client
+     * created for the pool.
+     */
+    public static ConnectionLeakDetector forPool(Vertx vertx, String poolName, JsonObject config, SQLClient client) {
+        long thresholdMs = config.getLong("leak_detection_ms", 60000L);
+        if (thresholdMs <= 0) {
+            return null;
+        }
+        return pools.computeIfAbsent(poolName, name -> {
+            ConnectionLeakDetector detector = new ConnectionLeakDetector(vertx, name, thresholdMs, config.getBoolean("leak_detection_stack", false));
+            detector.reporter = client;
+            detector.address = config.getString("leak_detection_address", "doo.sql.leaks." + name);
+            vertx.setPeriodic(Math.max(1000, Math.min(thresholdMs / 2, 10000)), id -> detector.check());
+            return detector;
+        });
+    }
+
+    public static ConnectionLeakDetector get(String poolName) {
+        return pools.get(poolName);
+    }
+
+    /**
+     * Call site of a connection request, null unless leak_detection_stack is on.
+     */
+    public Throwable site() {
+        return captureStack ? new Throwable("Connection checkout") : null;
+    }
+
+    public Checkout checkout(String sql, String tag, Throwable site) {
+        Checkout checkout = new Checkout(ids.incrementAndGet(), sql, tag, site);
+        checkouts.put(checkout.id, checkout);
+        return checkout;
+    }
+
+    public void release(Checkout checkout) {
+        checkouts.remove(checkout.id);
+        if (checkout.reported) {
+            reporter.logInfo("Leaked connection #{} released after {} ms", checkout.id, checkout.age());
+        }
+    }
+
+    protected void check() {
+        for (Checkout checkout : checkouts.values()) {
+            if (checkout.reported || checkout.age() < thresholdMs) {
+                continue;
+            }
+            checkout.reported = true;
+            leaks.incrementAndGet();
+            JsonObject json = checkout.toJson().put("pool", poolName);
+            String message = "Connection #" + checkout.id + " held for " + checkout.age() + " ms, possible leak. Taken for: {}";
+            String takenFor = checkout.sql == null ? checkout.tag : checkout.sql;
+            if (checkout.site == null) {
+                reporter.logError(message, takenFor);
+            } else {
+                reporter.logError(message, takenFor, checkout.site);
+            }
+            vertx.eventBus().publish(address, json);
+        }
+    }
+
+    /**
+     * Connections checked out right now, oldest first.
+     */
+    public JsonArray checkedOut() {
+        JsonArray list = new JsonArray();
+        checkouts.values().stream()
+                .sorted((a, b) -> Long.compare(a.at, b.at))
+                .forEach(c -> list.add(c.toJson()));
+        return list;
+    }
+
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+}
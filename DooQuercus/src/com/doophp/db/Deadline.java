@@ -0,0 +1,68 @@
+package com.doophp.db;
+
+/**
+ * Time budget of one request, shared by every SQL call made for it (SQLClient.withDeadline(), BaseModel.withDeadline()).
+ *
+ * Calls that have not reached the database when the deadline passes are skipped, statements get a server side
+ * timeout of the remaining budget. cancel() ends the budget early, eg. when the request already answered with a 408,
+ * so queued work of an abandoned request does not take connections.
+ */
+public class Deadline {
+
+    protected final long expiresAtNanos;
+    protected final long timeoutMs;
+    protected volatile boolean cancelled = false;
+
+    protected Deadline(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        this.expiresAtNanos = System.nanoTime() + timeoutMs * 1000000L;
+    }
+
+    public static Deadline after(long timeoutMs) {
+        return new Deadline(timeoutMs);
+    }
+
+    /**
+     * Deadline at an epoch time in ms, eg. the one a caller passed along with a request.
+     */
+    public static Deadline at(long epochMs) {
+        return new Deadline(epochMs - System.currentTimeMillis());
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isExpired() {
+        return cancelled || System.nanoTime() - expiresAtNanos >= 0;
+    }
+
+    /**
+     * Ms left, rounded up so a budget that is not over yet never reads as 0.
+     */
+    public long remainingMs() {
+        if (cancelled) {
+            return 0;
+        }
+        long nanos = expiresAtNanos - System.nanoTime();
+        return nanos <= 0 ? 0 : (nanos + 999999) / 1000000;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public SQLDeadlineException exceeded(Throwable cause) {
+        return new SQLDeadlineException(cancelled ? "Request cancelled, SQL statement skipped"
+                : "Request deadline of " + timeoutMs + " ms exceeded", cause);
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{timeout=" + timeoutMs + "ms, remaining=" + remainingMs() + "ms" + (cancelled ? ", cancelled" : "") + "}";
+    }
+}
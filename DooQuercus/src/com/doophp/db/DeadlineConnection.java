@@ -0,0 +1,214 @@
+package com.doophp.db;
+
+import com.doophp.db.jdbc.JDBCConnection;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.SQLRowStream;
+import io.vertx.ext.sql.UpdateResult;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Connection checked out for a request with a Deadline. Statements issued after the deadline fail with
+ * SQLDeadlineException without reaching the database, the others run with a timeout of the remaining budget.
+ * The SQL is sent as is, so prepared statements stay cached per connection:
+ *
+ * JDBC backend: setQueryTimeout() on every statement, whole seconds rounded up.
+ * Async driver: the session timeout is set before the first statement (again once more than RESET_SLACK_MS of the
+ * budget is spent) and reset to the server default before the connection goes back to the pool.
+ * POSTGRES sets statement_timeout, MYSQL max_execution_time (SELECTs only, writes are not limited by MySQL),
+ * MARIADB max_statement_time.
+ *
+ * A statement that fails once the deadline has passed reports SQLDeadlineException with the database error as cause.
+ */
+public class DeadlineConnection extends TrackedConnection {
+
+    protected static final long RESET_SLACK_MS = 100;
+
+    protected final Deadline deadline;
+    protected final String dialect;
+    /**
+     * The delegate runs on the JDBC backend, which honours setQueryTimeout().
+     */
+    protected final boolean jdbc;
+    protected long timeoutSet = -1;
+
+    public DeadlineConnection(SQLConnection conn, Object owner, Deadline deadline, String dialect, Handler<Void> releaseHandler) {
+        super(conn, owner, releaseHandler);
+        this.deadline = deadline;
+        this.dialect = dialect;
+        SQLConnection delegate = conn;
+        while (delegate instanceof TrackedConnection) {
+            delegate = ((TrackedConnection) delegate).delegate();
+        }
+        this.jdbc = delegate instanceof JDBCConnection;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Runs statement with the remaining budget as its timeout, or fails handler when there is none left.
+     */
+    protected <T> void run(Handler<AsyncResult<T>> handler, Consumer<Handler<AsyncResult<T>>> statement) {
+        final long remaining = deadline.remainingMs();
+        if (remaining <= 0) {
+            handler.handle(Future.failedFuture(deadline.exceeded(null)));
+            return;
+        }
+        final Handler<AsyncResult<T>> guarded = res -> {
+            if (res.failed() && deadline.isExpired() && !(res.cause() instanceof SQLDeadlineException)) {
+                handler.handle(Future.failedFuture(deadline.exceeded(res.cause())));
+            } else {
+                handler.handle(res);
+            }
+        };
+
+        String setTimeout = sessionTimeout(remaining);
+        if (setTimeout == null) {
+            conn.setQueryTimeout((int) Math.max(1, (remaining + 999) / 1000));
+            statement.accept(guarded);
+            return;
+        }
+        if (timeoutSet > 0 && timeoutSet - remaining <= RESET_SLACK_MS) {
+            statement.accept(guarded);
+            return;
+        }
+        conn.execute(setTimeout, set -> {
+            if (set.failed()) {
+                guarded.handle(Future.failedFuture(set.cause()));
+                return;
+            }
+            timeoutSet = remaining;
+            statement.accept(guarded);
+        });
+    }
+
+    /**
+     * Statement setting the session timeout to ms, null when the statements get setQueryTimeout() instead.
+     */
+    protected String sessionTimeout(long ms) {
+        if (jdbc) {
+            return null;
+        }
+        switch (dialect) {
+            case "POSTGRES":
+                return "SET statement_timeout = " + ms;
+            case "MYSQL":
+                return "SET SESSION max_execution_time = " + ms;
+            case "MARIADB":
+                return "SET SESSION max_statement_time = " + (ms / 1000.0);
+            default:
+                return null;
+        }
+    }
+
+    protected String resetTimeout() {
+        switch (dialect) {
+            case "POSTGRES":
+                return "SET statement_timeout TO DEFAULT";
+            case "MYSQL":
+                return "SET SESSION max_execution_time = DEFAULT";
+            default:
+                return "SET SESSION max_statement_time = DEFAULT";
+        }
+    }
+
+    @Override
+    public SQLConnection execute(String sql, Handler<AsyncResult<Void>> resultHandler) {
+        run(resultHandler, h -> conn.execute(sql, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection query(String sql, Handler<AsyncResult<ResultSet>> resultHandler) {
+        run(resultHandler, h -> conn.query(sql, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection queryStream(String sql, Handler<AsyncResult<SQLRowStream>> handler) {
+        run(handler, h -> conn.queryStream(sql, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection queryWithParams(String sql, JsonArray params, Handler<AsyncResult<ResultSet>> resultHandler) {
+        run(resultHandler, h -> conn.queryWithParams(sql, params, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection queryStreamWithParams(String sql, JsonArray params, Handler<AsyncResult<SQLRowStream>> handler) {
+        run(handler, h -> conn.queryStreamWithParams(sql, params, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection update(String sql, Handler<AsyncResult<UpdateResult>> resultHandler) {
+        run(resultHandler, h -> conn.update(sql, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection updateWithParams(String sql, JsonArray params, Handler<AsyncResult<UpdateResult>> resultHandler) {
+        run(resultHandler, h -> conn.updateWithParams(sql, params, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection call(String sql, Handler<AsyncResult<ResultSet>> resultHandler) {
+        run(resultHandler, h -> conn.call(sql, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection callWithParams(String sql, JsonArray params, JsonArray outputs, Handler<AsyncResult<ResultSet>> resultHandler) {
+        run(resultHandler, h -> conn.callWithParams(sql, params, outputs, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection batch(List<String> sqlStatements, Handler<AsyncResult<List<Integer>>> handler) {
+        run(handler, h -> conn.batch(sqlStatements, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection batchWithParams(String sqlStatement, List<JsonArray> args, Handler<AsyncResult<List<Integer>>> handler) {
+        run(handler, h -> conn.batchWithParams(sqlStatement, args, h));
+        return this;
+    }
+
+    @Override
+    public SQLConnection batchCallableWithParams(String sqlStatement, List<JsonArray> inArgs, List<JsonArray> outArgs, Handler<AsyncResult<List<Integer>>> handler) {
+        run(handler, h -> conn.batchCallableWithParams(sqlStatement, inArgs, outArgs, h));
+        return this;
+    }
+
+    @Override
+    public void close(Handler<AsyncResult<Void>> handler) {
+        if (timeoutSet < 0 || released) {
+            super.close(handler);
+            return;
+        }
+        timeoutSet = -1;
+        conn.execute(resetTimeout(), reset -> super.close(handler));
+    }
+
+    @Override
+    public void close() {
+        if (timeoutSet < 0 || released) {
+            super.close();
+            return;
+        }
+        timeoutSet = -1;
+        conn.execute(resetTimeout(), reset -> super.close());
+    }
+}
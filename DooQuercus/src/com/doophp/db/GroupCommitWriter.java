@@ -0,0 +1,228 @@
+package com.doophp.db;
+
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.lang.php.util.PhpTypes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffers small single row INSERTs from many requests and writes them as one multi-row INSERT in one transaction.
+ *
+ * Rows are grouped by statement (same SQL text), a group is flushed after flushIntervalMs or once it holds maxBatchSize rows,
+ * whichever comes first. Every caller's handler is completed on the caller's own context with its own generated key.
+ * When the group fails, its rows are written again one at a time so only a row that fails by itself (eg. a duplicate
+ * key) gets the error. Meant for fire-and-forget style writes (audit events, counters) where a few ms of latency is fine.
+ */
+public class GroupCommitWriter {
+
+    protected SQLClient client;
+    protected long flushIntervalMs;
+    protected int maxBatchSize;
+    protected Map<String, Group> groups = new HashMap<>();
+
+    public final LongAdder flushes = new LongAdder();
+    public final LongAdder rowsWritten = new LongAdder();
+
+    protected static class Pending {
+        final JsonArray params;
+        final Handler<Long> handler;
+        final Handler<Throwable> errorHandler;
+        final Context context;
+
+        Pending(JsonArray params, Handler<Long> handler, Handler<Throwable> errorHandler) {
+            this.params = params;
+            this.handler = handler;
+            this.errorHandler = errorHandler;
+            this.context = Vertx.currentContext();
+        }
+
+        /**
+         * Handlers run on the context of the request that buffered the row, not on the one of the flush.
+         */
+        void run(Handler<Void> action) {
+            if (context == null) {
+                action.handle(null);
+            } else {
+                context.runOnContext(action);
+            }
+        }
+    }
+
+    protected static class Group {
+        final String sql;
+        List<Pending> rows = new ArrayList<>();
+        long timerId = -1;
+
+        Group(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    public GroupCommitWriter(SQLClient client, long flushIntervalMs, int maxBatchSize) {
+        this.client = client;
+        this.flushIntervalMs = Math.max(1, flushIntervalMs);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    public synchronized void insert(String sql, JsonArray params, Handler<Long> handler, Handler<Throwable> errorHandler) {
+        Group group = groups.computeIfAbsent(sql, Group::new);
+        group.rows.add(new Pending(params, handler, errorHandler));
+
+        if (group.rows.size() >= maxBatchSize) {
+            flush(group);
+        } else if (group.timerId == -1) {
+            group.timerId = client.getVertx().setTimer(flushIntervalMs, id -> flushTimer(sql));
+        }
+    }
+
+    /**
+     * PHP variant, handler receives the generated key of the row (or null when the table has none).
+     */
+    public void insert(Env env, String sql, JsonArray params, final Callable handler, final Callable errorHandler) {
+        insert(sql, params, key -> {
+            if (handler != null) {
+                handler.call(env, env.wrapJava(key));
+            }
+        }, err -> {
+            if (errorHandler != null) {
+                errorHandler.call(env, env.wrapJava(err));
+            }
+        });
+    }
+
+    public synchronized void flushAll() {
+        for (Group group : new ArrayList<>(groups.values())) {
+            flush(group);
+        }
+    }
+
+    protected synchronized void flushTimer(String sql) {
+        Group group = groups.get(sql);
+        if (group != null) {
+            group.timerId = -1;
+            flush(group);
+        }
+    }
+
+    protected void flush(Group group) {
+        if (group.timerId != -1) {
+            client.getVertx().cancelTimer(group.timerId);
+            group.timerId = -1;
+        }
+        if (group.rows.isEmpty()) {
+            return;
+        }
+        final List<Pending> rows = group.rows;
+        group.rows = new ArrayList<>();
+        write(group.sql, rows);
+    }
+
+    protected void write(String sql, List<Pending> rows) {
+        write(sql, rows, v -> {});
+    }
+
+    protected void write(String sql, List<Pending> rows, Handler<Void> done) {
+        List<JsonArray> batchParams = new ArrayList<>(rows.size());
+        for (Pending p : rows) {
+            batchParams.add(p.params);
+        }
+
+        client.connect(connRes -> {
+            if (connRes.failed()) {
+                fail(rows, connRes.cause());
+                done.handle(null);
+                return;
+            }
+            final SQLConnection conn = connRes.result();
+            Handler<Throwable> rollback = err -> conn.rollback(res -> {
+                conn.close();
+                retry(sql, rows, err, done);
+            });
+
+            conn.setAutoCommit(false, resTx -> {
+                if (resTx.failed()) {
+                    conn.close();
+                    fail(rows, resTx.cause());
+                    done.handle(null);
+                    return;
+                }
+                client.batchInsertRaw(conn, sql, batchParams, keys -> {
+                    conn.commit(resCommit -> {
+                        conn.close();
+                        if (resCommit.failed()) {
+                            retry(sql, rows, resCommit.cause(), done);
+                            return;
+                        }
+                        flushes.increment();
+                        rowsWritten.add(rows.size());
+                        for (int i = 0; i < rows.size(); i++) {
+                            final Pending p = rows.get(i);
+                            final Long key = i < keys.size() ? keys.get(i) : null;
+                            if (p.handler != null) {
+                                p.run(v -> p.handler.handle(key));
+                            }
+                        }
+                        done.handle(null);
+                    });
+                }, rollback);
+            });
+        });
+    }
+
+    /**
+     * One bad row fails the statement of its whole group, the rows of a failed group are written one by one.
+     */
+    protected void retry(String sql, List<Pending> rows, Throwable err, Handler<Void> done) {
+        if (rows.size() == 1) {
+            fail(rows, err);
+            done.handle(null);
+            return;
+        }
+        client.logError("Group commit flush failed, writing " + rows.size() + " rows one at a time", err);
+        nextRow(sql, rows.iterator(), done);
+    }
+
+    protected void nextRow(String sql, Iterator<Pending> iterator, Handler<Void> done) {
+        if (!iterator.hasNext()) {
+            done.handle(null);
+            return;
+        }
+        write(sql, Collections.singletonList(iterator.next()), v -> nextRow(sql, iterator, done));
+    }
+
+    protected void fail(List<Pending> rows, Throwable err) {
+        client.logError("Group commit flush failed, " + rows.size() + " rows", err);
+        for (Pending p : rows) {
+            if (p.errorHandler != null) {
+                p.run(v -> p.errorHandler.handle(err));
+            }
+        }
+    }
+
+    public JsonObject stats() {
+        int buffered = 0;
+        synchronized (this) {
+            for (Group g : groups.values()) {
+                buffered += g.rows.size();
+            }
+        }
+        return new JsonObject().put("flushes", flushes.sum()).put("rows", rowsWritten.sum()).put("buffered", buffered);
+    }
+
+    public void stats(Env env, final Callable handler) {
+        handler.call(env, PhpTypes.arrayFromJson(env, stats()));
+    }
+}
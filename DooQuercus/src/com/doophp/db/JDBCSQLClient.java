@@ -0,0 +1,101 @@
+package com.doophp.db;
+
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.Value;
+import com.doophp.db.jdbc.JDBCConnection;
+import com.doophp.db.jdbc.JDBCPool;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.impl.VertxImpl;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.asyncsql.AsyncSQLClient;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.lang.php.util.PhpTypes;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+
+import java.util.function.Function;
+
+/**
+ * SQLClient on a JDBC pool (JDBCPool) instead of the async MySQL/Postgres driver, picked per pool with
+ * "backend": "jdbc" in the config given to SQLClient.forPool(). Everything SQLClient does (replicas, metrics,
+ * limiter, deadlines, streams, transactions) works the same, blocking JDBC calls run on virtual threads or a bounded
+ * executor and complete on the caller's context. On top of that jooq() executes jOOQ queries directly,
+ * with server side prepared statements and cursors.
+ *
+ * The JDBC driver of the database (mysql-connector-java, postgresql) has to be on the classpath.
+ */
+public class JDBCSQLClient extends SQLClient {
+
+    public JDBCSQLClient(Env env, VertxImpl vertx, Value configValue, String poolName) {
+        super(env, vertx, configValue, poolName);
+    }
+
+    public JDBCSQLClient(VertxImpl vertx, String configStr, String poolName) {
+        super(vertx, configStr, poolName);
+    }
+
+    public JDBCSQLClient(VertxImpl vertx, JsonObject config, String poolName) {
+        super(vertx, config, poolName);
+    }
+
+    @Override
+    protected AsyncSQLClient createClient(JsonObject config, String poolName) {
+        return JDBCPool.forPool(vertx, poolName, config);
+    }
+
+    public JDBCPool getPool() {
+        return (JDBCPool) sqlClient;
+    }
+
+    /**
+     * Runs work with a DSLContext bound to a pooled primary connection on the JDBC executor, eg.
+     * dsl -> dsl.selectFrom(USER).where(USER.ID.eq(id)).fetch(). The connection goes back before handler is called.
+     */
+    public <T> void jooq(Function<DSLContext, T> work, Handler<AsyncResult<T>> handler) {
+        connect(res -> {
+            if (res.failed()) {
+                logError("SQL Connection Failed!", res.cause());
+                handler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            final SQLConnection conn = res.result();
+            SQLConnection jdbc = conn;
+            while (jdbc instanceof TrackedConnection) {
+                jdbc = ((TrackedConnection) jdbc).delegate();
+            }
+            ((JDBCConnection) jdbc).withConnection(c -> work.apply(DSL.using(c, SQLDialect.valueOf(dialect), dsl.settings())), done -> {
+                if (done.failed()) {
+                    logError("jOOQ Query Failed!", done.cause());
+                }
+                conn.close();
+                handler.handle(done);
+            });
+        });
+    }
+
+    /**
+     * PHP variant, work is called with ($dsl) on the executor (like VertxUtil::execBlock) and its return value goes to handler.
+     */
+    public void jooq(Env env, final Callable work, final Callable handler, final Callable errorHandler) {
+        this.<Object>jooq(dsl -> work.call(env, env.wrapJava(dsl)).toJavaObject(), res -> {
+            if (res.failed()) {
+                if (errorHandler != null) {
+                    errorHandler.call(env, env.wrapJava(res.cause()));
+                }
+                return;
+            }
+            if (handler != null) {
+                Object result = res.result();
+                handler.call(env, result instanceof JsonObject ? PhpTypes.arrayFromJson(env, (JsonObject) result) : env.wrapJava(result));
+            }
+        });
+    }
+
+    public JsonObject poolStats() {
+        return getPool().stats();
+    }
+}
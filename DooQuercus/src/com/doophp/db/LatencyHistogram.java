@@ -0,0 +1,116 @@
+package com.doophp.db;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size log-linear histogram in the style of HdrHistogram, recording is lock free (one atomic add per value).
+ *
+ * Values below 32 get an exact bucket, above that every power of two is split into 16 linear sub buckets,
+ * so a reported percentile is within ~6% of the real value. Values are plain longs, SQLMetrics records microseconds.
+ */
+public class LatencyHistogram {
+
+    protected static final int SUB_BITS = 4;
+    protected static final int SUB_COUNT = 1 << SUB_BITS;
+    protected static final int LINEAR = SUB_COUNT * 2;
+    protected static final int MAX_EXPONENT = 40;
+    protected static final int BUCKETS = LINEAR + (MAX_EXPONENT - SUB_BITS) * SUB_COUNT;
+    protected static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    protected final LongAdder count = new LongAdder();
+    protected final LongAdder sum = new LongAdder();
+    protected final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    /**
+     * Upper bound of the bucket holding the given percentile (0-100), never above the largest recorded value.
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * count, mean, p50, p90, p99, p999 and max, divided by scale (eg. 1000 to turn microseconds into ms).
+     */
+    public JsonObject toJson(double scale) {
+        return new JsonObject()
+                .put("count", getCount())
+                .put("mean", getMean() / scale)
+                .put("p50", percentile(50) / scale)
+                .put("p90", percentile(90) / scale)
+                .put("p99", percentile(99) / scale)
+                .put("p999", percentile(99.9) / scale)
+                .put("max", getMax() / scale);
+    }
+
+    protected static int bucketOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return LINEAR + (exponent - SUB_BITS - 1) * SUB_COUNT + sub;
+    }
+
+    protected static long upperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+        int sub = (bucket - LINEAR) % SUB_COUNT;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_COUNT + sub) * width) + width - 1;
+    }
+}
@@ -0,0 +1,209 @@
+package com.doophp.db;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.env.Value;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns rows with "table-field" aliased columns (BaseModel.alias(), getAllFieldAlias()) into nested PHP arrays:
+ * array('user' => array('id' => 1, 'name' => 'a'), 'order' => array('id' => 9, ...))
+ *
+ * The column index to (table, field) split is computed once per column list and cached. With a parent table and
+ * key, rows of a one-to-many join are grouped by the parent key and every child table becomes a list:
+ * array('user' => array(...), 'order' => array(array(...), array(...)))
+ */
+public class NestedResultHydrator {
+
+    protected static final int MAX_LAYOUTS = 500;
+
+    protected static final Map<String, Layout> layouts = Collections.synchronizedMap(new LinkedHashMap<String, Layout>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Layout> eldest) {
+            return size() > MAX_LAYOUTS;
+        }
+    });
+
+    /**
+     * Column index => table and field name. Columns without the delimiter have a null table and stay top level.
+     */
+    public static class Layout {
+        public final String[] tables;
+        public final String[] fields;
+        /**
+         * Distinct tables in order of their first column.
+         */
+        public final List<String> tableOrder = new ArrayList<>();
+
+        public Layout(List<String> columns, String delimiter) {
+            tables = new String[columns.size()];
+            fields = new String[columns.size()];
+            for (int i = 0; i < tables.length; i++) {
+                String col = columns.get(i);
+                int pos = col.indexOf(delimiter);
+                if (pos > 0) {
+                    tables[i] = col.substring(0, pos);
+                    fields[i] = col.substring(pos + delimiter.length());
+                    if (!tableOrder.contains(tables[i])) {
+                        tableOrder.add(tables[i]);
+                    }
+                } else {
+                    fields[i] = col;
+                }
+            }
+        }
+
+        public int indexOf(String table, String field) {
+            for (int i = 0; i < tables.length; i++) {
+                if (table.equals(tables[i]) && field.equals(fields[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    public static Layout layout(List<String> columns, String delimiter) {
+        String key = delimiter + "\u0000" + String.join("\u0000", columns);
+        Layout layout = layouts.get(key);
+        if (layout == null) {
+            layout = new Layout(columns, delimiter);
+            layouts.put(key, layout);
+        }
+        return layout;
+    }
+
+    /**
+     * PHP keys of a layout for one Env, created once per result.
+     */
+    protected static class Keys {
+        final StringValue[] tables;
+        final StringValue[] fields;
+        final Map<String, StringValue> tableKeys = new HashMap<>();
+
+        Keys(Env env, Layout layout) {
+            tables = new StringValue[layout.tables.length];
+            fields = new StringValue[layout.fields.length];
+            for (int i = 0; i < tables.length; i++) {
+                fields[i] = env.createString(layout.fields[i]);
+                if (layout.tables[i] != null) {
+                    tables[i] = tableKeys.computeIfAbsent(layout.tables[i], env::createString);
+                }
+            }
+        }
+    }
+
+    public static ArrayValue toNested(Env env, ResultSet rs, String delimiter) {
+        ArrayValue rows = new ArrayValueImpl();
+        if (rs.getResults() == null) {
+            return rows;
+        }
+        Layout layout = layout(rs.getColumnNames(), delimiter);
+        Keys keys = new Keys(env, layout);
+
+        for (JsonArray result : rs.getResults()) {
+            ArrayValue row = new ArrayValueImpl();
+            Map<String, ArrayValue> tables = new HashMap<>();
+            for (int i = 0; i < layout.tables.length && i < result.size(); i++) {
+                Value val = ResultSetHydrator.toValue(env, result.getValue(i));
+                if (layout.tables[i] == null) {
+                    row.append(keys.fields[i], val);
+                    continue;
+                }
+                ArrayValue table = tables.get(layout.tables[i]);
+                if (table == null) {
+                    table = new ArrayValueImpl();
+                    tables.put(layout.tables[i], table);
+                    row.append(keys.tables[i], table);
+                }
+                table.append(keys.fields[i], val);
+            }
+            rows.append(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Groups rows by parentTable.parentKey, every table in childTables becomes a list of distinct child rows,
+     * child rows with only NULL values (LEFT JOIN without match) are skipped. Other tables and top level columns
+     * are taken from the first row of the group.
+     */
+    public static ArrayValue toNested(Env env, ResultSet rs, String delimiter, String parentTable, String parentKey, List<String> childTables) {
+        ArrayValue parents = new ArrayValueImpl();
+        if (rs.getResults() == null) {
+            return parents;
+        }
+        Layout layout = layout(rs.getColumnNames(), delimiter);
+        int keyIndex = layout.indexOf(parentTable, parentKey);
+        if (keyIndex < 0) {
+            throw new IllegalArgumentException("Column " + parentTable + delimiter + parentKey + " not found in result");
+        }
+        Keys keys = new Keys(env, layout);
+        Set<String> children = new HashSet<>(childTables);
+
+        Map<Object, Map<String, ArrayValue>> grouped = new HashMap<>();
+        Map<Object, Map<String, Set<List<Object>>>> seen = new HashMap<>();
+
+        for (JsonArray result : rs.getResults()) {
+            Object parentId = result.getValue(keyIndex);
+            Map<String, ArrayValue> parent = grouped.get(parentId);
+            boolean first = parent == null;
+
+            if (first) {
+                parent = new HashMap<>();
+                grouped.put(parentId, parent);
+                seen.put(parentId, new HashMap<>());
+                ArrayValue out = new ArrayValueImpl();
+                for (String table : layout.tableOrder) {
+                    ArrayValue t = new ArrayValueImpl();
+                    parent.put(table, t);
+                    out.append(keys.tableKeys.get(table), t);
+                }
+                for (int i = 0; i < layout.tables.length && i < result.size(); i++) {
+                    if (layout.tables[i] == null) {
+                        out.append(keys.fields[i], ResultSetHydrator.toValue(env, result.getValue(i)));
+                    }
+                }
+                parents.append(out);
+            }
+
+            for (String table : layout.tableOrder) {
+                boolean child = children.contains(table);
+                if (!first && !child) {
+                    continue;
+                }
+                List<Object> values = new ArrayList<>();
+                boolean allNull = true;
+                ArrayValue fields = new ArrayValueImpl();
+                for (int i = 0; i < layout.tables.length && i < result.size(); i++) {
+                    if (!table.equals(layout.tables[i])) {
+                        continue;
+                    }
+                    Object val = result.getValue(i);
+                    allNull = allNull && val == null;
+                    values.add(val);
+                    fields.append(keys.fields[i], ResultSetHydrator.toValue(env, val));
+                }
+
+                if (!child) {
+                    parent.get(table).putAll(fields);
+                } else if (!allNull && seen.get(parentId).computeIfAbsent(table, t -> new HashSet<>()).add(values)) {
+                    parent.get(table).append(fields);
+                }
+            }
+        }
+        return parents;
+    }
+}
@@ -0,0 +1,117 @@
+package com.doophp.db;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.SQLConnection;
+
+import java.util.List;
+
+/**
+ * Runs one update statement for every param set spread over up to N pooled connections, without a transaction.
+ *
+ * Each worker takes its own connection and pulls the next param set until the list is drained, so at most N
+ * statements are in flight. A failing item is recorded and the sweep carries on. The done handler receives:
+ * {"total": n, "updated": affected rows, "succeeded": n, "failed": n, "errors": [{"index": i, "error": "msg"}]}
+ * When an error handler is given and no item succeeded, it receives the first failure instead.
+ */
+public class ParallelBatch {
+
+    protected SQLClient client;
+    protected String sql;
+    protected List<JsonArray> batchParams;
+    protected int concurrency;
+    protected Handler<JsonObject> doneHandler;
+    protected Handler<Throwable> errorHandler;
+
+    protected int next = 0;
+    protected int running = 0;
+    protected long updated = 0;
+    protected int succeeded = 0;
+    protected JsonArray errors = new JsonArray();
+    protected Throwable lastConnectError;
+    protected Throwable firstError;
+
+    public ParallelBatch(SQLClient client, String sql, List<JsonArray> batchParams, int concurrency, Handler<JsonObject> doneHandler) {
+        this(client, sql, batchParams, concurrency, doneHandler, null);
+    }
+
+    public ParallelBatch(SQLClient client, String sql, List<JsonArray> batchParams, int concurrency, Handler<JsonObject> doneHandler, Handler<Throwable> errorHandler) {
+        this.client = client;
+        this.sql = sql;
+        this.batchParams = batchParams;
+        this.concurrency = Math.max(1, Math.min(concurrency, batchParams.size()));
+        this.doneHandler = doneHandler;
+        this.errorHandler = errorHandler;
+    }
+
+    public void start() {
+        if (batchParams.isEmpty()) {
+            finish();
+            return;
+        }
+        running = concurrency;
+        for (int i = 0; i < concurrency; i++) {
+            client.connect(res -> {
+                if (res.failed()) {
+                    lastConnectError = res.cause();
+                    workerDone();
+                    return;
+                }
+                nextItem(res.result());
+            });
+        }
+    }
+
+    protected void nextItem(SQLConnection conn) {
+        if (next >= batchParams.size()) {
+            conn.close();
+            workerDone();
+            return;
+        }
+        final int index = next++;
+
+        client.updateRaw(conn, sql, batchParams.get(index), false, res -> {
+            updated += res.getInteger("updated", 0);
+            succeeded++;
+            nextItem(conn);
+        }, err -> {
+            if (firstError == null) {
+                firstError = err;
+            }
+            errors.add(new JsonObject().put("index", index).put("error", String.valueOf(err.getMessage())));
+            nextItem(conn);
+        });
+    }
+
+    protected void workerDone() {
+        running--;
+        if (running > 0) {
+            return;
+        }
+        // every worker failed to get a connection, the rest of the items never ran
+        if (next < batchParams.size() && firstError == null) {
+            firstError = lastConnectError == null ? new IllegalStateException("No connection") : lastConnectError;
+        }
+        while (next < batchParams.size()) {
+            errors.add(new JsonObject().put("index", next++).put("error", lastConnectError == null ? "No connection" : String.valueOf(lastConnectError.getMessage())));
+        }
+        finish();
+    }
+
+    protected void finish() {
+        if (succeeded > 0) {
+            client.tablesWritten(sql);
+        }
+        if (succeeded == 0 && firstError != null && errorHandler != null) {
+            errorHandler.handle(firstError);
+            return;
+        }
+        doneHandler.handle(new JsonObject()
+                .put("total", batchParams.size())
+                .put("updated", updated)
+                .put("succeeded", succeeded)
+                .put("failed", errors.size())
+                .put("errors", errors));
+    }
+}
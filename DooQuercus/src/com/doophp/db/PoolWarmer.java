@@ -0,0 +1,209 @@
+package com.doophp.db;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.asyncsql.AsyncSQLClient;
+import io.vertx.ext.sql.SQLConnection;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps min_pool_size connections of a pool (and of each of its read replicas) open and validated.
+ *
+ * warmUp() opens the connections in parallel and holds them until all are open, so the pool really creates them
+ * instead of handing the same idle connection out again, then runs validation_query on each and gives them back.
+ * Every keep_alive_interval_ms the same number of connections is taken and validated, connections that fail are
+ * dropped by the pool and replaced on the next round. A round is skipped while the pool is busy, its connections
+ * are in use and alive anyway.
+ */
+public class PoolWarmer {
+
+    protected static final Map<String, PoolWarmer> pools = new ConcurrentHashMap<>();
+
+    protected final Vertx vertx;
+    protected final String poolName;
+    protected final int minSize;
+    protected final String validationQuery;
+    protected final SQLClient client;
+    protected List<Handler<AsyncResult<JsonObject>>> waiting;
+    protected JsonObject warmed;
+    protected long keepAliveTimer = -1;
+    protected long rounds = 0;
+    protected long validated = 0;
+    protected long failures = 0;
+    protected long lastRound = 0;
+
+    public PoolWarmer(Vertx vertx, String poolName, int minSize, String validationQuery, SQLClient client) {
+        this.vertx = vertx;
+        this.poolName = poolName;
+        this.minSize = minSize;
+        this.validationQuery = validationQuery;
+        this.client = client;
+    }
+
+    /**
+     * Warmer of a pool, null when "min_pool_size" is not above 0. "min_pool_size" is capped by maxPoolSize,
+     * "keep_alive_interval_ms" (30000, 0 turns it off) and "validation_query" ("SELECT 1") drive the keep-alive rounds.
+     */
+    public static PoolWarmer forPool(Vertx vertx, String poolName, JsonObject config, SQLClient client) {
+        int minSize = Math.min(config.getInteger("min_pool_size", 0), config.getInteger("maxPoolSize", 10));
+        if (minSize <= 0) {
+            return null;
+        }
+        return pools.computeIfAbsent(poolName, name -> {
+            PoolWarmer warmer = new PoolWarmer(vertx, name, minSize, config.getString("validation_query", "SELECT 1"), client);
+            long intervalMs = config.getLong("keep_alive_interval_ms", 30000L);
+            if (intervalMs > 0) {
+                warmer.keepAliveTimer = vertx.setPeriodic(intervalMs, id -> warmer.keepAlive());
+            }
+            return warmer;
+        });
+    }
+
+    public static PoolWarmer get(String poolName) {
+        return pools.get(poolName);
+    }
+
+    /**
+     * Opens the pool's connections once, later calls (and calls made while it runs) get the result of the first.
+     * The result holds opened/failed counts per pool and the time it took.
+     */
+    public void warmUp(Handler<AsyncResult<JsonObject>> handler) {
+        synchronized (this) {
+            if (warmed == null) {
+                boolean running = waiting != null;
+                if (!running) {
+                    waiting = new ArrayList<>();
+                }
+                waiting.add(handler);
+                if (running) {
+                    return;
+                }
+            }
+        }
+        if (warmed != null) {
+            handler.handle(Future.succeededFuture(warmed));
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        validateAll(result -> {
+            result.put("ms", System.currentTimeMillis() - start);
+            List<Handler<AsyncResult<JsonObject>>> handlers;
+            synchronized (this) {
+                warmed = result;
+                handlers = waiting;
+                waiting = null;
+            }
+            client.logInfo("SQL pool {} warmed up: {}", poolName, result.encode());
+            for (Handler<AsyncResult<JsonObject>> h : handlers) {
+                h.handle(Future.succeededFuture(result));
+            }
+        });
+    }
+
+    protected void keepAlive() {
+        SQLMetrics metrics = SQLMetrics.get(poolName);
+        if (metrics != null && metrics.getInUse() > 0) {
+            return;
+        }
+        validateAll(result -> {
+            rounds++;
+            lastRound = System.currentTimeMillis();
+        });
+    }
+
+    /**
+     * Validates minSize connections of the primary and of every replica at the same time.
+     */
+    protected void validateAll(Handler<JsonObject> done) {
+        Map<String, AsyncSQLClient> targets = new LinkedHashMap<>();
+        targets.put("primary", client.sqlClient());
+        if (client.getReplicas() != null) {
+            for (ReplicaPool.Replica replica : client.getReplicas().getReplicas()) {
+                targets.put(replica.name, replica.client);
+            }
+        }
+        JsonObject result = new JsonObject();
+        int[] pending = {targets.size()};
+        for (Map.Entry<String, AsyncSQLClient> target : targets.entrySet()) {
+            validate(target.getValue(), stats -> {
+                result.put(target.getKey(), stats);
+                if (--pending[0] == 0) {
+                    done.handle(result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Takes minSize connections of pool at once, runs the validation query on each and releases them together.
+     */
+    protected void validate(AsyncSQLClient pool, Handler<JsonObject> done) {
+        List<SQLConnection> held = new ArrayList<>();
+        int[] pending = {minSize};
+        int[] failed = {0};
+        Handler<SQLConnection> finished = conn -> {
+            if (conn != null) {
+                held.add(conn);
+            }
+            if (--pending[0] > 0) {
+                return;
+            }
+            for (SQLConnection c : held) {
+                c.close();
+            }
+            synchronized (this) {
+                validated += held.size();
+                failures += failed[0];
+            }
+            done.handle(new JsonObject().put("opened", held.size()).put("failed", failed[0]));
+        };
+
+        for (int i = 0; i < minSize; i++) {
+            pool.getConnection(res -> {
+                if (res.failed()) {
+                    failed[0]++;
+                    client.logError("SQL pool " + poolName + " validation failed to connect", res.cause());
+                    finished.handle(null);
+                    return;
+                }
+                SQLConnection conn = res.result();
+                conn.query(validationQuery, q -> {
+                    if (q.failed()) {
+                        failed[0]++;
+                        client.logError("SQL pool " + poolName + " validation query failed", q.cause());
+                        conn.close();
+                        finished.handle(null);
+                        return;
+                    }
+                    finished.handle(conn);
+                });
+            });
+        }
+    }
+
+    public synchronized JsonObject stats() {
+        return new JsonObject()
+                .put("min_size", minSize)
+                .put("warmed", warmed)
+                .put("keep_alive_rounds", rounds)
+                .put("last_keep_alive", lastRound)
+                .put("validated", validated)
+                .put("failures", failures);
+    }
+
+    public void close() {
+        if (keepAliveTimer != -1) {
+            vertx.cancelTimer(keepAliveTimer);
+        }
+        pools.remove(poolName, this);
+    }
+}
@@ -0,0 +1,311 @@
+package com.doophp.db;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * LRU cache of query results keyed by SQL + params, bounded by an estimate of the bytes held rather than entry count.
+ * Every entry is indexed by the tables it reads so a write to one of those tables drops it.
+ *
+ * Invalidations bump a generation per table. A read takes generation() before it runs and passes it to put(),
+ * which skips the result when one of its tables was invalidated in between, so a slow read can't cache data older
+ * than a write that already finished.
+ */
+public class QueryCache {
+
+    protected static final Pattern TABLE_PATTERN = Pattern.compile("(?i)\\b(JOIN|INTO|UPDATE|TABLE|TRUNCATE)\\s+([`\"\\w.]+)");
+    protected static final Pattern FROM_PATTERN = Pattern.compile("(?i)\\bFROM\\b");
+    protected static final Pattern TABLE_NAME = Pattern.compile("[`\"\\w.]+");
+    /**
+     * Words that end a FROM list, an identifier after a table that isn't one of them is its alias.
+     */
+    protected static final Set<String> CLAUSE_WORDS = new HashSet<>(Arrays.asList("where", "group", "order", "limit", "having",
+            "union", "except", "intersect", "join", "inner", "left", "right", "cross", "natural", "full", "straight_join",
+            "on", "using", "set", "for", "returning", "window", "offset", "fetch", "lock"));
+
+    protected static class Entry {
+        final ResultSet rs;
+        final Set<String> tables;
+        final long expiresAt;
+        final long bytes;
+
+        Entry(ResultSet rs, Set<String> tables, long expiresAt, long bytes) {
+            this.rs = rs;
+            this.tables = tables;
+            this.expiresAt = expiresAt;
+            this.bytes = bytes;
+        }
+    }
+
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    protected final Map<String, Set<String>> tableKeys = new HashMap<>();
+    protected final Map<String, Long> tableGenerations = new HashMap<>();
+    protected long generation = 0;
+    protected long cleared = 0;
+    protected long maxBytes;
+    protected long bytes = 0;
+
+    public long hits = 0;
+    public long misses = 0;
+    public long evictions = 0;
+    public long invalidations = 0;
+
+    public QueryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static String key(String sql, JsonArray params) {
+        return params == null || params.isEmpty() ? sql : sql + "\u0000" + params.encode();
+    }
+
+    public synchronized ResultSet get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            remove(key);
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.rs;
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized void put(String key, ResultSet rs, Set<String> tables, long ttlMs) {
+        put(key, rs, tables, ttlMs, Long.MAX_VALUE);
+    }
+
+    /**
+     * Caches rs unless one of its tables was invalidated after readGeneration (taken with generation() before the read).
+     */
+    public synchronized void put(String key, ResultSet rs, Set<String> tables, long ttlMs, long readGeneration) {
+        if (cleared > readGeneration) {
+            return;
+        }
+        for (String table : tables) {
+            Long invalidated = tableGenerations.get(table);
+            if (invalidated != null && invalidated > readGeneration) {
+                return;
+            }
+        }
+        long size = estimateBytes(key, rs);
+        if (size > maxBytes) {
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(rs, tables, System.currentTimeMillis() + ttlMs, size));
+        bytes += size;
+        for (String table : tables) {
+            tableKeys.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+        }
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            unindex(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops every cached result that reads from any of the tables.
+     */
+    public synchronized void invalidate(Collection<String> tables) {
+        generation++;
+        for (String table : tables) {
+            tableGenerations.put(table, generation);
+            Set<String> keys = tableKeys.remove(table);
+            if (keys == null) {
+                continue;
+            }
+            for (String key : keys) {
+                if (remove(key)) {
+                    invalidations++;
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        // reads in flight must not fill the cache again with what was there
+        cleared = ++generation;
+        entries.clear();
+        tableKeys.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    protected boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        unindex(key, entry);
+        return true;
+    }
+
+    protected void unindex(String key, Entry entry) {
+        bytes -= entry.bytes;
+        for (String table : entry.tables) {
+            Set<String> keys = tableKeys.get(table);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    tableKeys.remove(table);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rough heap footprint of a cached result, strings as 2 bytes per char plus a fixed overhead per value.
+     */
+    protected static long estimateBytes(String key, ResultSet rs) {
+        long size = 64 + key.length() * 2;
+        List<JsonArray> results = rs.getResults();
+        if (results == null) {
+            return size;
+        }
+        for (JsonArray row : results) {
+            size += 32;
+            for (int i = 0; i < row.size(); i++) {
+                Object val = row.getValue(i);
+                size += 16 + (val instanceof String ? ((String) val).length() * 2 : 8);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Table names a statement reads or writes, lower cased without schema or quotes.
+     * A best effort scan of FROM/JOIN/INTO/UPDATE clauses, pass explicit table tags for anything it can't see.
+     */
+    public static Set<String> tablesOf(String sql) {
+        Set<String> tables = new HashSet<>();
+        Matcher m = TABLE_PATTERN.matcher(sql);
+        while (m.find()) {
+            addTable(tables, m.group(2));
+        }
+        // every FROM is scanned, so tables of subqueries in FROM/JOIN/WHERE are found too
+        m = FROM_PATTERN.matcher(sql);
+        while (m.find()) {
+            fromList(sql, m.end(), tables);
+        }
+        return tables;
+    }
+
+    public static String normalizeTable(String name) {
+        String table = name.replace("`", "").replace("\"", "").toLowerCase();
+        int dot = table.lastIndexOf('.');
+        return dot > -1 ? table.substring(dot + 1) : table;
+    }
+
+    /**
+     * Tables of the comma separated list after a FROM at pos. A derived table "(SELECT ...) alias" is skipped as a whole,
+     * the FROM inside it is scanned on its own.
+     */
+    protected static void fromList(String sql, int pos, Set<String> tables) {
+        int len = sql.length();
+        while (true) {
+            pos = skipSpace(sql, pos);
+            if (pos < len && sql.charAt(pos) == '(') {
+                pos = closingParen(sql, pos);
+            } else {
+                String name = word(sql, pos);
+                if (name == null) {
+                    return;
+                }
+                pos += name.length();
+                if (name.equalsIgnoreCase("lateral") || name.equalsIgnoreCase("only")) {
+                    continue;
+                }
+                if (CLAUSE_WORDS.contains(name.toLowerCase())) {
+                    return;
+                }
+                addTable(tables, name);
+            }
+            // optional [AS] alias
+            pos = skipSpace(sql, pos);
+            String alias = word(sql, pos);
+            if (alias != null && alias.equalsIgnoreCase("as")) {
+                pos = skipSpace(sql, pos + alias.length());
+                alias = word(sql, pos);
+            }
+            if (alias != null && !CLAUSE_WORDS.contains(alias.toLowerCase())) {
+                pos = skipSpace(sql, pos + alias.length());
+            }
+            if (pos >= len || sql.charAt(pos) != ',') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    protected static String word(String sql, int pos) {
+        Matcher m = TABLE_NAME.matcher(sql).region(pos, sql.length());
+        return m.lookingAt() ? m.group() : null;
+    }
+
+    protected static int skipSpace(String sql, int pos) {
+        while (pos < sql.length() && Character.isWhitespace(sql.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Position after the parenthesis matching the one at pos, skipping quoted text.
+     */
+    protected static int closingParen(String sql, int pos) {
+        int depth = 0;
+        char quote = 0;
+        for (int i = pos; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return sql.length();
+    }
+
+    protected static void addTable(Set<String> tables, String name) {
+        String table = normalizeTable(name);
+        if (!table.isEmpty()) {
+            tables.add(table);
+        }
+    }
+}
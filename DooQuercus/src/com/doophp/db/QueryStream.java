@@ -0,0 +1,166 @@
+package com.doophp.db;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.env.Value;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.SQLRowStream;
+
+/**
+ * Feeds a SQLRowStream to PHP in fixed size batches of rows.
+ *
+ * The stream is paused while onBatch runs and resumed once it returns. onBatch is called with
+ * (array $rows, int $totalRows, QueryStream $stream). Returning false stops the query early.
+ * To keep the stream paused after returning (eg. waiting for an async write to drain), call
+ * $stream->hold() inside onBatch and $stream->resume() when ready for the next batch.
+ */
+public class QueryStream {
+
+    protected Env env;
+    protected SQLConnection conn;
+    protected SQLRowStream stream;
+    protected int batchSize;
+    protected Callable onBatch;
+    protected Callable onEnd;
+    protected Callable onError;
+
+    protected StringValue[] keys;
+    protected ArrayValue batch;
+    protected int batchCount = 0;
+    protected long totalRows = 0;
+    protected boolean held = false;
+    protected boolean finished = false;
+
+    public QueryStream(Env env, SQLConnection conn, SQLRowStream stream, int batchSize, Callable onBatch, Callable onEnd, Callable onError) {
+        this.env = env;
+        this.conn = conn;
+        this.stream = stream;
+        this.batchSize = batchSize < 1 ? 1 : batchSize;
+        this.onBatch = onBatch;
+        this.onEnd = onEnd;
+        this.onError = onError;
+        this.keys = ResultSetHydrator.columnKeys(env, stream.columns());
+        this.batch = new ArrayValueImpl();
+    }
+
+    public void start() {
+        stream.exceptionHandler(this::fail);
+        stream.resultSetClosedHandler(v -> stream.moreResults());
+        stream.endHandler(v -> end());
+        stream.handler(this::row);
+    }
+
+    protected void row(JsonArray result) {
+        if (finished) {
+            return;
+        }
+        batch.append(ResultSetHydrator.toRow(env, keys, result));
+        batchCount++;
+        totalRows++;
+
+        if (batchCount >= batchSize) {
+            stream.pause();
+            if (deliver()) {
+                if (!held) {
+                    stream.resume();
+                }
+            } else {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Hands the pending batch to PHP. Returns false when the callable asked to stop or threw, an exception closes
+     * the stream and connection and goes to onError.
+     */
+    protected boolean deliver() {
+        if (batchCount == 0) {
+            return true;
+        }
+        ArrayValue rows = batch;
+        batch = new ArrayValueImpl();
+        batchCount = 0;
+
+        if (onBatch == null) {
+            return true;
+        }
+        Value ret;
+        try {
+            ret = onBatch.call(env, rows, env.wrapJava(totalRows), env.wrapJava(this));
+        } catch (RuntimeException e) {
+            fail(e);
+            return false;
+        }
+        return !(ret.isBoolean() && !ret.toBoolean());
+    }
+
+    protected void end() {
+        if (finished) {
+            return;
+        }
+        if (!deliver()) {
+            close();
+            return;
+        }
+        finished = true;
+        conn.close();
+        if (onEnd != null) {
+            onEnd.call(env, env.wrapJava(totalRows));
+        }
+    }
+
+    protected void fail(Throwable err) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        stream.close();
+        conn.close();
+        if (onError != null) {
+            onError.call(env, env.wrapJava(err));
+        }
+    }
+
+    /**
+     * Keep the stream paused after the current onBatch returns.
+     */
+    public void hold() {
+        held = true;
+    }
+
+    public void resume() {
+        held = false;
+        if (!finished) {
+            stream.resume();
+        }
+    }
+
+    /**
+     * Stop streaming, release the connection and report the rows delivered so far to onEnd.
+     */
+    public void close() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        stream.close(res -> {
+            conn.close();
+            if (onEnd != null) {
+                onEnd.call(env, env.wrapJava(totalRows));
+            }
+        });
+    }
+
+    public long getTotalRows() {
+        return totalRows;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+}
@@ -0,0 +1,131 @@
+package com.doophp.db;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.ext.asyncsql.AsyncSQLClient;
+import io.vertx.ext.sql.SQLConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read replica pools of a SQLClient. Picks a replica per read either round robin or by the fewest connections in use,
+ * and takes a replica out of rotation for retryMs after it fails to hand out a connection.
+ * A pool is shared by every event loop using the client (SQLClient.forPool()), its counters are atomic.
+ */
+public class ReplicaPool {
+
+    public static final String ROUND_ROBIN = "round_robin";
+    public static final String LEAST_BUSY = "least_busy";
+
+    public static class Replica {
+        public final String name;
+        public final AsyncSQLClient client;
+        public final AtomicInteger busy = new AtomicInteger();
+        public final AtomicLong failures = new AtomicLong();
+        public volatile long downUntil = 0;
+
+        public Replica(String name, AsyncSQLClient client) {
+            this.name = name;
+            this.client = client;
+        }
+
+        public boolean isUp(long now) {
+            return downUntil <= now;
+        }
+    }
+
+    protected List<Replica> replicas = new ArrayList<>();
+    protected String strategy;
+    protected long retryMs;
+    protected final AtomicInteger nextIndex = new AtomicInteger();
+
+    public ReplicaPool(String strategy, long retryMs) {
+        this.strategy = strategy == null ? ROUND_ROBIN : strategy;
+        this.retryMs = retryMs;
+    }
+
+    public void add(String name, AsyncSQLClient client) {
+        replicas.add(new Replica(name, client));
+    }
+
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    public boolean isEmpty() {
+        return replicas.isEmpty();
+    }
+
+    /**
+     * Gets a connection from a healthy replica. Falls back to the primary when every replica is down or failing.
+     */
+    public void getConnection(AsyncSQLClient primary, Handler<AsyncResult<SQLConnection>> handler) {
+        getConnection(primary, handler, replicas.size());
+    }
+
+    protected void getConnection(AsyncSQLClient primary, Handler<AsyncResult<SQLConnection>> handler, int attemptsLeft) {
+        final Replica replica = attemptsLeft > 0 ? pick(System.currentTimeMillis()) : null;
+        if (replica == null) {
+            primary.getConnection(handler);
+            return;
+        }
+
+        replica.busy.incrementAndGet();
+        replica.client.getConnection(res -> {
+            if (res.failed()) {
+                replica.busy.decrementAndGet();
+                markDown(replica);
+                getConnection(primary, handler, attemptsLeft - 1);
+                return;
+            }
+            handler.handle(Future.succeededFuture(new TrackedConnection(res.result(), replica, v -> replica.busy.decrementAndGet())));
+        });
+    }
+
+    protected Replica pick(long now) {
+        int size = replicas.size();
+        if (LEAST_BUSY.equals(strategy)) {
+            Replica best = null;
+            int bestBusy = 0;
+            for (Replica r : replicas) {
+                int busy = r.busy.get();
+                if (r.isUp(now) && (best == null || busy < bestBusy)) {
+                    best = r;
+                    bestBusy = busy;
+                }
+            }
+            return best;
+        }
+        for (int i = 0; i < size; i++) {
+            Replica r = replicas.get(Math.floorMod(nextIndex.getAndIncrement(), size));
+            if (r.isUp(now)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    public void markDown(Replica replica) {
+        replica.failures.incrementAndGet();
+        replica.downUntil = System.currentTimeMillis() + retryMs;
+    }
+
+    public static boolean isConnectionError(Throwable err) {
+        for (Throwable e = err; e != null; e = e.getCause()) {
+            if (e instanceof java.io.IOException || e.getClass().getSimpleName().contains("Connection")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void close() {
+        for (Replica r : replicas) {
+            r.client.close();
+        }
+    }
+}
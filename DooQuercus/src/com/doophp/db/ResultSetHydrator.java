@@ -0,0 +1,120 @@
+package com.doophp.db;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.BooleanValue;
+import com.caucho.quercus.env.DoubleValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.env.Value;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.lang.php.util.PhpTypes;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * Builds Quercus arrays straight from a ResultSet's column names and result rows,
+ * skipping the JsonObject-per-row copy made by ResultSet.getRows() and the second walk done by PhpTypes.arrayFromJson.
+ */
+public class ResultSetHydrator {
+
+    /**
+     * Column name keys as PHP strings, created once per result set and shared by every row.
+     */
+    public static StringValue[] columnKeys(Env env, List<String> columnNames) {
+        StringValue[] keys = new StringValue[columnNames.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = env.createString(columnNames.get(i));
+        }
+        return keys;
+    }
+
+    /**
+     * Row based result, same shape as PhpTypes.arrayFromJson(new JsonArray(rs.getRows())):
+     * array( array('id' => 1, 'name' => 'a'), array('id' => 2, 'name' => 'b') )
+     */
+    public static ArrayValue toRows(Env env, ResultSet rs) {
+        return toRows(env, columnKeys(env, rs.getColumnNames()), rs.getResults());
+    }
+
+    public static ArrayValue toRows(Env env, StringValue[] keys, List<JsonArray> results) {
+        ArrayValue rows = new ArrayValueImpl();
+        if (results == null) {
+            return rows;
+        }
+        for (JsonArray result : results) {
+            rows.append(toRow(env, keys, result));
+        }
+        return rows;
+    }
+
+    public static ArrayValue toRow(Env env, StringValue[] keys, JsonArray result) {
+        ArrayValue row = new ArrayValueImpl();
+        int size = Math.min(keys.length, result.size());
+        for (int i = 0; i < size; i++) {
+            row.append(keys[i], toValue(env, result.getValue(i)));
+        }
+        return row;
+    }
+
+    /**
+     * Columnar result, one list of values per column:
+     * array( 'id' => array(1, 2), 'name' => array('a', 'b') )
+     */
+    public static ArrayValue toColumns(Env env, ResultSet rs) {
+        StringValue[] keys = columnKeys(env, rs.getColumnNames());
+        ArrayValue[] columns = new ArrayValue[keys.length];
+        ArrayValue cols = new ArrayValueImpl();
+
+        for (int i = 0; i < keys.length; i++) {
+            columns[i] = new ArrayValueImpl();
+            cols.append(keys[i], columns[i]);
+        }
+
+        List<JsonArray> results = rs.getResults();
+        if (results == null) {
+            return cols;
+        }
+        for (JsonArray result : results) {
+            int size = Math.min(keys.length, result.size());
+            for (int i = 0; i < size; i++) {
+                columns[i].append(toValue(env, result.getValue(i)));
+            }
+        }
+        return cols;
+    }
+
+    public static Value toValue(Env env, Object val) {
+        if (val == null) {
+            return NullValue.NULL;
+        }
+        if (val instanceof String) {
+            return env.createString((String) val);
+        }
+        if (val instanceof Integer || val instanceof Long || val instanceof Short || val instanceof Byte) {
+            return LongValue.create(((Number) val).longValue());
+        }
+        if (val instanceof Double || val instanceof Float) {
+            return new DoubleValue(((Number) val).doubleValue());
+        }
+        if (val instanceof Boolean) {
+            return ((Boolean) val) ? BooleanValue.TRUE : BooleanValue.FALSE;
+        }
+        if (val instanceof BigDecimal || val instanceof BigInteger) {
+            return env.createString(val.toString());
+        }
+        if (val instanceof JsonObject) {
+            return PhpTypes.arrayFromJson(env, (JsonObject) val);
+        }
+        if (val instanceof JsonArray) {
+            return PhpTypes.arrayFromJson(env, (JsonArray) val);
+        }
+        return env.createString(val.toString());
+    }
+}
@@ -4,8 +4,12 @@ import com.caucho.quercus.env.Callable;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.NullValue;
 import com.caucho.quercus.env.Value;
+import com.doophp.util.AsyncLogger;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
 import io.vertx.core.impl.VertxImpl;
 import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
@@ -16,6 +20,7 @@ import io.vertx.ext.asyncsql.MySQLClient;
 import io.vertx.ext.asyncsql.PostgreSQLClient;
 import io.vertx.ext.sql.ResultSet;
 import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.SQLRowStream;
 import io.vertx.ext.sql.UpdateResult;
 import io.vertx.lang.php.util.PhpTypes;
 import org.jooq.DSLContext;
@@ -24,19 +29,88 @@ import org.jooq.conf.Settings;
 import org.jooq.conf.StatementType;
 import org.jooq.impl.DSL;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 /**
  * Created by leng on 12/27/16.
  */
-public class SQLClient implements SQLClientInterface {
+public class SQLClient implements SQLClientInterface, Cloneable {
+
+    protected static final Map<String, SQLClient> clients = new ConcurrentHashMap<>();
+    protected static final Map<String, DSLContext> dslContexts = new ConcurrentHashMap<>();
+    protected static final Pattern SELECT_PATTERN = Pattern.compile("(?is)\\s*\\(*\\s*SELECT\\b.*");
+    protected static final Pattern SIDE_EFFECT_PATTERN = Pattern.compile("(?i)\\b(FOR\\s+(UPDATE|SHARE|NO\\s+KEY\\s+UPDATE|KEY\\s+SHARE)|LOCK\\s+IN\\s+SHARE\\s+MODE|RETURNING|INTO"
+            + "|NEXTVAL|SETVAL|CURRVAL|LASTVAL|LAST_INSERT_ID|FOUND_ROWS|GET_LOCK|RELEASE_LOCK|RELEASE_ALL_LOCKS|IS_USED_LOCK|IS_FREE_LOCK"
+            + "|PG_(TRY_)?ADVISORY\\w*|SET_CONFIG|PG_NOTIFY|TXID_CURRENT|SLEEP|PG_SLEEP)\\b");
 
     protected VertxImpl vertx;
     protected Logger logger;
     protected DSLContext dsl;
     protected AsyncSQLClient sqlClient;
-    public boolean debugEnabled = true;
+    protected String dialect;
+    protected ReplicaPool replicas;
+    protected QueryCache queryCache;
+    protected String queryCacheAddress;
+    protected final String nodeId = java.util.UUID.randomUUID().toString();
+    /**
+     * Coalesce identical concurrent reads made through query()/queryCached() on the same event loop context,
+     * "query_coalesce" in config, off by default. Only plain SELECTs are shared (see isCoalescable()). A caller that
+     * joins a running read may not see a write it made after that read started, leave it off when that matters.
+     */
+    public boolean coalesceQueries = false;
+    public long coalescedQueries = 0;
+    protected final Map<Context, Map<String, List<Handler<AsyncResult<ResultSet>>>>> inFlight = new ConcurrentHashMap<>();
+    protected GroupCommitWriter groupCommit;
+    protected SQLMetrics metrics;
+    protected SlowQueryLog slowQueryLog;
+    protected ConnectionLeakDetector leakDetector;
+    protected ConcurrencyLimiter limiter;
+    protected CircuitBreaker breaker;
+    protected String callerTag;
+    /**
+     * Registry client of forPool(), shared by every request, its per call settings can't be changed.
+     */
+    protected boolean shared = false;
+    protected Deadline deadline;
+    protected PoolWarmer warmer;
+    protected long groupCommitIntervalMs = 5;
+    protected int groupCommitMaxRows = 500;
+    /**
+     * Statement level debug logging ("debug" in config), messages are only built when this is on and the logger is set.
+     */
+    public boolean debugEnabled = false;
+    protected final AsyncLogger log = new AsyncLogger(null, AsyncLogger.DEBUG);
+
+    /**
+     * Limits for one multi-row INSERT built by batchInsertRaw. Postgres caps bind params at 32767, MySQL at 65535,
+     * max_allowed_packet defaults to 4MB on MySQL 5.7.
+     */
+    public int batchMaxParams = 30000;
+    public int batchMaxPacketBytes = 1024 * 1024;
+    /**
+     * auto_increment_increment of the server, used to derive the keys of every row from the first insert id on MySQL.
+     */
+    public int batchKeyIncrement = 1;
+    /**
+     * Upper bound of pooled connections a non transactional parallel batch may hold at once.
+     */
+    public int batchMaxConcurrency = 4;
+    /**
+     * Bulk loads (see BulkLoad) stream chunks of bulkChunkBytes, at most bulkBufferChunks of them wait for the database,
+     * bulkInsertRows is the batch size when rows are inserted with multi-row INSERTs instead of COPY/LOAD DATA.
+     */
+    public int bulkChunkBytes = 64 * 1024;
+    public int bulkBufferChunks = 16;
+    public int bulkInsertRows = 1000;
+    public boolean bulkLoadNative = true;
 
     public String prefixLogInfo = "[INFO_DB]: ";
     public String prefixLogDebug = "[DEBUG_DB]: ";
@@ -54,97 +128,154 @@ public class SQLClient implements SQLClientInterface {
         return this.vertx;
     }
 
+    public String getDialect() {
+        return this.dialect;
+    }
+
     public void setLogger(Logger logger) {
         this.logger = logger;
+        log.setLogger(logger);
+    }
+
+    public AsyncLogger getLog() {
+        return log;
+    }
+
+    public boolean isDebugEnabled() {
+        return debugEnabled && log.isDebugEnabled();
     }
 
     public void logInfo(Object obj, Object obj2) {
-        if (logger == null) return;
-        logger.info(prefixLogInfo + obj, obj2);
+        log.log(AsyncLogger.INFO, prefixLogInfo, obj, obj2);
     }
 
     public void logInfo(Object obj) {
-        if (logger == null) return;
-        logger.info(prefixLogInfo + obj);
+        log.log(AsyncLogger.INFO, prefixLogInfo, obj);
+    }
+
+    public void logInfo(Object obj, Object arg1, Object arg2) {
+        log.log(AsyncLogger.INFO, prefixLogInfo, obj, arg1, arg2);
     }
 
     public void logDebug(Object obj, Object obj2) {
-        if (logger == null || !debugEnabled) return;
-        logger.debug(prefixLogDebug + obj, obj2);
+        if (!debugEnabled) return;
+        log.log(AsyncLogger.DEBUG, prefixLogDebug, obj, obj2);
     }
 
     public void logDebug(Object obj) {
-        if (logger == null || !debugEnabled) return;
-        logger.debug(prefixLogDebug + obj);
+        if (!debugEnabled) return;
+        log.log(AsyncLogger.DEBUG, prefixLogDebug, obj);
     }
 
     public void logError(Object obj, Object obj2) {
-        if (logger == null) return;
-        logger.error(prefixLogError + obj, obj2);
+        log.log(AsyncLogger.ERROR, prefixLogError, obj, obj2);
     }
 
     public void logError(Object obj) {
-        if (logger == null) return;
-        logger.error(prefixLogError + obj);
+        log.log(AsyncLogger.ERROR, prefixLogError, obj);
+    }
+
+    public void logError(Object obj, Object arg1, Object arg2) {
+        log.log(AsyncLogger.ERROR, prefixLogError, obj, arg1, arg2);
     }
 
     public SQLClient(Env env, VertxImpl vertx, Value configValue, String poolName) {
-        JsonObject config = PhpTypes.arrayToJsonObject(env, configValue);
         this.vertx = vertx;
-        final String dialect = config.getString("sql_dialect").toUpperCase();
-        if (dialect.equals("POSTGRES")) {
-            sqlClient = PostgreSQLClient.createShared(vertx, config, poolName);
-        } else {
-            sqlClient = MySQLClient.createShared(vertx, config, poolName);
-        }
-        Settings settings = new Settings().withStatementType(StatementType.PREPARED_STATEMENT);
-        dsl = DSL.using(SQLDialect.valueOf(dialect), settings);
+        init(PhpTypes.arrayToJsonObject(env, configValue), poolName);
     }
 
     public SQLClient(VertxImpl vertx, String configStr, String poolName) {
-        JsonObject config = new JsonObject(configStr);
         this.vertx = vertx;
-        final String dialect = config.getString("sql_dialect").toUpperCase();
-        if (dialect.equals("POSTGRES")) {
-            sqlClient = PostgreSQLClient.createShared(vertx, config, poolName);
-        } else {
-            sqlClient = MySQLClient.createShared(vertx, config, poolName);
-        }
-        Settings settings = new Settings().withStatementType(StatementType.PREPARED_STATEMENT);
-        dsl = DSL.using(SQLDialect.valueOf(dialect), settings);
+        init(new JsonObject(configStr), poolName);
     }
 
     public SQLClient(VertxImpl vertx, JsonObject config, String poolName) {
 //        JsonObject mySQLClientConfig = new JsonObject().put("sql_dialect", "MYSQL").put("host", "127.0.0.1").put("database", "test").put("username", "root").put("password", "root").put("charset", "UTF-8");
         this.vertx = vertx;
-        final String dialect = config.getString("sql_dialect").toUpperCase();
-        if (dialect.equals("POSTGRES")) {
-            sqlClient = PostgreSQLClient.createShared(vertx, config, poolName);
-        } else {
-            sqlClient = MySQLClient.createShared(vertx, config, poolName);
+        init(config, poolName);
+    }
+
+    /**
+     * Client of a pool shared by the whole process, created with config on first use and reused after that
+     * (config of later calls is ignored). Pools with min_pool_size start warming up right away.
+     * "backend": "jdbc" gives a JDBCSQLClient, the default is the async MySQL/Postgres driver.
+     */
+    public static SQLClient forPool(VertxImpl vertx, JsonObject config, String poolName) {
+        SQLClient client = clients.get(poolName);
+        if (client != null) {
+            return client;
         }
-        Settings settings = new Settings().withStatementType(StatementType.PREPARED_STATEMENT);
-        dsl = DSL.using(SQLDialect.valueOf(dialect), settings);
+        return clients.computeIfAbsent(poolName, name -> {
+            SQLClient created = "jdbc".equals(config.getString("backend")) ? new JDBCSQLClient(vertx, config, name) : new SQLClient(vertx, config, name);
+            created.shared = true;
+            created.warmUp(res -> {});
+            return created;
+        });
+    }
+
+    public static SQLClient forPool(Env env, VertxImpl vertx, Value configValue, String poolName) {
+        SQLClient client = clients.get(poolName);
+        return client != null ? client : forPool(vertx, PhpTypes.arrayToJsonObject(env, configValue), poolName);
     }
 
+    public static SQLClient get(String poolName) {
+        return clients.get(poolName);
+    }
+
+    protected void init(JsonObject config, String poolName) {
+        dialect = config.getString("sql_dialect").toUpperCase();
+        sqlClient = createClient(config, poolName);
+        initReplicas(config, poolName);
+        initQueryCache(config, poolName);
+        if (config.getBoolean("metrics", true)) {
+            metrics = SQLMetrics.forPool(vertx, poolName, config);
+        }
+        leakDetector = ConnectionLeakDetector.forPool(vertx, poolName, config, this);
+        limiter = ConcurrencyLimiter.forPool(vertx, poolName, config);
+        breaker = CircuitBreaker.forPool(poolName, config);
+        if (metrics != null) {
+            metrics.attach(limiter, breaker);
+        }
+        slowQueryLog = SlowQueryLog.forPool(vertx, poolName, config, conf -> createClient(conf, poolName + "-explain"));
+        coalesceQueries = config.getBoolean("query_coalesce", coalesceQueries);
+        debugEnabled = config.getBoolean("debug", debugEnabled);
+        log.setLevel(AsyncLogger.levelOf(config.getString("log_level", "debug")));
+        groupCommitIntervalMs = config.getLong("group_commit_interval_ms", groupCommitIntervalMs);
+        groupCommitMaxRows = config.getInteger("group_commit_max_rows", groupCommitMaxRows);
+        // DSLContext only renders SQL here, one per dialect serves every client
+        dsl = dslContexts.computeIfAbsent(dialect, d -> DSL.using(SQLDialect.valueOf(d), new Settings().withStatementType(StatementType.PREPARED_STATEMENT)));
+        warmer = PoolWarmer.forPool(vertx, poolName, config, this);
+
+        batchMaxParams = config.getInteger("batch_max_params", batchMaxParams);
+        batchMaxPacketBytes = config.getInteger("batch_max_packet_bytes", batchMaxPacketBytes);
+        batchKeyIncrement = config.getInteger("batch_key_increment", batchKeyIncrement);
+        batchMaxConcurrency = Math.min(config.getInteger("batch_max_concurrency", batchMaxConcurrency), config.getInteger("maxPoolSize", 10));
+        bulkChunkBytes = config.getInteger("bulk_chunk_bytes", bulkChunkBytes);
+        bulkBufferChunks = config.getInteger("bulk_buffer_chunks", bulkBufferChunks);
+        bulkInsertRows = config.getInteger("bulk_insert_rows", bulkInsertRows);
+        bulkLoadNative = config.getBoolean("bulk_load_native", bulkLoadNative);
+        // created up front so scoped copies share it, flushes run on a copy taken before any deadline or caller tag is set
+        groupCommit = new GroupCommitWriter(scopedCopy(), groupCommitIntervalMs, groupCommitMaxRows);
+    }
+
+    /**
+     * Calls handler with the warm up result (opened/failed connections per pool) once min_pool_size connections
+     * are open and validated, right away when the pool has no min_pool_size.
+     */
     public void initForPhp(Env env, final Callable handler) {
-        connect(connRes -> {
-            final SQLConnection conn = connRes.result();
+        warmUp(res -> handler.call(env, PhpTypes.arrayFromJson(env, res.result())));
+    }
 
-            startTx(conn, res1 -> {
-                updateRaw(conn, "SELECT 1", null, res2 -> {
-                    commit(conn, resCommit -> {
-                        handler.call(env, env.wrapJava(res2));
-                    });
-                }, null);
-            });
-        });
+    public void warmUp(Handler<AsyncResult<JsonObject>> handler) {
+        if (warmer == null) {
+            handler.handle(Future.succeededFuture(new JsonObject()));
+            return;
+        }
+        warmer.warmUp(handler);
+    }
 
-        query(env, "SELECT 2", handler);
-//        insertWithHandler(env, "INSERT INTO NULL", null, updateResult -> {
-//            handler.call(env, env.wrapJava(updateResult));
-//        }, null);
-        handler.call(env, env.wrapJava(new UpdateResult()));
+    public PoolWarmer getWarmer() {
+        return warmer;
     }
 
     public void query(Env env, String sql, JsonArray params) {
@@ -176,56 +307,167 @@ public class SQLClient implements SQLClientInterface {
     }
 
     public void query(Env env, String sql, JsonArray params, final Callable handler, final Callable errorHandler) {
-        sqlClient.getConnection(res -> {
+        query(env, sql, params, false, handler, errorHandler);
+    }
+
+    public void queryColumnar(Env env, String sql, JsonArray params, final Callable handler, final Callable errorHandler) {
+        query(env, sql, params, true, handler, errorHandler);
+    }
+
+    /**
+     * Runs the query and hands PHP the rows built directly from the result set.
+     * With columnar true the handler gets array('col' => array(v1, v2, ...)) instead of a list of rows.
+     */
+    public void query(Env env, String sql, JsonArray params, boolean columnar, final Callable handler, final Callable errorHandler) {
+        query(env, sql, params, columnar, false, handler, errorHandler);
+    }
+
+    /**
+     * Read-your-writes override, runs the query on the primary even when read replicas are configured.
+     */
+    public void queryPrimary(Env env, String sql, JsonArray params, final Callable handler, final Callable errorHandler) {
+        query(env, sql, params, false, true, handler, errorHandler);
+    }
+
+    protected void query(Env env, String sql, JsonArray params, boolean columnar, boolean usePrimary, final Callable handler, final Callable errorHandler) {
+        queryResultSet(sql, params, usePrimary, res -> {
+            if (res.succeeded()) {
+                if (handler != null) {
+                    callWithResultSet(env, res.result(), columnar, handler);
+                }
+            } else {
+                if (errorHandler != null) {
+                    errorHandler.call(env, env.wrapJava(res.cause()));
+                }
+            }
+        });
+    }
+
+    protected void callWithResultSet(Env env, ResultSet queryRes, boolean columnar, final Callable handler) {
+        if (queryRes == null || queryRes.getNumRows() < 0) {
+            handler.call(env, NullValue.NULL);
+        } else if (columnar) {
+            handler.call(env, toPhpColumns(env, queryRes));
+        } else {
+            handler.call(env, toPhpArray(env, queryRes));
+        }
+    }
+
+    /**
+     * Runs a read query on its own pooled connection and hands back the raw ResultSet, the connection is released
+     * before the handler is called. Connection and query failures both arrive as a failed AsyncResult.
+     */
+    public void queryResultSet(String sql, JsonArray params, boolean usePrimary, Handler<AsyncResult<ResultSet>> handler) {
+        final Context context = Vertx.currentContext();
+        if (!coalesceQueries || usePrimary || context == null || !isCoalescable(sql)) {
+            executeResultSet(sql, params, usePrimary, handler);
+            return;
+        }
+
+        // single flight: identical reads issued on this context while one is running share its result instead of taking another connection
+        final Map<String, List<Handler<AsyncResult<ResultSet>>>> running = inFlight.computeIfAbsent(context, c -> new ConcurrentHashMap<>());
+        final String key = QueryCache.key(sql, params);
+        List<Handler<AsyncResult<ResultSet>>> waiting = running.get(key);
+        if (waiting != null) {
+            // the shared query may die with the deadline of the request that started it, run again within our own budget
+            waiting.add(res -> {
+                if (res.failed() && res.cause() instanceof SQLDeadlineException && (deadline == null || !deadline.isExpired())) {
+                    executeResultSet(sql, params, false, handler);
+                } else {
+                    handler.handle(res);
+                }
+            });
+            coalescedQueries++;
+            return;
+        }
+        final List<Handler<AsyncResult<ResultSet>>> handlers = new ArrayList<>();
+        handlers.add(handler);
+        running.put(key, handlers);
+
+        executeResultSet(sql, params, false, res -> {
+            running.remove(key);
+            if (running.isEmpty()) {
+                inFlight.remove(context, running);
+            }
+            for (Handler<AsyncResult<ResultSet>> h : handlers) {
+                h.handle(res);
+            }
+        });
+    }
+
+    /**
+     * A plain SELECT that neither locks rows nor calls a function with side effects (sequences, locks, sleep),
+     * so running it once for several callers gives each the same answer it would have got on its own.
+     * Your own functions with side effects are not recognised, don't turn coalescing on for those.
+     */
+    protected static boolean isCoalescable(String sql) {
+        return SELECT_PATTERN.matcher(sql).matches() && !SIDE_EFFECT_PATTERN.matcher(sql).find();
+    }
+
+    protected void executeResultSet(String sql, JsonArray params, boolean usePrimary, Handler<AsyncResult<ResultSet>> handler) {
+        connection(usePrimary, sql, res -> {
             if (res.succeeded()) {
-                logDebug("Executing SQL Query: " + sql);
+                logDebug("Executing SQL Query: {}", sql);
                 final SQLConnection conn = res.result();
                 Handler<AsyncResult<ResultSet>> resultHandler = new Handler<AsyncResult<ResultSet>>() {
                     @Override
                     public void handle(final AsyncResult<ResultSet> res2) {
-                        if (res2.succeeded()) {
-                            ResultSet queryRes = res2.result();
-                            JsonArray rows = null;
-                            if (queryRes != null && queryRes.getNumRows() >= 0) {
-//                                logDebug("No. of rows: " + queryRes.getNumRows());
-                                rows = new JsonArray(queryRes.getRows());
-//                            for (JsonObject row : rows) {
-//                                logDebug(row.getInteger("id"));
-//                                logDebug(row.getString("first_name"));
-//                            }
-                            }
-                            if (handler != null) {
-                                if (rows == null) {
-                                    handler.call(env, NullValue.NULL);
-                                } else {
-//                                    logDebug("STRING: " + queryRes.toJson() + "");
-                                    handler.call(env, PhpTypes.arrayFromJson(env, rows));
-                                }
-                            }
-
-                        } else {
-                            if (res2.failed()) {
-                                logError("SQL Query Failed! " + sql, res2.cause());
-                            }
-                            if (errorHandler != null) {
-                                errorHandler.call(env, env.wrapJava(res2.cause()));
-                            }
+                        if (res2.failed()) {
+                            logError("SQL Query Failed! {}", sql, res2.cause());
+                            readFailed(conn, res2.cause());
                         }
                         conn.close();
+                        handler.handle(res2);
                     }
                 };
 
                 if (params == null) {
-                    conn.query(sql, resultHandler);
+                    conn.query(sql, timed(sql, null, resultHandler));
                 } else {
-                    logDebug("Query Params = " + params.encode());
-                    conn.queryWithParams(sql, params, resultHandler);
+                    logDebug("Query Params = {}", params);
+                    conn.queryWithParams(sql, params, timed(sql, params, resultHandler));
                 }
             } else {
                 // Failed to get connection - deal with it
-                if (res.failed()) {
-                    logError("SQL Connection Failed!", res.cause());
+                logError("SQL Connection Failed!", res.cause());
+                handler.handle(Future.failedFuture(res.cause()));
+            }
+        });
+    }
+
+    /**
+     * Opt-in cached read. Results are kept for ttlMs (or until a write through this client touches one of the tables
+     * the query reads) and every caller gets its own PHP array built from the cached result.
+     * Tables are detected from the SQL, use the tables argument when the query hides them (views, functions).
+     */
+    public void queryCached(Env env, String sql, JsonArray params, long ttlMs, final Callable handler, final Callable errorHandler) {
+        queryCached(env, sql, params, ttlMs, null, handler, errorHandler);
+    }
+
+    public void queryCached(Env env, String sql, JsonArray params, long ttlMs, JsonArray tables, final Callable handler, final Callable errorHandler) {
+        if (queryCache == null) {
+            query(env, sql, params, handler, errorHandler);
+            return;
+        }
+        final String key = QueryCache.key(sql, params);
+        ResultSet cached = queryCache.get(key);
+        if (cached != null) {
+            if (handler != null) {
+                callWithResultSet(env, cached, false, handler);
+            }
+            return;
+        }
+
+        final long generation = queryCache.generation();
+        queryResultSet(sql, params, false, res -> {
+            if (res.succeeded()) {
+                if (res.result() != null) {
+                    queryCache.put(key, res.result(), cacheTables(sql, tables), ttlMs, generation);
                 }
+                if (handler != null) {
+                    callWithResultSet(env, res.result(), false, handler);
+                }
+            } else {
                 if (errorHandler != null) {
                     errorHandler.call(env, env.wrapJava(res.cause()));
                 }
@@ -233,10 +475,95 @@ public class SQLClient implements SQLClientInterface {
         });
     }
 
+    protected Set<String> cacheTables(String sql, JsonArray tags) {
+        Set<String> tables = QueryCache.tablesOf(sql);
+        if (tags != null) {
+            for (int i = 0; i < tags.size(); i++) {
+                tables.add(QueryCache.normalizeTable(tags.getString(i)));
+            }
+        }
+        return tables;
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Drops cached results of the tables on this node and publishes the invalidation so every node in the cluster does the same.
+     */
+    public void invalidateTables(Collection<String> tables) {
+        if (queryCache == null || tables.isEmpty()) {
+            return;
+        }
+        queryCache.invalidate(tables);
+        vertx.eventBus().publish(queryCacheAddress, new JsonObject()
+                .put("node", nodeId)
+                .put("tables", new JsonArray(new ArrayList<>(tables))));
+    }
+
+    public void invalidateTables(JsonArray tables) {
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < tables.size(); i++) {
+            names.add(QueryCache.normalizeTable(tables.getString(i)));
+        }
+        invalidateTables(names);
+    }
+
+    /**
+     * Called after a write statement succeeded, invalidates cached reads of the tables it touched.
+     */
+    protected void tablesWritten(String sql) {
+        if (queryCache != null) {
+            invalidateTables(QueryCache.tablesOf(sql));
+        }
+    }
+
+    /**
+     * Same for a statement run on conn. Inside a transaction the tables are kept on the connection and invalidated
+     * once after the commit (see TrackedConnection), a rollback leaves the cache alone.
+     */
+    protected void tablesWritten(SQLConnection conn, String sql) {
+        if (queryCache == null) {
+            return;
+        }
+        if (conn instanceof TrackedConnection && ((TrackedConnection) conn).inTransaction()) {
+            ((TrackedConnection) conn).tablesWritten(QueryCache.tablesOf(sql));
+            return;
+        }
+        invalidateTables(QueryCache.tablesOf(sql));
+    }
+
+    /**
+     * "query_cache_max_bytes" > 0 turns the result cache on, "query_cache_address" is the event bus address
+     * nodes use to tell each other which tables changed.
+     */
+    protected void initQueryCache(JsonObject config, String poolName) {
+        long maxBytes = config.getLong("query_cache_max_bytes", 0L);
+        if (maxBytes <= 0) {
+            return;
+        }
+        queryCache = new QueryCache(maxBytes);
+        queryCacheAddress = config.getString("query_cache_address", "doo.sql.cache.invalidate." + poolName);
+
+        vertx.eventBus().<JsonObject>consumer(queryCacheAddress, msg -> {
+            JsonObject body = msg.body();
+            if (nodeId.equals(body.getString("node"))) {
+                return;
+            }
+            JsonArray tables = body.getJsonArray("tables");
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < tables.size(); i++) {
+                names.add(tables.getString(i));
+            }
+            queryCache.invalidate(names);
+        });
+    }
+
     public void queryWithHandler(Env env, String sql, JsonArray params, Handler<JsonArray> handler, final Callable errorHandler) {
-        sqlClient.getConnection(res -> {
+        connection(false, sql, res -> {
             if (res.succeeded()) {
-                logDebug("Executing SQL Query: " + sql);
+                logDebug("Executing SQL Query: {}", sql);
                 final SQLConnection conn = res.result();
                 Handler<AsyncResult<ResultSet>> resultHandler = new Handler<AsyncResult<ResultSet>>() {
                     @Override
@@ -253,7 +580,8 @@ public class SQLClient implements SQLClientInterface {
 
                         } else {
                             if (res2.failed()) {
-                                logError("SQL Query Failed! " + sql, res2.cause());
+                                logError("SQL Query Failed! {}", sql, res2.cause());
+                                readFailed(conn, res2.cause());
                             }
                             if (errorHandler != null) {
                                 errorHandler.call(env, env.wrapJava(res2.cause()));
@@ -264,10 +592,10 @@ public class SQLClient implements SQLClientInterface {
                 };
 
                 if (params == null) {
-                    conn.query(sql, resultHandler);
+                    conn.query(sql, timed(sql, null, resultHandler));
                 } else {
-                    logDebug("Query Params = " + params.encode());
-                    conn.queryWithParams(sql, params, resultHandler);
+                    logDebug("Query Params = {}", params);
+                    conn.queryWithParams(sql, params, timed(sql, params, resultHandler));
                 }
             } else {
                 // Failed to get connection - deal with it
@@ -282,6 +610,50 @@ public class SQLClient implements SQLClientInterface {
     }
 
 
+    /**
+     * Streams the result to PHP in batches of batchSize rows instead of materializing it in one array.
+     * See QueryStream for the onBatch contract.
+     */
+    public void queryStream(Env env, String sql, JsonArray params, int batchSize, final Callable onBatch, final Callable onEnd, final Callable onError) {
+        connection(false, sql, res -> {
+            if (res.succeeded()) {
+                logDebug("Executing SQL Stream Query: {}", sql);
+                final SQLConnection conn = res.result();
+                Handler<AsyncResult<SQLRowStream>> streamHandler = new Handler<AsyncResult<SQLRowStream>>() {
+                    @Override
+                    public void handle(final AsyncResult<SQLRowStream> res2) {
+                        if (res2.succeeded()) {
+                            new QueryStream(env, conn, res2.result(), batchSize, onBatch, onEnd, onError).start();
+                        } else {
+                            logError("SQL Stream Query Failed! {}", sql, res2.cause());
+                            readFailed(conn, res2.cause());
+                            conn.close();
+                            if (onError != null) {
+                                onError.call(env, env.wrapJava(res2.cause()));
+                            }
+                        }
+                    }
+                };
+
+                if (params == null) {
+                    conn.queryStream(sql, timed(sql, null, streamHandler));
+                } else {
+                    logDebug("Query Params = {}", params);
+                    conn.queryStreamWithParams(sql, params, timed(sql, params, streamHandler));
+                }
+            } else {
+                // Failed to get connection - deal with it
+                if (res.failed()) {
+                    logError("SQL Connection Failed!", res.cause());
+                }
+                if (onError != null) {
+                    onError.call(env, env.wrapJava(res.cause()));
+                }
+            }
+        });
+    }
+
+
     public void insert(Env env, String sql, JsonArray params) {
         update(env, sql, params, null, null);
     }
@@ -391,21 +763,22 @@ public class SQLClient implements SQLClientInterface {
     }
 
     public void update(Env env, String sql, JsonArray params, final Callable handler, final Callable errorHandler) {
-        sqlClient.getConnection(res -> {
+        connection(true, sql, res -> {
             if (res.succeeded()) {
-                logDebug("Executing SQL Update Query : " + sql);
+                logDebug("Executing SQL Update Query : {}", sql);
                 final SQLConnection conn = res.result();
                 Handler<AsyncResult<UpdateResult>> resultHandler = new Handler<AsyncResult<UpdateResult>>() {
                     @Override
                     public void handle(final AsyncResult<UpdateResult> res2) {
                         if (res2.succeeded()) {
                             UpdateResult queryRes = res2.result();
+                            tablesWritten(sql);
                             if (handler != null) {
                                 handler.call(env, PhpTypes.arrayFromJson(env, queryRes.toJson()));
                             }
                         } else {
                             if (res2.failed()) {
-                                logError("SQL Update Query Failed! " + sql, res2.cause());
+                                logError("SQL Update Query Failed! {}", sql, res2.cause());
                             }
                             if (errorHandler != null) {
                                 errorHandler.call(env, env.wrapJava(res2.cause()));
@@ -416,10 +789,10 @@ public class SQLClient implements SQLClientInterface {
                 };
 
                 if (params == null) {
-                    conn.update(sql, resultHandler);
+                    conn.update(sql, timed(sql, null, resultHandler));
                 } else {
-                    logDebug("Query Params = " + params.encode());
-                    conn.updateWithParams(sql, params, resultHandler);
+                    logDebug("Query Params = {}", params);
+                    conn.updateWithParams(sql, params, timed(sql, params, resultHandler));
                 }
             } else {
                 // Failed to get connection - deal with it
@@ -442,19 +815,20 @@ public class SQLClient implements SQLClientInterface {
     }
 
     public void updateWithHandler(Env env, String sql, JsonArray params, final Handler<UpdateResult> callbackHandler, final Callable errorHandler) {
-        sqlClient.getConnection(res -> {
+        connection(true, sql, res -> {
             if (res.succeeded()) {
-                logDebug("Executing SQL Update Query : " + sql);
+                logDebug("Executing SQL Update Query : {}", sql);
                 final SQLConnection conn = res.result();
                 Handler<AsyncResult<UpdateResult>> resultHandler = new Handler<AsyncResult<UpdateResult>>() {
                     @Override
                     public void handle(final AsyncResult<UpdateResult> res2) {
                         if (res2.succeeded()) {
                             UpdateResult queryRes = res2.result();
+                            tablesWritten(sql);
                             callbackHandler.handle(queryRes);
                         } else {
                             if (res2.failed()) {
-                                logError("SQL Update Query Failed! " + sql, res2.cause());
+                                logError("SQL Update Query Failed! {}", sql, res2.cause());
                             }
                             if (errorHandler != null) {
                                 errorHandler.call(env, env.wrapJava(res2.cause()));
@@ -465,10 +839,10 @@ public class SQLClient implements SQLClientInterface {
                 };
 
                 if (params == null) {
-                    conn.update(sql, resultHandler);
+                    conn.update(sql, timed(sql, null, resultHandler));
                 } else {
-                    logDebug("Query Params = " + params.encode());
-                    conn.updateWithParams(sql, params, resultHandler);
+                    logDebug("Query Params = {}", params);
+                    conn.updateWithParams(sql, params, timed(sql, params, resultHandler));
                 }
             } else {
                 // Failed to get connection - deal with it
@@ -483,10 +857,31 @@ public class SQLClient implements SQLClientInterface {
     }
 
     public void queryRaw(String sql, JsonArray params, Handler<JsonArray> handler, Handler<Throwable> errorHandler) {
-        sqlClient.getConnection(res -> {
+        queryRaw(sql, params, false, handler, errorHandler);
+    }
+
+    /**
+     * Read-your-writes override of queryRaw, runs on the primary even when read replicas are configured.
+     */
+    public void queryRawPrimary(String sql, JsonArray params, Handler<JsonArray> handler, Handler<Throwable> errorHandler) {
+        queryRaw(sql, params, true, handler, errorHandler);
+    }
+
+    protected void queryRaw(String sql, JsonArray params, boolean usePrimary, Handler<JsonArray> handler, Handler<Throwable> errorHandler) {
+        connection(usePrimary, sql, res -> {
             if (res.succeeded()) {
                 final SQLConnection conn = res.result();
-                queryRaw(conn, sql, params, handler, errorHandler);
+                queryRaw(conn, sql, params, rows -> {
+                    conn.close();
+                    if (handler != null) {
+                        handler.handle(rows);
+                    }
+                }, err -> {
+                    conn.close();
+                    if (errorHandler != null) {
+                        errorHandler.handle(err);
+                    }
+                });
             } else {
                 // Failed to get connection - deal with it
                 if (res.failed()) {
@@ -518,7 +913,8 @@ public class SQLClient implements SQLClientInterface {
                     }
                 } else {
                     if (res2.failed()) {
-                        logError("SQL Query Failed! " + sql, res2.cause());
+                        logError("SQL Query Failed! {}", sql, res2.cause());
+                        readFailed(conn, res2.cause());
                     }
                     if (errorHandler != null) {
                         errorHandler.handle(res2.cause());
@@ -527,13 +923,13 @@ public class SQLClient implements SQLClientInterface {
             }
         };
 
-        logDebug("Executing SQL Query: " + sql);
+        logDebug("Executing SQL Query: {}", sql);
 
         if (params == null) {
-            conn.query(sql, resultHandler);
+            conn.query(sql, timed(sql, null, resultHandler));
         } else {
-            logDebug("Query Params = " + params.encode());
-            conn.queryWithParams(sql, params, resultHandler);
+            logDebug("Query Params = {}", params);
+            conn.queryWithParams(sql, params, timed(sql, params, resultHandler));
         }
     }
 
@@ -543,20 +939,17 @@ public class SQLClient implements SQLClientInterface {
             public void handle(final AsyncResult<ResultSet> res2) {
                 if (res2.succeeded()) {
                     ResultSet queryRes = res2.result();
-                    JsonArray rows = null;
-                    if (queryRes != null && queryRes.getNumRows() >= 0) {
-                        rows = new JsonArray(queryRes.getRows());
-                    }
                     if (done != null) {
-                        if (rows == null) {
+                        if (queryRes == null || queryRes.getNumRows() < 0) {
                             done.call(env);
                         } else {
-                            done.call(env, PhpTypes.arrayFromJson(env, rows), env.wrapJava(conn));
+                            done.call(env, toPhpArray(env, queryRes), env.wrapJava(conn));
                         }
                     }
                 } else {
                     if (res2.failed()) {
-                        logError("SQL Query Failed! " + sql, res2.cause());
+                        logError("SQL Query Failed! {}", sql, res2.cause());
+                        readFailed(conn, res2.cause());
                     }
                     if (errorHandler != null) {
                         errorHandler.call(env, env.wrapJava(res2.cause()), env.wrapJava(conn));
@@ -565,22 +958,32 @@ public class SQLClient implements SQLClientInterface {
             }
         };
 
-        logDebug("Executing SQL Query: " + sql);
+        logDebug("Executing SQL Query: {}", sql);
 
         if (params == null) {
-            conn.query(sql, resultHandler);
+            conn.query(sql, timed(sql, null, resultHandler));
         } else {
-            logDebug("Query Params = " + params.encode());
-            conn.queryWithParams(sql, params, resultHandler);
+            logDebug("Query Params = {}", params);
+            conn.queryWithParams(sql, params, timed(sql, params, resultHandler));
         }
     }
 
 
     public void updateRaw(String sql, JsonArray params, Handler<JsonObject> handler, Handler<Throwable> errorHandler) {
-        sqlClient.getConnection(res -> {
+        connection(true, sql, res -> {
             if (res.succeeded()) {
                 final SQLConnection conn = res.result();
-                updateRaw(conn, sql, params, handler, errorHandler);
+                updateRaw(conn, sql, params, result -> {
+                    conn.close();
+                    if (handler != null) {
+                        handler.handle(result);
+                    }
+                }, err -> {
+                    conn.close();
+                    if (errorHandler != null) {
+                        errorHandler.handle(err);
+                    }
+                });
             } else {
                 // Failed to get connection - deal with it
                 if (res.failed()) {
@@ -596,15 +999,25 @@ public class SQLClient implements SQLClientInterface {
 
 
     public void updateRaw(SQLConnection conn, String sql, JsonArray params, Handler<JsonObject> handler, Handler<Throwable> errorHandler) {
+        updateRaw(conn, sql, params, true, handler, errorHandler);
+    }
+
+    /**
+     * Batch paths pass invalidate = false and invalidate the cache once when the batch is done.
+     */
+    protected void updateRaw(SQLConnection conn, String sql, JsonArray params, boolean invalidate, Handler<JsonObject> handler, Handler<Throwable> errorHandler) {
         Handler<AsyncResult<UpdateResult>> resultHandler = new Handler<AsyncResult<UpdateResult>>() {
             @Override
             public void handle(final AsyncResult<UpdateResult> res2) {
                 if (res2.succeeded()) {
                     UpdateResult queryRes = res2.result();
+                    if (invalidate) {
+                        tablesWritten(conn, sql);
+                    }
                     handler.handle(queryRes.toJson());
                 } else {
                     if (res2.failed()) {
-                        logError("SQL Update Query Failed! " + sql, res2.cause());
+                        logError("SQL Update Query Failed! {}", sql, res2.cause());
                     }
                     if (errorHandler != null) {
                         errorHandler.handle(res2.cause());
@@ -613,13 +1026,13 @@ public class SQLClient implements SQLClientInterface {
             }
         };
 
-        logDebug("Executing SQL Update Query : " + sql);
+        logDebug("Executing SQL Update Query : {}", sql);
 
         if (params == null) {
-            conn.update(sql, resultHandler);
+            conn.update(sql, timed(sql, null, resultHandler));
         } else {
-            logDebug("Query Params = " + params.encode());
-            conn.updateWithParams(sql, params, resultHandler);
+            logDebug("Query Params = {}", params);
+            conn.updateWithParams(sql, params, timed(sql, params, resultHandler));
         }
     }
 
@@ -629,10 +1042,11 @@ public class SQLClient implements SQLClientInterface {
             public void handle(final AsyncResult<UpdateResult> res2) {
                 if (res2.succeeded()) {
                     UpdateResult queryRes = res2.result();
+                    tablesWritten(conn, sql);
                     done.call(env, PhpTypes.arrayFromJson(env, queryRes.toJson()), env.wrapJava(conn));
                 } else {
                     if (res2.failed()) {
-                        logError("SQL Update Query Failed! " + sql, res2.cause());
+                        logError("SQL Update Query Failed! {}", sql, res2.cause());
                     }
                     if (errorHandler != null) {
                         errorHandler.call(env, env.wrapJava(res2.cause()), env.wrapJava(conn));
@@ -641,18 +1055,332 @@ public class SQLClient implements SQLClientInterface {
             }
         };
 
-        logDebug("Executing SQL Update Query : " + sql);
+        logDebug("Executing SQL Update Query : {}", sql);
 
         if (params == null) {
-            conn.update(sql, resultHandler);
+            conn.update(sql, timed(sql, null, resultHandler));
         } else {
-            logDebug("Query Params = " + params.encode());
-            conn.updateWithParams(sql, params, resultHandler);
+            logDebug("Query Params = {}", params);
+            conn.updateWithParams(sql, params, timed(sql, params, resultHandler));
         }
     }
 
     public void connect(Handler<AsyncResult<SQLConnection>> res) {
-        sqlClient.getConnection(res);
+        connection(true, null, res);
+    }
+
+    /**
+     * Connection for a read only statement. Goes to a read replica when replicas are configured and usePrimary is false,
+     * writes, batches and transactions always use connect() which stays on the primary.
+     */
+    public void readConnection(boolean usePrimary, Handler<AsyncResult<SQLConnection>> res) {
+        connection(usePrimary, null, res);
+    }
+
+    /**
+     * Takes a pooled connection for sql (null when the connection is used for more than one statement).
+     * Fails fast with SQLOverloadException while the circuit breaker is open or the concurrency limit and its queue
+     * are full, records the time spent waiting and keeps the pool's in use/waiting counts and checkouts.
+     * With a deadline set the request fails with SQLDeadlineException instead of waiting past it, and the connection
+     * runs its statements with the remaining budget as timeout (see DeadlineConnection).
+     */
+    protected void connection(boolean usePrimary, String sql, Handler<AsyncResult<SQLConnection>> handler) {
+        final Deadline deadline = this.deadline;
+        if (deadline != null && deadline.isExpired()) {
+            expired(deadline, sql, handler);
+            return;
+        }
+        if (metrics == null && leakDetector == null && limiter == null && breaker == null && deadline == null) {
+            poolConnection(usePrimary, handler);
+            return;
+        }
+        if (breaker != null && !breaker.allowRequest()) {
+            rejected(new SQLOverloadException(SQLOverloadException.Reason.CIRCUIT_OPEN, "SQL circuit breaker open, database failing"), handler);
+            return;
+        }
+        final String tag = callerTag;
+        final Throwable site = leakDetector == null ? null : leakDetector.site();
+        if (limiter == null) {
+            checkout(usePrimary, sql, tag, site, false, deadline, handler);
+            return;
+        }
+        limiter.acquire(deadline == null ? Long.MAX_VALUE : deadline.remainingMs(), permit -> {
+            if (deadline != null && deadline.isExpired()) {
+                // queued past the deadline, nobody is waiting for the result any more
+                if (permit.succeeded()) {
+                    limiter.release();
+                }
+                expired(deadline, sql, handler);
+                return;
+            }
+            if (permit.failed()) {
+                rejected(permit.cause(), handler);
+                return;
+            }
+            checkout(usePrimary, sql, tag, site, true, deadline, handler);
+        });
+    }
+
+    protected void expired(Deadline deadline, String sql, Handler<AsyncResult<SQLConnection>> handler) {
+        if (metrics != null) {
+            metrics.connectionExpired();
+        }
+        logDebug("SQL Skipped, request deadline passed: {}", sql);
+        handler.handle(Future.failedFuture(deadline.exceeded(null)));
+    }
+
+    protected void rejected(Throwable err, Handler<AsyncResult<SQLConnection>> handler) {
+        if (metrics != null) {
+            metrics.connectionRejected();
+        }
+        logError("SQL Connection Rejected! {}", err.getMessage());
+        handler.handle(Future.failedFuture(err));
+    }
+
+    protected void checkout(boolean usePrimary, String sql, String tag, Throwable site, boolean limited, Deadline deadline, Handler<AsyncResult<SQLConnection>> handler) {
+        final long start = System.nanoTime();
+        if (metrics != null) {
+            metrics.connectionRequested();
+        }
+        poolConnection(usePrimary, res -> {
+            if (metrics != null) {
+                metrics.connectionAcquired(sql, System.nanoTime() - start, res.succeeded());
+            }
+            if (res.failed()) {
+                if (limited) {
+                    limiter.release();
+                }
+                if (breaker != null) {
+                    breaker.failure();
+                }
+                handler.handle(res);
+                return;
+            }
+            if (breaker != null) {
+                breaker.success();
+            }
+            SQLConnection conn = res.result();
+            Object owner = conn instanceof TrackedConnection ? ((TrackedConnection) conn).getOwner() : null;
+            final ConnectionLeakDetector.Checkout checkout = leakDetector == null ? null : leakDetector.checkout(sql, tag, site);
+            Handler<Void> release = v -> {
+                if (metrics != null) {
+                    metrics.connectionReleased();
+                }
+                if (checkout != null) {
+                    leakDetector.release(checkout);
+                }
+                if (limited) {
+                    limiter.release();
+                }
+            };
+            if (deadline == null) {
+                handler.handle(Future.succeededFuture(new TrackedConnection(conn, owner, release).commitHandler(this::invalidateTables)));
+                return;
+            }
+            DeadlineConnection tracked = new DeadlineConnection(conn, owner, deadline, dialect, release);
+            tracked.commitHandler(this::invalidateTables);
+            if (deadline.isExpired()) {
+                tracked.close();
+                expired(deadline, sql, handler);
+                return;
+            }
+            handler.handle(Future.succeededFuture(tracked));
+        });
+    }
+
+    protected void poolConnection(boolean usePrimary, Handler<AsyncResult<SQLConnection>> handler) {
+        if (usePrimary || replicas == null || replicas.isEmpty()) {
+            sqlClient.getConnection(handler);
+        } else {
+            replicas.getConnection(sqlClient, handler);
+        }
+    }
+
+    /**
+     * Wraps a statement's result handler to record its execution time, row count and failure under the SQL fingerprint,
+     * statements slower than slow_query_ms also go to the slow query log.
+     */
+    protected <T> Handler<AsyncResult<T>> timed(String sql, JsonArray params, Handler<AsyncResult<T>> handler) {
+        if (metrics == null && slowQueryLog == null && limiter == null && breaker == null) {
+            return handler;
+        }
+        final long start = System.nanoTime();
+        final String tag = callerTag;
+        return res -> {
+            long elapsed = System.nanoTime() - start;
+            long rows = res.succeeded() ? rowCount(res.result()) : 0;
+            if (metrics != null) {
+                metrics.executed(sql, elapsed, rows, res.failed());
+            }
+            boolean dbFailure = res.failed() && CircuitBreaker.isFailure(res.cause());
+            if (limiter != null) {
+                limiter.sample(elapsed, dbFailure);
+            }
+            if (breaker != null) {
+                if (dbFailure) {
+                    breaker.failure();
+                } else {
+                    breaker.success();
+                }
+            }
+            if (slowQueryLog != null && slowQueryLog.isSlow(elapsed)) {
+                logInfo("Slow SQL Query ({} ms): {}", elapsed / 1000000, sql);
+                slowQueryLog.record(sql, params, tag, elapsed, rows, res.cause());
+            }
+            handler.handle(res);
+        };
+    }
+
+    protected static long rowCount(Object result) {
+        if (result instanceof ResultSet) {
+            return ((ResultSet) result).getNumRows();
+        }
+        if (result instanceof UpdateResult) {
+            return ((UpdateResult) result).getUpdated();
+        }
+        if (result instanceof List) {
+            return ((List) result).size();
+        }
+        return 0;
+    }
+
+    public SQLMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Pool and per statement latency stats in the Prometheus text format, eg. for a /metrics controller.
+     */
+    public String metricsText() {
+        return metrics == null ? "" : metrics.toText();
+    }
+
+    /**
+     * Tag stored with slow queries issued through this client, eg. the controller or model name.
+     * Not allowed on a client of forPool(), use withCallerTag() to scope a shared client.
+     */
+    public SQLClient setCallerTag(String callerTag) {
+        checkNotShared("setCallerTag", "withCallerTag");
+        this.callerTag = callerTag;
+        return this;
+    }
+
+    /**
+     * Copy of this client sharing its pool, caches and stats, whose slow queries are tagged with callerTag.
+     */
+    public SQLClient withCallerTag(String callerTag) {
+        SQLClient copy = scopedCopy();
+        copy.callerTag = callerTag;
+        return copy;
+    }
+
+    public String getCallerTag() {
+        return callerTag;
+    }
+
+    /**
+     * Deadline for every call made through this client, null for none. Meant for a client that belongs to one request,
+     * not allowed on a client of forPool(), use withDeadline() to scope a shared client.
+     */
+    public SQLClient setDeadline(Deadline deadline) {
+        checkNotShared("setDeadline", "withDeadline");
+        this.deadline = deadline;
+        return this;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Copy of this client sharing its pool, caches and stats, whose calls run under deadline.
+     * In PHP: $db = $app->db->withDeadline(30000); and $db->getDeadline()->cancel(); once the request timed out.
+     */
+    public SQLClient withDeadline(Deadline deadline) {
+        SQLClient copy = scopedCopy();
+        copy.deadline = deadline;
+        return copy;
+    }
+
+    public SQLClient withDeadline(long timeoutMs) {
+        return withDeadline(Deadline.after(timeoutMs));
+    }
+
+    protected SQLClient scopedCopy() {
+        try {
+            SQLClient copy = (SQLClient) clone();
+            copy.shared = false;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    protected void checkNotShared(String setter, String scoped) {
+        if (shared) {
+            throw new IllegalStateException(setter + "() would change the client of the pool for every request, use " + scoped + "() for a scoped copy");
+        }
+    }
+
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    /**
+     * Recent slow queries of this pool, newest first.
+     */
+    public void slowQueries(Env env, final Callable handler) {
+        handler.call(env, slowQueryLog == null ? NullValue.NULL : PhpTypes.arrayFromJson(env, slowQueryLog.recent()));
+    }
+
+    public void metrics(Env env, final Callable handler) {
+        handler.call(env, metrics == null ? NullValue.NULL : PhpTypes.arrayFromJson(env, metrics.snapshot()));
+    }
+
+    protected AsyncSQLClient createClient(JsonObject config, String poolName) {
+        if (dialect.equals("POSTGRES")) {
+            return PostgreSQLClient.createShared(vertx, config, poolName);
+        }
+        return MySQLClient.createShared(vertx, config, poolName);
+    }
+
+    /**
+     * Replicas are listed under "replicas", each entry overrides the primary config (usually host/port), eg.
+     * "replicas": [{"host": "10.0.0.2"}, {"host": "10.0.0.3"}], "replica_strategy": "round_robin" or "least_busy",
+     * "replica_retry_ms": how long a failing replica stays out of rotation.
+     */
+    protected void initReplicas(JsonObject config, String poolName) {
+        JsonArray replicaConf = config.getJsonArray("replicas");
+        if (replicaConf == null || replicaConf.isEmpty()) {
+            return;
+        }
+        replicas = new ReplicaPool(config.getString("replica_strategy", ReplicaPool.ROUND_ROBIN), config.getLong("replica_retry_ms", 5000L));
+
+        for (int i = 0; i < replicaConf.size(); i++) {
+            JsonObject conf = config.copy();
+            conf.remove("replicas");
+            conf.mergeIn(replicaConf.getJsonObject(i));
+            String name = poolName + "-replica-" + i;
+            replicas.add(name, createClient(conf, name));
+        }
+    }
+
+    public ReplicaPool getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Takes the replica a failed read ran on out of rotation when the failure looks like a broken connection.
+     */
+    protected void readFailed(SQLConnection conn, Throwable err) {
+        if (replicas == null || !(conn instanceof TrackedConnection)) {
+            return;
+        }
+        Object owner = ((TrackedConnection) conn).getOwner();
+        if (owner instanceof ReplicaPool.Replica && ReplicaPool.isConnectionError(err)) {
+            logError("Read replica " + ((ReplicaPool.Replica) owner).name + " taken out of rotation", err);
+            replicas.markDown((ReplicaPool.Replica) owner);
+        }
     }
 
 
@@ -663,29 +1391,282 @@ public class SQLClient implements SQLClientInterface {
 
         //Current driver does not support this in vertx async mysql postgre
         connect(sqlConnectionAsyncResult -> {
+            if (sqlConnectionAsyncResult.failed()) {
+                logError("SQL Connection Failed!", sqlConnectionAsyncResult.cause());
+                if (errorHandler != null) {
+                    errorHandler.call(env, env.wrapJava(sqlConnectionAsyncResult.cause()));
+                }
+                return;
+            }
             SQLConnection conn = sqlConnectionAsyncResult.result();
-            conn.batchWithParams(sql, batchParams, res -> {
+            conn.batchWithParams(sql, batchParams, timed(sql, null, res -> {
                 //batch returns list of IDs
                 if (res.succeeded()) {
                     List<Integer> result = res.result();
+                    tablesWritten(sql);
                     JsonArray arr = new JsonArray(result);
                     callbackHandler.handle(arr);
                 } else {
                     if (res.failed()) {
-                        logError("SQL Batch Query Failed! " + sql, res.cause());
+                        logError("SQL Batch Query Failed! {}", sql, res.cause());
                     }
                     if (errorHandler != null) {
                         errorHandler.call(env, env.wrapJava(res.cause()));
                     }
                 }
                 conn.close();
+            }));
+        });
+    }
+
+    /**
+     * Inserts all rows on conn with as few round trips as possible by rewriting a single row INSERT into
+     * chunked multi-row INSERTs (see BatchInsert). The handler receives the generated keys in input order.
+     * Statements that can't be rewritten are executed once per row. INSERT IGNORE and ON DUPLICATE KEY UPDATE are
+     * still rewritten but give no keys (without RETURNING), the ids of their rows can't be told from the first one.
+     */
+    public void batchInsertRaw(SQLConnection conn, String sql, List<JsonArray> batchParams, Handler<List<Long>> doneHandler, Handler<Throwable> failHandler) {
+        final List<Long> keys = new ArrayList<>(batchParams.size());
+        BatchInsert insert = BatchInsert.parse(sql);
+        // rows or chunks written before a failure are committed too without a transaction
+        Handler<List<Long>> handler = res -> {
+            tablesWritten(conn, sql);
+            doneHandler.handle(res);
+        };
+        Handler<Throwable> errorHandler = err -> {
+            tablesWritten(conn, sql);
+            if (failHandler != null) {
+                failHandler.handle(err);
+            }
+        };
+
+        if (insert == null) {
+            logDebug("Batch insert can't be rewritten into multi-row statement, executing per row: {}", sql);
+            nextBatchInsertRow(batchParams.listIterator(), keys, conn, sql, errorHandler, handler);
+            return;
+        }
+
+        List<BatchInsert.Chunk> chunks;
+        try {
+            chunks = insert.chunks(batchParams, batchMaxParams, batchMaxPacketBytes);
+        } catch (IllegalArgumentException e) {
+            if (failHandler != null) {
+                failHandler.handle(e);
+            }
+            return;
+        }
+        nextBatchInsertChunk(chunks.listIterator(), insert, keys, conn, errorHandler, handler);
+    }
+
+    protected void nextBatchInsertChunk(ListIterator<BatchInsert.Chunk> iterator, BatchInsert insert, List<Long> keys, SQLConnection conn, Handler<Throwable> errorHandler, Handler<List<Long>> doneHandler) {
+        if (!iterator.hasNext()) {
+            doneHandler.handle(keys);
+            return;
+        }
+        BatchInsert.Chunk chunk = iterator.next();
+
+        if (insert.isReturning()) {
+            queryRaw(conn, chunk.sql, chunk.params, rows -> {
+                queryRawKeys(rows, keys);
+                nextBatchInsertChunk(iterator, insert, keys, conn, errorHandler, doneHandler);
+            }, errorHandler);
+        } else {
+            updateRaw(conn, chunk.sql, chunk.params, false, res -> {
+                JsonArray generated = res.getJsonArray("keys");
+                if (generated != null && generated.size() > 0 && insert.hasConsecutiveKeys()) {
+                    // MySQL reports the id of the first row, the rest of a multi-row insert are consecutive
+                    long first = ((Number) generated.getValue(0)).longValue();
+                    for (int i = 0; i < chunk.rows; i++) {
+                        keys.add(first + (long) i * batchKeyIncrement);
+                    }
+                }
+                nextBatchInsertChunk(iterator, insert, keys, conn, errorHandler, doneHandler);
+            }, errorHandler);
+        }
+    }
+
+    protected void nextBatchInsertRow(ListIterator<JsonArray> iterator, List<Long> keys, SQLConnection conn, String sql, Handler<Throwable> errorHandler, Handler<List<Long>> doneHandler) {
+        if (!iterator.hasNext()) {
+            doneHandler.handle(keys);
+            return;
+        }
+        updateRaw(conn, sql, iterator.next(), false, res -> {
+            JsonArray generated = res.getJsonArray("keys");
+            if (generated != null && generated.size() > 0) {
+                keys.add(((Number) generated.getValue(0)).longValue());
+            }
+            nextBatchInsertRow(iterator, keys, conn, sql, errorHandler, doneHandler);
+        }, errorHandler);
+    }
+
+    protected void queryRawKeys(JsonArray rows, List<Long> keys) {
+        if (rows == null) {
+            return;
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            JsonObject row = rows.getJsonObject(i);
+            if (row.isEmpty()) {
+                continue;
+            }
+            Object key = row.iterator().next().getValue();
+            if (key instanceof Number) {
+                keys.add(((Number) key).longValue());
+            }
+        }
+    }
+
+    /**
+     * Non transactional batch update/delete spread over up to concurrency pooled connections (capped by batchMaxConcurrency).
+     * Failed items are reported in the result instead of aborting the batch, see ParallelBatch.
+     */
+    public void batchUpdateParallel(String sql, List<JsonArray> batchParams, int concurrency, Handler<JsonObject> handler) {
+        logDebug("Executing SQL Parallel Batch Update : {}", sql);
+        new ParallelBatch(this, sql, batchParams, Math.min(concurrency, batchMaxConcurrency), handler).start();
+    }
+
+    /**
+     * Same as above, errorHandler receives the first failure when no item succeeded.
+     */
+    public void batchUpdateParallel(String sql, List<JsonArray> batchParams, int concurrency, Handler<JsonObject> handler, Handler<Throwable> errorHandler) {
+        logDebug("Executing SQL Parallel Batch Update : {}", sql);
+        new ParallelBatch(this, sql, batchParams, Math.min(concurrency, batchMaxConcurrency), handler, errorHandler).start();
+    }
+
+    /**
+     * Group commit writer of this client's pool, shared by its withDeadline()/withCallerTag() copies. Flushes every
+     * group_commit_interval_ms or group_commit_max_rows rows, without the deadline of any request.
+     */
+    public GroupCommitWriter groupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Single row INSERT that is buffered with the same statement from other requests and written in one multi-row
+     * INSERT/transaction, handler receives the generated key of this row.
+     */
+    public void insertGrouped(Env env, String sql, JsonArray params, final Callable handler, final Callable errorHandler) {
+        groupCommit().insert(env, sql, params, handler, errorHandler);
+    }
+
+    public void insertGrouped(String sql, JsonArray params, Handler<Long> handler, Handler<Throwable> errorHandler) {
+        groupCommit().insert(sql, params, handler, errorHandler);
+    }
+
+    /**
+     * Statements to run on one connection with their results delivered together, see SQLPipeline.
+     */
+    public SQLPipeline pipeline() {
+        return new SQLPipeline(this);
+    }
+
+    /**
+     * Bulk load of rows into table, see BulkLoad.
+     */
+    public BulkLoad bulkLoad(String table, List<String> columns) {
+        return new BulkLoad(this, table, columns);
+    }
+
+    public BulkLoad bulkLoad(Env env, String table, Value columns) {
+        List<String> names = new ArrayList<>();
+        JsonArray list = PhpTypes.arrayToJsonArray(env, columns);
+        for (int i = 0; i < list.size(); i++) {
+            names.add(list.getString(i));
+        }
+        return bulkLoad(table, names);
+    }
+
+    /**
+     * Runs work in a transaction on its own connection. The transaction is committed when work completes its future
+     * and rolled back when it fails it (or throws), either way the connection is released before onDone/onError is called.
+     */
+    public <T> void inTransaction(TransactionWork<T> work, Handler<T> onDone, Handler<Throwable> onError) {
+        connect(connRes -> {
+            if (connRes.failed()) {
+                logError("SQL Connection Failed!", connRes.cause());
+                if (onError != null) {
+                    onError.handle(connRes.cause());
+                }
+                return;
+            }
+            final SQLConnection conn = connRes.result();
+
+            conn.setAutoCommit(false, resTx -> {
+                if (resTx.failed()) {
+                    conn.close();
+                    if (onError != null) {
+                        onError.handle(resTx.cause());
+                    }
+                    return;
+                }
+
+                Future<T> done = Future.future();
+                done.setHandler(res -> {
+                    if (res.succeeded()) {
+                        conn.commit(resCommit -> {
+                            conn.close();
+                            if (resCommit.failed()) {
+                                logError("SQL Commit Failed!", resCommit.cause());
+                                if (onError != null) {
+                                    onError.handle(resCommit.cause());
+                                }
+                            } else if (onDone != null) {
+                                onDone.handle(res.result());
+                            }
+                        });
+                    } else {
+                        conn.rollback(resRollback -> {
+                            conn.close();
+                            if (resRollback.failed()) {
+                                logError("SQL Rollback Failed!", resRollback.cause());
+                            }
+                            if (onError != null) {
+                                onError.handle(res.cause());
+                            }
+                        });
+                    }
+                });
+
+                try {
+                    work.run(conn, done);
+                } catch (Throwable e) {
+                    done.tryFail(e);
+                }
             });
         });
     }
 
+    /**
+     * PHP variant, work is called with ($conn, $tx), call $tx->complete($result) to commit or $tx->fail($error) to roll back.
+     * onDone receives the result passed to complete().
+     */
+    public void inTransaction(Env env, final Callable work, final Callable onDone, final Callable onError) {
+        this.<Object>inTransaction((conn, done) -> work.call(env, env.wrapJava(conn), env.wrapJava(done)), result -> {
+            if (onDone != null) {
+                onDone.call(env, result instanceof Value ? (Value) result : env.wrapJava(result));
+            }
+        }, err -> {
+            if (onError != null) {
+                onError.call(env, env.wrapJava(err));
+            }
+        });
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    public ConnectionLeakDetector getLeakDetector() {
+        return leakDetector;
+    }
+
     public void startTx(SQLConnection conn, Handler<ResultSet> done) {
         conn.setAutoCommit(false, res -> {
             if (res.failed()) {
+                conn.close();
                 throw new RuntimeException(res.cause());
             }
 
@@ -777,4 +1758,12 @@ public class SQLClient implements SQLClientInterface {
         return PhpTypes.arrayFromJson(env, rows);
     }
 
+    public Value toPhpArray(Env env, ResultSet rs) {
+        return ResultSetHydrator.toRows(env, rs);
+    }
+
+    public Value toPhpColumns(Env env, ResultSet rs) {
+        return ResultSetHydrator.toColumns(env, rs);
+    }
+
 }
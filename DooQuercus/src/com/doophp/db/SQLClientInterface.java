@@ -17,16 +17,34 @@ public interface SQLClientInterface {
 
     public void query(Env env, String sql, JsonArray params, Callable handler, Callable errorHandler);
 
+    public void query(Env env, String sql, JsonArray params, boolean columnar, Callable handler, Callable errorHandler);
+
+    public void queryColumnar(Env env, String sql, JsonArray params, Callable handler, Callable errorHandler);
+
+    public void queryStream(Env env, String sql, JsonArray params, int batchSize, Callable onBatch, Callable onEnd, Callable onError);
+
+    public void queryPrimary(Env env, String sql, JsonArray params, Callable handler, Callable errorHandler);
+
+    public void queryCached(Env env, String sql, JsonArray params, long ttlMs, Callable handler, Callable errorHandler);
+
+    public void queryCached(Env env, String sql, JsonArray params, long ttlMs, JsonArray tables, Callable handler, Callable errorHandler);
+
     public void delete(Env env, String sql, Callable handler, Callable errorHandler);
 
     public void update(Env env, String sql, JsonArray params, Callable handler, Callable errorHandler);
 
+    public void queryRawPrimary(String sql, JsonArray params, Handler<JsonArray> handler, Handler<Throwable> errorHandler);
+
     public void queryRaw(SQLConnection conn, String sql, JsonArray params, Handler<JsonArray> handler, Handler<Throwable> errorHandler);
 
     public void updateRaw(SQLConnection conn, String sql, JsonArray params, Handler<JsonObject> handler, Handler<Throwable> errorHandler);
 
     public void connect(Handler<AsyncResult<SQLConnection>> res);
 
+    public <T> void inTransaction(TransactionWork<T> work, Handler<T> onDone, Handler<Throwable> onError);
+
+    public void inTransaction(Env env, Callable work, Callable onDone, Callable onError);
+
     public void startTx(SQLConnection conn, Handler<ResultSet> done);
 
     public void rollbackTx(SQLConnection conn, Handler<ResultSet> done);
@@ -0,0 +1,15 @@
+package com.doophp.db;
+
+/**
+ * Raised when the Deadline of the request a statement belongs to has passed, either before the statement was sent
+ * (it is skipped) or while it ran and was cut off by the statement timeout derived from the deadline.
+ * Carries no stack trace, the database error it replaces (if any) is the cause.
+ */
+public class SQLDeadlineException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SQLDeadlineException(String message, Throwable cause) {
+        super(message, cause, false, false);
+    }
+}
@@ -0,0 +1,341 @@
+package com.doophp.db;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Latency and pool statistics of one connection pool, shared by every SQLClient created with the same pool name.
+ *
+ * Statements are grouped by fingerprint (literals replaced by ?, IN lists and multi-row VALUES collapsed) and record
+ * the time spent waiting for a connection, execution time, rows returned/affected and errors. Snapshots are published
+ * on the event bus every metrics_interval_ms and can be rendered in the Prometheus text format with toText().
+ */
+public class SQLMetrics {
+
+    public static final String OTHER = "(other)";
+
+    protected static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^'\\\\]|''|\\\\.)*'");
+    protected static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w$.])-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?\\b");
+    protected static final Pattern PG_PARAM = Pattern.compile("\\$\\d+");
+    // possessive repeats, a backtracking group repeat recurses per item and overflows the stack on large batches
+    protected static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*+\\s*\\)");
+    protected static final Pattern VALUES_LIST = Pattern.compile("(\\(\\s*\\?(?:\\s*,\\s*\\?)*+\\s*\\))(?:\\s*,\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*+\\s*\\))++");
+    protected static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    protected static final int MAX_CACHED_FINGERPRINTS = 5000;
+
+    protected static final Map<String, SQLMetrics> pools = new ConcurrentHashMap<>();
+
+    public static class Statement {
+        public final String fingerprint;
+        public final LatencyHistogram wait = new LatencyHistogram();
+        public final LatencyHistogram exec = new LatencyHistogram();
+        public final LongAdder rows = new LongAdder();
+        public final LongAdder errors = new LongAdder();
+
+        public Statement(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        public JsonObject toJson() {
+            return new JsonObject()
+                    .put("fingerprint", fingerprint)
+                    .put("count", exec.getCount())
+                    .put("errors", errors.sum())
+                    .put("rows", rows.sum())
+                    .put("exec_ms", exec.toJson(1000))
+                    .put("wait_ms", wait.toJson(1000));
+        }
+    }
+
+    protected final String poolName;
+    protected final int maxPoolSize;
+    protected final int maxStatements;
+    protected final Map<String, Statement> statements = new ConcurrentHashMap<>();
+    protected final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+    protected final LatencyHistogram connectionWait = new LatencyHistogram();
+    protected final AtomicInteger waiting = new AtomicInteger();
+    protected final AtomicInteger inUse = new AtomicInteger();
+    protected final LongAdder connectionErrors = new LongAdder();
+    protected final LongAdder rejected = new LongAdder();
+    protected final LongAdder expired = new LongAdder();
+    protected final LongAdder statementCacheHits = new LongAdder();
+    protected final LongAdder statementCacheMisses = new LongAdder();
+    protected final LongAdder statementCacheEvictions = new LongAdder();
+    protected ConcurrencyLimiter limiter;
+    protected CircuitBreaker breaker;
+    protected String address;
+
+    public SQLMetrics(String poolName, int maxPoolSize, int maxStatements) {
+        this.poolName = poolName;
+        this.maxPoolSize = maxPoolSize;
+        this.maxStatements = maxStatements;
+    }
+
+    /**
+     * Metrics of a pool, created on first use. "metrics_max_statements" caps the distinct fingerprints kept
+     * (the rest are counted under (other)), snapshots go to "metrics_address" every "metrics_interval_ms" (0 turns it off).
+     */
+    public static SQLMetrics forPool(Vertx vertx, String poolName, JsonObject config) {
+        return pools.computeIfAbsent(poolName, name -> {
+            SQLMetrics metrics = new SQLMetrics(name, config.getInteger("maxPoolSize", 10), config.getInteger("metrics_max_statements", 500));
+            metrics.publish(vertx, config.getString("metrics_address", "doo.sql.metrics." + name), config.getLong("metrics_interval_ms", 10000L));
+            return metrics;
+        });
+    }
+
+    public static SQLMetrics get(String poolName) {
+        return pools.get(poolName);
+    }
+
+    protected void publish(Vertx vertx, String address, long intervalMs) {
+        this.address = address;
+        if (intervalMs > 0) {
+            vertx.setPeriodic(intervalMs, id -> vertx.eventBus().publish(address, snapshot()));
+        }
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void connectionRequested() {
+        waiting.incrementAndGet();
+    }
+
+    /**
+     * sql is the statement the connection was taken for, null when it is not known (transactions, batches).
+     */
+    public void connectionAcquired(String sql, long nanos, boolean succeeded) {
+        waiting.decrementAndGet();
+        long micros = nanos / 1000;
+        connectionWait.record(micros);
+        if (!succeeded) {
+            connectionErrors.increment();
+            if (sql != null) {
+                statement(sql).errors.increment();
+            }
+            return;
+        }
+        inUse.incrementAndGet();
+        if (sql != null) {
+            statement(sql).wait.record(micros);
+        }
+    }
+
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    public void connectionReleased() {
+        inUse.decrementAndGet();
+    }
+
+    /**
+     * A request shed by the limiter or the open circuit breaker, it never reached the pool.
+     */
+    public void connectionRejected() {
+        rejected.increment();
+    }
+
+    /**
+     * A request skipped because its deadline passed before it got a connection.
+     */
+    public void connectionExpired() {
+        expired.increment();
+    }
+
+    /**
+     * Prepared statement cache of the JDBC backend, see StatementCache.
+     */
+    public void statementCacheHit() {
+        statementCacheHits.increment();
+    }
+
+    public void statementCacheMiss() {
+        statementCacheMisses.increment();
+    }
+
+    public void statementCacheEviction() {
+        statementCacheEvictions.increment();
+    }
+
+    public void attach(ConcurrencyLimiter limiter, CircuitBreaker breaker) {
+        this.limiter = limiter;
+        this.breaker = breaker;
+    }
+
+    public void executed(String sql, long nanos, long rows, boolean failed) {
+        Statement stmt = statement(sql);
+        stmt.exec.record(nanos / 1000);
+        if (failed) {
+            stmt.errors.increment();
+        } else if (rows > 0) {
+            stmt.rows.add(rows);
+        }
+    }
+
+    public Statement statement(String sql) {
+        String fingerprint = fingerprint(sql);
+        Statement stmt = statements.get(fingerprint);
+        if (stmt != null) {
+            return stmt;
+        }
+        if (statements.size() >= maxStatements) {
+            fingerprint = OTHER;
+        }
+        return statements.computeIfAbsent(fingerprint, Statement::new);
+    }
+
+    public String fingerprint(String sql) {
+        String fingerprint = fingerprints.get(sql);
+        if (fingerprint == null) {
+            fingerprint = normalize(sql);
+            if (fingerprints.size() >= MAX_CACHED_FINGERPRINTS) {
+                fingerprints.clear();
+            }
+            fingerprints.put(sql, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * SQL with literals replaced by ?, eg. "SELECT * FROM user WHERE id IN (1, 2, 3) AND name = 'a'" becomes
+     * "SELECT * FROM user WHERE id IN (?+) AND name = ?".
+     */
+    public static String normalize(String sql) {
+        String s = STRING_LITERAL.matcher(sql).replaceAll("?");
+        s = PG_PARAM.matcher(s).replaceAll("?");
+        s = NUMBER_LITERAL.matcher(s).replaceAll("?");
+        s = IN_LIST.matcher(s).replaceAll("IN (?+)");
+        s = VALUES_LIST.matcher(s).replaceAll("$1, ...");
+        return WHITESPACE.matcher(s).replaceAll(" ").trim();
+    }
+
+    public void reset() {
+        statements.clear();
+    }
+
+    /**
+     * Statements ordered by total execution time, the ones that cost the most first.
+     */
+    public List<Statement> topStatements() {
+        List<Statement> list = new ArrayList<>(statements.values());
+        list.sort((a, b) -> Long.compare(b.exec.getSum(), a.exec.getSum()));
+        return list;
+    }
+
+    public JsonObject snapshot() {
+        JsonArray stmts = new JsonArray();
+        for (Statement stmt : topStatements()) {
+            stmts.add(stmt.toJson());
+        }
+        JsonObject snapshot = new JsonObject()
+                .put("pool", poolName)
+                .put("time", System.currentTimeMillis())
+                .put("connections", new JsonObject()
+                        .put("in_use", inUse.get())
+                        .put("waiting", waiting.get())
+                        .put("max_size", maxPoolSize)
+                        .put("errors", connectionErrors.sum())
+                        .put("rejected", rejected.sum())
+                        .put("expired", expired.sum())
+                        .put("wait_ms", connectionWait.toJson(1000)))
+                .put("statements", stmts);
+        if (statementCacheHits.sum() + statementCacheMisses.sum() > 0) {
+            snapshot.put("statement_cache", new JsonObject()
+                    .put("hits", statementCacheHits.sum())
+                    .put("misses", statementCacheMisses.sum())
+                    .put("evictions", statementCacheEvictions.sum()));
+        }
+        if (limiter != null) {
+            snapshot.put("limiter", limiter.stats());
+        }
+        if (breaker != null) {
+            snapshot.put("breaker", breaker.stats());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Prometheus text exposition of this pool, serve it from a controller as text/plain; version=0.0.4
+     */
+    public String toText() {
+        StringBuilder out = new StringBuilder(1024);
+        String pool = "pool=\"" + escape(poolName) + "\"";
+
+        out.append("# TYPE doo_sql_pool_connections gauge\n");
+        out.append("doo_sql_pool_connections{").append(pool).append(",state=\"in_use\"} ").append(inUse.get()).append('\n');
+        out.append("doo_sql_pool_connections{").append(pool).append(",state=\"waiting\"} ").append(waiting.get()).append('\n');
+        out.append("# TYPE doo_sql_pool_max_size gauge\n");
+        out.append("doo_sql_pool_max_size{").append(pool).append("} ").append(maxPoolSize).append('\n');
+        out.append("# TYPE doo_sql_connection_errors_total counter\n");
+        out.append("doo_sql_connection_errors_total{").append(pool).append("} ").append(connectionErrors.sum()).append('\n');
+        out.append("# TYPE doo_sql_connection_rejected_total counter\n");
+        out.append("doo_sql_connection_rejected_total{").append(pool).append("} ").append(rejected.sum()).append('\n');
+        out.append("# TYPE doo_sql_connection_expired_total counter\n");
+        out.append("doo_sql_connection_expired_total{").append(pool).append("} ").append(expired.sum()).append('\n');
+        if (statementCacheHits.sum() + statementCacheMisses.sum() > 0) {
+            out.append("# TYPE doo_sql_statement_cache_total counter\n");
+            out.append("doo_sql_statement_cache_total{").append(pool).append(",result=\"hit\"} ").append(statementCacheHits.sum()).append('\n');
+            out.append("doo_sql_statement_cache_total{").append(pool).append(",result=\"miss\"} ").append(statementCacheMisses.sum()).append('\n');
+            out.append("# TYPE doo_sql_statement_cache_evictions_total counter\n");
+            out.append("doo_sql_statement_cache_evictions_total{").append(pool).append("} ").append(statementCacheEvictions.sum()).append('\n');
+        }
+        if (limiter != null) {
+            out.append("# TYPE doo_sql_concurrency_limit gauge\n");
+            out.append("doo_sql_concurrency_limit{").append(pool).append("} ").append(limiter.getLimit()).append('\n');
+        }
+        if (breaker != null) {
+            out.append("# TYPE doo_sql_circuit_open gauge\n");
+            out.append("doo_sql_circuit_open{").append(pool).append("} ").append(CircuitBreaker.CLOSED.equals(breaker.getState()) ? 0 : 1).append('\n');
+        }
+        out.append("# TYPE doo_sql_connection_wait_seconds summary\n");
+        summary(out, "doo_sql_connection_wait_seconds", pool, connectionWait);
+
+        List<Statement> stmts = topStatements();
+        out.append("# TYPE doo_sql_query_seconds summary\n");
+        for (Statement stmt : stmts) {
+            summary(out, "doo_sql_query_seconds", labels(pool, stmt), stmt.exec);
+        }
+        out.append("# TYPE doo_sql_query_wait_seconds summary\n");
+        for (Statement stmt : stmts) {
+            summary(out, "doo_sql_query_wait_seconds", labels(pool, stmt), stmt.wait);
+        }
+        out.append("# TYPE doo_sql_query_rows_total counter\n");
+        for (Statement stmt : stmts) {
+            out.append("doo_sql_query_rows_total{").append(labels(pool, stmt)).append("} ").append(stmt.rows.sum()).append('\n');
+        }
+        out.append("# TYPE doo_sql_query_errors_total counter\n");
+        for (Statement stmt : stmts) {
+            out.append("doo_sql_query_errors_total{").append(labels(pool, stmt)).append("} ").append(stmt.errors.sum()).append('\n');
+        }
+        return out.toString();
+    }
+
+    protected static String labels(String pool, Statement stmt) {
+        return pool + ",fingerprint=\"" + escape(stmt.fingerprint) + "\"";
+    }
+
+    protected static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        for (double q : quantiles) {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ")
+                    .append(histogram.percentile(q * 100) / 1e6).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSum() / 1e6).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    protected static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,27 @@
+package com.doophp.db;
+
+/**
+ * Raised without touching the database when SQLClient sheds load: the concurrency limit and its wait queue are full,
+ * a queued request waited too long, or the circuit breaker is open. Carries no stack trace so the rejection path stays cheap.
+ */
+public class SQLOverloadException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        LIMIT,
+        QUEUE_TIMEOUT,
+        CIRCUIT_OPEN
+    }
+
+    protected final Reason reason;
+
+    public SQLOverloadException(Reason reason, String message) {
+        super(message, null, false, false);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
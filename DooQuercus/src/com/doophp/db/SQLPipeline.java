@@ -0,0 +1,238 @@
+package com.doophp.db;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.Value;
+import com.doophp.db.jdbc.JDBCConnection;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.UpdateResult;
+import io.vertx.lang.php.util.PhpTypes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Several queries/updates run on one connection, results delivered together in the order they were added:
+ * $db->pipeline()->query($sql1, $params1)->query($sql2)->update($sql3, $params3)->execute(function($results){}, $onError);
+ *
+ * One checkout instead of one per statement. On the JDBC backend all statements are queued on the connection at once
+ * and run back to back on its worker, with the async driver (which takes one statement at a time per connection)
+ * each one is sent as soon as the previous reply arrives. Reads go to a replica unless primary() is called or the
+ * pipeline has an update. The first failure fails the whole pipeline and the statements after it don't run.
+ * A pipeline with an update runs in a transaction (SQLClient.inTransaction()), a failure rolls back its earlier writes.
+ */
+public class SQLPipeline {
+
+    protected static class Step {
+        final String sql;
+        final JsonArray params;
+        final boolean update;
+
+        Step(String sql, JsonArray params, boolean update) {
+            this.sql = sql;
+            this.params = params;
+            this.update = update;
+        }
+    }
+
+    protected final SQLClient client;
+    protected final List<Step> steps = new ArrayList<>();
+    protected boolean usePrimary = false;
+    protected boolean hasUpdate = false;
+
+    public SQLPipeline(SQLClient client) {
+        this.client = client;
+    }
+
+    public SQLPipeline query(String sql) {
+        return query(sql, null);
+    }
+
+    public SQLPipeline query(String sql, JsonArray params) {
+        steps.add(new Step(sql, params, false));
+        return this;
+    }
+
+    public SQLPipeline query(Env env, String sql, Value paramsArr) {
+        return query(sql, paramsArr == null || paramsArr.isNull() ? null : PhpTypes.arrayToJsonArray(env, paramsArr));
+    }
+
+    public SQLPipeline update(String sql) {
+        return update(sql, null);
+    }
+
+    public SQLPipeline update(String sql, JsonArray params) {
+        steps.add(new Step(sql, params, true));
+        hasUpdate = true;
+        return this;
+    }
+
+    public SQLPipeline update(Env env, String sql, Value paramsArr) {
+        return update(sql, paramsArr == null || paramsArr.isNull() ? null : PhpTypes.arrayToJsonArray(env, paramsArr));
+    }
+
+    /**
+     * Read from the primary, eg. to see rows written just before.
+     */
+    public SQLPipeline primary() {
+        usePrimary = true;
+        return this;
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    /**
+     * Handler gets one ResultSet (query) or UpdateResult (update) per statement, in order.
+     */
+    public void execute(Handler<AsyncResult<List<Object>>> handler) {
+        if (steps.isEmpty()) {
+            handler.handle(Future.succeededFuture(new ArrayList<>()));
+            return;
+        }
+        final List<Step> run = new ArrayList<>(steps);
+        if (hasUpdate) {
+            client.<List<Object>>inTransaction((conn, done) -> send(conn, run, done),
+                    results -> handler.handle(Future.succeededFuture(results)),
+                    err -> handler.handle(Future.failedFuture(err)));
+            return;
+        }
+        client.connection(usePrimary, null, res -> {
+            if (res.failed()) {
+                client.logError("SQL Connection Failed!", res.cause());
+                handler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            final SQLConnection conn = res.result();
+            send(conn, run, results -> {
+                conn.close();
+                handler.handle(results);
+            });
+        });
+    }
+
+    protected void send(SQLConnection conn, List<Step> run, Handler<AsyncResult<List<Object>>> done) {
+        SQLConnection jdbc = conn;
+        while (jdbc instanceof TrackedConnection) {
+            jdbc = ((TrackedConnection) jdbc).delegate();
+        }
+        if (jdbc instanceof JDBCConnection) {
+            sendAll(conn, (JDBCConnection) jdbc, run, done);
+        } else {
+            nextStep(conn, run, 0, new ArrayList<>(run.size()), done);
+        }
+    }
+
+    /**
+     * All statements at once, the connection queues and runs them in order and skips the ones after a failure.
+     */
+    protected void sendAll(SQLConnection conn, JDBCConnection jdbc, List<Step> run, Handler<AsyncResult<List<Object>>> done) {
+        jdbc.failFast(true);
+        final Object[] results = new Object[run.size()];
+        final int[] pending = {run.size()};
+        final Throwable[] failure = {null};
+        for (int i = 0; i < run.size(); i++) {
+            final int index = i;
+            execute(conn, run.get(i), res -> {
+                if (res.failed()) {
+                    if (failure[0] == null) {
+                        failure[0] = res.cause();
+                    }
+                } else {
+                    results[index] = res.result();
+                }
+                if (--pending[0] == 0) {
+                    jdbc.failFast(false);
+                    done.handle(failure[0] != null ? Future.failedFuture(failure[0]) : Future.succeededFuture(new ArrayList<>(Arrays.asList(results))));
+                }
+            });
+        }
+    }
+
+    protected void nextStep(SQLConnection conn, List<Step> run, int index, List<Object> results, Handler<AsyncResult<List<Object>>> done) {
+        if (index == run.size()) {
+            done.handle(Future.succeededFuture(results));
+            return;
+        }
+        execute(conn, run.get(index), res -> {
+            if (res.failed()) {
+                done.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            results.add(res.result());
+            nextStep(conn, run, index + 1, results, done);
+        });
+    }
+
+    protected void execute(SQLConnection conn, Step step, Handler<AsyncResult<Object>> handler) {
+        client.logDebug("Executing SQL Pipeline Statement: {}", step.sql);
+        if (step.params != null) {
+            client.logDebug("Query Params = {}", step.params);
+        }
+        if (step.update) {
+            Handler<AsyncResult<UpdateResult>> resultHandler = client.timed(step.sql, step.params, res -> {
+                if (res.succeeded()) {
+                    client.tablesWritten(conn, step.sql);
+                } else {
+                    client.logError("SQL Update Query Failed! {}", step.sql, res.cause());
+                }
+                handler.handle(res.map(r -> (Object) r));
+            });
+            if (step.params == null) {
+                conn.update(step.sql, resultHandler);
+            } else {
+                conn.updateWithParams(step.sql, step.params, resultHandler);
+            }
+            return;
+        }
+        Handler<AsyncResult<ResultSet>> resultHandler = client.timed(step.sql, step.params, res -> {
+            if (res.failed()) {
+                client.logError("SQL Query Failed! {}", step.sql, res.cause());
+                client.readFailed(conn, res.cause());
+            }
+            handler.handle(res.map(r -> (Object) r));
+        });
+        if (step.params == null) {
+            conn.query(step.sql, resultHandler);
+        } else {
+            conn.queryWithParams(step.sql, step.params, resultHandler);
+        }
+    }
+
+    /**
+     * PHP variant, handler is called with an array holding the rows of each query and the update result of each update.
+     */
+    public void execute(Env env, final Callable handler, final Callable errorHandler) {
+        execute(res -> {
+            if (res.failed()) {
+                if (errorHandler != null) {
+                    errorHandler.call(env, env.wrapJava(res.cause()));
+                }
+                return;
+            }
+            if (handler == null) {
+                return;
+            }
+            ArrayValue list = new ArrayValueImpl();
+            for (Object result : res.result()) {
+                if (result instanceof ResultSet) {
+                    ResultSet rs = (ResultSet) result;
+                    list.append(rs.getNumRows() < 0 ? NullValue.NULL : client.toPhpArray(env, rs));
+                } else {
+                    list.append(PhpTypes.arrayFromJson(env, ((UpdateResult) result).toJson()));
+                }
+            }
+            handler.call(env, list);
+        });
+    }
+}
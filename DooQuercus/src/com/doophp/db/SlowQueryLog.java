@@ -0,0 +1,218 @@
+package com.doophp.db;
+
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.asyncsql.AsyncSQLClient;
+import io.vertx.lang.php.util.PhpTypes;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Keeps the last N statements of a pool that ran longer than slow_query_ms in a ring buffer.
+ *
+ * Every entry holds the SQL, its fingerprint, params (only their types unless slow_query_redact_params is false), the caller tag
+ * (SQLClient.withCallerTag() or the text of a leading block comment in the SQL), start time, duration, rows and error.
+ * With slow_query_explain on, slow SELECTs get an EXPLAIN run on a separate single connection pool,
+ * at most one every slow_query_explain_interval_ms so a slow database is not loaded any further.
+ *
+ * Entries are published on slow_query_address as they are recorded, a message sent to slow_query_address + ".recent"
+ * is answered with the buffered entries, newest first.
+ */
+public class SlowQueryLog {
+
+    protected static final Map<String, SlowQueryLog> pools = new ConcurrentHashMap<>();
+
+    protected final Vertx vertx;
+    protected final String poolName;
+    protected final long thresholdNanos;
+    protected final boolean redactParams;
+    protected final JsonObject[] entries;
+    protected int next = 0;
+    protected long recorded = 0;
+    protected String address;
+
+    protected AsyncSQLClient explainClient;
+    protected long explainIntervalMs;
+    protected long lastExplain = 0;
+    protected boolean explaining = false;
+
+    public SlowQueryLog(Vertx vertx, String poolName, long thresholdMs, int size, boolean redactParams) {
+        this.vertx = vertx;
+        this.poolName = poolName;
+        this.thresholdNanos = thresholdMs * 1000000L;
+        this.redactParams = redactParams;
+        this.entries = new JsonObject[Math.max(1, size)];
+    }
+
+    /**
+     * Slow query log of a pool, null when "slow_query_ms" is not above 0. explainClient creates the pool used for EXPLAIN.
+     */
+    public static SlowQueryLog forPool(Vertx vertx, String poolName, JsonObject config, Function<JsonObject, AsyncSQLClient> explainClient) {
+        long thresholdMs = config.getLong("slow_query_ms", 1000L);
+        if (thresholdMs <= 0) {
+            return null;
+        }
+        return pools.computeIfAbsent(poolName, name -> {
+            SlowQueryLog log = new SlowQueryLog(vertx, name, thresholdMs, config.getInteger("slow_query_log_size", 100), config.getBoolean("slow_query_redact_params", true));
+            if (config.getBoolean("slow_query_explain", false)) {
+                JsonObject conf = config.copy().put("maxPoolSize", 1);
+                conf.remove("replicas");
+                log.explainClient = explainClient.apply(conf);
+                log.explainIntervalMs = config.getLong("slow_query_explain_interval_ms", 10000L);
+            }
+            log.listen(config.getString("slow_query_address", "doo.sql.slow." + name));
+            return log;
+        });
+    }
+
+    public static SlowQueryLog get(String poolName) {
+        return pools.get(poolName);
+    }
+
+    protected void listen(String address) {
+        this.address = address;
+        vertx.eventBus().consumer(address + ".recent", msg -> msg.reply(recent()));
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    public void record(String sql, JsonArray params, String tag, long nanos, long rows, Throwable error) {
+        long now = System.currentTimeMillis();
+        long ms = nanos / 1000000;
+        JsonObject entry = new JsonObject()
+                .put("pool", poolName)
+                .put("tag", tagOf(sql, tag))
+                .put("sql", sql)
+                .put("fingerprint", SQLMetrics.normalize(sql))
+                .put("params", params == null ? null : (redactParams ? redact(params) : params.copy()))
+                .put("started", now - ms)
+                .put("duration_ms", nanos / 1e6)
+                .put("rows", rows);
+        if (error != null) {
+            entry.put("error", String.valueOf(error.getMessage()));
+        }
+
+        synchronized (this) {
+            entries[next] = entry;
+            next = (next + 1) % entries.length;
+            recorded++;
+        }
+
+        if (error == null && shouldExplain(sql, now)) {
+            explain(sql, params, entry);
+        } else {
+            vertx.eventBus().publish(address, entry);
+        }
+    }
+
+    protected synchronized boolean shouldExplain(String sql, long now) {
+        if (explainClient == null || explaining || now - lastExplain < explainIntervalMs) {
+            return false;
+        }
+        String head = stripComment(sql).trim().toUpperCase();
+        if (!head.startsWith("SELECT") && !head.startsWith("WITH")) {
+            return false;
+        }
+        explaining = true;
+        lastExplain = now;
+        return true;
+    }
+
+    protected void explain(String sql, JsonArray params, JsonObject entry) {
+        explainClient.getConnection(connRes -> {
+            if (connRes.failed()) {
+                explained(entry, "explain_error", String.valueOf(connRes.cause().getMessage()));
+                return;
+            }
+            String explainSql = "EXPLAIN " + stripComment(sql);
+            connRes.result().queryWithParams(explainSql, params == null ? new JsonArray() : params, res -> {
+                connRes.result().close();
+                if (res.succeeded()) {
+                    explained(entry, "explain", new JsonArray(res.result().getRows()));
+                } else {
+                    explained(entry, "explain_error", String.valueOf(res.cause().getMessage()));
+                }
+            });
+        });
+    }
+
+    protected void explained(JsonObject entry, String key, Object value) {
+        synchronized (this) {
+            entry.put(key, value);
+            explaining = false;
+        }
+        vertx.eventBus().publish(address, entry);
+    }
+
+    /**
+     * Buffered entries, newest first.
+     */
+    public synchronized JsonArray recent() {
+        JsonArray list = new JsonArray();
+        for (int i = 1; i <= entries.length; i++) {
+            JsonObject entry = entries[(next - i + entries.length) % entries.length];
+            if (entry == null) {
+                break;
+            }
+            list.add(entry.copy());
+        }
+        return list;
+    }
+
+    public void recent(Env env, final Callable handler) {
+        handler.call(env, PhpTypes.arrayFromJson(env, recent()));
+    }
+
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = null;
+        }
+        next = 0;
+    }
+
+    protected static JsonArray redact(JsonArray params) {
+        JsonArray types = new JsonArray();
+        for (int i = 0; i < params.size(); i++) {
+            Object val = params.getValue(i);
+            types.add(val == null ? "null" : val instanceof Number ? "number" : val instanceof Boolean ? "boolean" : "string");
+        }
+        return types;
+    }
+
+    protected static String tagOf(String sql, String tag) {
+        String s = sql.trim();
+        if (s.startsWith("/*")) {
+            int end = s.indexOf("*/");
+            if (end > 2) {
+                return s.substring(2, end).trim();
+            }
+        }
+        return tag;
+    }
+
+    protected static String stripComment(String sql) {
+        String s = sql.trim();
+        if (s.startsWith("/*")) {
+            int end = s.indexOf("*/");
+            if (end > -1) {
+                return s.substring(end + 2);
+            }
+        }
+        return s;
+    }
+}
@@ -0,0 +1,247 @@
+package com.doophp.db;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.SQLRowStream;
+import io.vertx.ext.sql.TransactionIsolation;
+import io.vertx.ext.sql.UpdateResult;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SQLConnection delegate that runs a release handler once when the connection is given back to its pool.
+ * Lets SQLClient keep per pool bookkeeping (busy counts, checkout tracking) without touching every close() call site.
+ *
+ * It also follows the transaction state: tables written while auto commit is off are held back and handed to the
+ * commit handler once the transaction committed, a rollback or release drops them.
+ */
+public class TrackedConnection implements SQLConnection {
+
+    protected final SQLConnection conn;
+    protected Handler<Void> releaseHandler;
+    protected boolean released = false;
+    protected Object owner;
+    protected boolean transaction = false;
+    protected Set<String> writtenTables;
+    protected Handler<Set<String>> commitHandler;
+
+    public TrackedConnection(SQLConnection conn, Handler<Void> releaseHandler) {
+        this.conn = conn;
+        this.releaseHandler = releaseHandler;
+    }
+
+    public TrackedConnection(SQLConnection conn, Object owner, Handler<Void> releaseHandler) {
+        this.conn = conn;
+        this.owner = owner;
+        this.releaseHandler = releaseHandler;
+    }
+
+    /**
+     * The pool (eg. a read replica) this connection was checked out from.
+     */
+    public Object getOwner() {
+        return owner;
+    }
+
+    public SQLConnection delegate() {
+        return conn;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Handler called with the tables written in a transaction after it committed.
+     */
+    public TrackedConnection commitHandler(Handler<Set<String>> handler) {
+        this.commitHandler = handler;
+        return this;
+    }
+
+    public boolean inTransaction() {
+        return transaction;
+    }
+
+    /**
+     * Records tables written by a statement of the current transaction.
+     */
+    public void tablesWritten(Collection<String> tables) {
+        if (writtenTables == null) {
+            writtenTables = new HashSet<>();
+        }
+        writtenTables.addAll(tables);
+    }
+
+    protected void committed() {
+        Set<String> tables = writtenTables;
+        writtenTables = null;
+        if (tables != null && commitHandler != null) {
+            commitHandler.handle(tables);
+        }
+    }
+
+    protected void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        transaction = false;
+        writtenTables = null;
+        if (releaseHandler != null) {
+            releaseHandler.handle(null);
+        }
+    }
+
+    @Override
+    public SQLConnection setAutoCommit(boolean autoCommit, Handler<AsyncResult<Void>> resultHandler) {
+        conn.setAutoCommit(autoCommit, res -> {
+            if (res.succeeded()) {
+                // turning auto commit back on commits an open transaction
+                if (autoCommit) {
+                    committed();
+                }
+                transaction = !autoCommit;
+            }
+            if (resultHandler != null) {
+                resultHandler.handle(res);
+            }
+        });
+        return this;
+    }
+
+    @Override
+    public SQLConnection execute(String sql, Handler<AsyncResult<Void>> resultHandler) {
+        conn.execute(sql, resultHandler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection query(String sql, Handler<AsyncResult<ResultSet>> resultHandler) {
+        conn.query(sql, resultHandler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection queryStream(String sql, Handler<AsyncResult<SQLRowStream>> handler) {
+        conn.queryStream(sql, handler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection queryWithParams(String sql, JsonArray params, Handler<AsyncResult<ResultSet>> resultHandler) {
+        conn.queryWithParams(sql, params, resultHandler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection queryStreamWithParams(String sql, JsonArray params, Handler<AsyncResult<SQLRowStream>> handler) {
+        conn.queryStreamWithParams(sql, params, handler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection update(String sql, Handler<AsyncResult<UpdateResult>> resultHandler) {
+        conn.update(sql, resultHandler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection updateWithParams(String sql, JsonArray params, Handler<AsyncResult<UpdateResult>> resultHandler) {
+        conn.updateWithParams(sql, params, resultHandler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection call(String sql, Handler<AsyncResult<ResultSet>> resultHandler) {
+        conn.call(sql, resultHandler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection callWithParams(String sql, JsonArray params, JsonArray outputs, Handler<AsyncResult<ResultSet>> resultHandler) {
+        conn.callWithParams(sql, params, outputs, resultHandler);
+        return this;
+    }
+
+    @Override
+    public void close(Handler<AsyncResult<Void>> handler) {
+        release();
+        conn.close(handler);
+    }
+
+    @Override
+    public void close() {
+        release();
+        conn.close();
+    }
+
+    @Override
+    public SQLConnection commit(Handler<AsyncResult<Void>> handler) {
+        conn.commit(res -> {
+            if (res.succeeded()) {
+                committed();
+            } else {
+                writtenTables = null;
+            }
+            if (handler != null) {
+                handler.handle(res);
+            }
+        });
+        return this;
+    }
+
+    @Override
+    public SQLConnection rollback(Handler<AsyncResult<Void>> handler) {
+        writtenTables = null;
+        conn.rollback(handler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection setQueryTimeout(int timeoutInSeconds) {
+        conn.setQueryTimeout(timeoutInSeconds);
+        return this;
+    }
+
+    @Override
+    public SQLConnection batch(List<String> sqlStatements, Handler<AsyncResult<List<Integer>>> handler) {
+        conn.batch(sqlStatements, handler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection batchWithParams(String sqlStatement, List<JsonArray> args, Handler<AsyncResult<List<Integer>>> handler) {
+        conn.batchWithParams(sqlStatement, args, handler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection batchCallableWithParams(String sqlStatement, List<JsonArray> inArgs, List<JsonArray> outArgs, Handler<AsyncResult<List<Integer>>> handler) {
+        conn.batchCallableWithParams(sqlStatement, inArgs, outArgs, handler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection setTransactionIsolation(TransactionIsolation isolation, Handler<AsyncResult<Void>> handler) {
+        conn.setTransactionIsolation(isolation, handler);
+        return this;
+    }
+
+    @Override
+    public SQLConnection getTransactionIsolation(Handler<AsyncResult<TransactionIsolation>> handler) {
+        conn.getTransactionIsolation(handler);
+        return this;
+    }
+
+    @Override
+    public <N> N unwrap() {
+        return conn.unwrap();
+    }
+}
@@ -0,0 +1,14 @@
+package com.doophp.db;
+
+import io.vertx.core.Future;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ * Unit of work run by SQLClient.inTransaction(). Complete done with the result to commit, fail it to roll back.
+ * The connection is released by inTransaction, don't close it here.
+ */
+@FunctionalInterface
+public interface TransactionWork<T> {
+
+    void run(SQLConnection conn, Future<T> done);
+}
@@ -0,0 +1,581 @@
+package com.doophp.db.jdbc;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.SQLRowStream;
+import io.vertx.ext.sql.TransactionIsolation;
+import io.vertx.ext.sql.UpdateResult;
+
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * SQLConnection over one pooled java.sql.Connection. Each call runs on the pool's executor, one at a time per
+ * connection, and its handler is called on the Vert.x context the call was made from.
+ *
+ * Values come back the way the async driver returns them: numbers and booleans as is, dates and times as ISO
+ * strings, BLOBs as byte[]. Queries, updates and batches use the connection's StatementCache (server side prepared
+ * on MySQL), streams read through a cursor in jdbc_fetch_size chunks. unwrap() gives the java.sql.Connection.
+ */
+public class JDBCConnection implements SQLConnection {
+
+    protected final JDBCPool pool;
+    protected final JDBCPool.Pooled pooled;
+    protected final Connection conn;
+    protected final StatementCache statements;
+    protected final Context context;
+    protected final Deque<Runnable> tasks = new ArrayDeque<>();
+    protected boolean running = false;
+    protected int queryTimeout = 0;
+    protected JDBCRowStream stream;
+    protected boolean closed = false;
+    protected volatile boolean failFast = false;
+    protected volatile boolean failed = false;
+
+    @FunctionalInterface
+    protected interface Blocking<T> {
+        T call() throws Exception;
+    }
+
+    @FunctionalInterface
+    protected interface StatementWork<T> {
+        T run(PreparedStatement stmt) throws SQLException;
+    }
+
+    public JDBCConnection(JDBCPool pool, JDBCPool.Pooled pooled, Context context) {
+        this.pool = pool;
+        this.pooled = pooled;
+        this.conn = pooled.conn;
+        this.statements = pooled.statements;
+        this.context = context;
+    }
+
+    /**
+     * Queues task behind the ones already submitted for this connection, they run on the executor one at a time
+     * and in order (a virtual thread executor would otherwise run them side by side).
+     */
+    protected void submit(Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        pool.executor.execute(this::runTasks);
+    }
+
+    protected void runTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (Throwable ignored) {
+                // tasks report their own failures to their handlers
+            }
+        }
+    }
+
+    /**
+     * With failFast on, once a call fails every call queued after it fails without running, eg. for the statements
+     * of a SQLPipeline sent at once. Turning it on or off clears the failure.
+     */
+    public void failFast(boolean failFast) {
+        this.failFast = failFast;
+        this.failed = false;
+    }
+
+    /**
+     * Runs work on the executor and calls handler with its result on the caller's context.
+     */
+    protected <T> void run(Handler<AsyncResult<T>> handler, Blocking<T> work) {
+        Context current = Vertx.currentContext();
+        final Context target = current != null ? current : context;
+        if (closed) {
+            target.runOnContext(v -> handler.handle(Future.failedFuture(new IllegalStateException("Connection is closed"))));
+            return;
+        }
+        submit(() -> {
+            AsyncResult<T> res;
+            if (failFast && failed) {
+                res = Future.failedFuture(new IllegalStateException("Skipped, an earlier statement on the connection failed"));
+            } else {
+                try {
+                    res = Future.succeededFuture(work.call());
+                } catch (Throwable e) {
+                    failed = true;
+                    res = Future.failedFuture(e);
+                }
+            }
+            if (handler != null) {
+                final AsyncResult<T> result = res;
+                target.runOnContext(v -> handler.handle(result));
+            }
+        });
+    }
+
+    protected void applyTimeout(Statement stmt) throws SQLException {
+        if (queryTimeout > 0) {
+            stmt.setQueryTimeout(queryTimeout);
+        }
+    }
+
+    /**
+     * Runs work with the cached statement for sql (a one off statement without the cache or the first time sql is seen).
+     * A cached statement the server no longer knows, eg. after a reconnect, is prepared again and work retried once,
+     * outside transactions.
+     */
+    protected <T> T withStatement(String sql, boolean generatedKeys, StatementWork<T> work) throws SQLException {
+        PreparedStatement stmt = statements == null ? null : statements.get(sql, generatedKeys);
+        if (stmt == null) {
+            return withOneOffStatement(sql, generatedKeys, work);
+        }
+        try {
+            // cached statements keep their settings, reset what the last user may have changed
+            stmt.setQueryTimeout(queryTimeout);
+            return work.run(stmt);
+        } catch (SQLException e) {
+            if (!StatementCache.isStale(stmt, e) || !conn.getAutoCommit()) {
+                throw e;
+            }
+            statements.evict(sql, generatedKeys);
+            stmt = statements.get(sql, generatedKeys);
+            if (stmt == null) {
+                return withOneOffStatement(sql, generatedKeys, work);
+            }
+            stmt.setQueryTimeout(queryTimeout);
+            return work.run(stmt);
+        }
+    }
+
+    protected <T> T withOneOffStatement(String sql, boolean generatedKeys, StatementWork<T> work) throws SQLException {
+        try (PreparedStatement stmt = generatedKeys ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : conn.prepareStatement(sql)) {
+            applyTimeout(stmt);
+            return work.run(stmt);
+        }
+    }
+
+    protected static void bind(PreparedStatement stmt, JsonArray params) throws SQLException {
+        if (params == null) {
+            return;
+        }
+        for (int i = 0; i < params.size(); i++) {
+            Object val = params.getValue(i);
+            if (val == null) {
+                stmt.setNull(i + 1, Types.NULL);
+            } else {
+                stmt.setObject(i + 1, val);
+            }
+        }
+    }
+
+    protected static ResultSet toResultSet(java.sql.ResultSet rs) throws SQLException {
+        List<String> columns = columns(rs.getMetaData());
+        List<JsonArray> results = new ArrayList<>();
+        while (rs.next()) {
+            results.add(row(rs, columns.size()));
+        }
+        return new ResultSet(columns, results, null);
+    }
+
+    protected static List<String> columns(ResultSetMetaData meta) throws SQLException {
+        List<String> columns = new ArrayList<>(meta.getColumnCount());
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            columns.add(meta.getColumnLabel(i));
+        }
+        return columns;
+    }
+
+    protected static JsonArray row(java.sql.ResultSet rs, int columns) throws SQLException {
+        // filled as a plain list, JsonArray.add() rejects the nulls of SQL NULL columns
+        List<Object> values = new ArrayList<>(columns);
+        for (int i = 1; i <= columns; i++) {
+            values.add(toJsonValue(rs.getObject(i)));
+        }
+        return new JsonArray(values);
+    }
+
+    protected static Object toJsonValue(Object val) throws SQLException {
+        if (val == null || val instanceof String || val instanceof Boolean || val instanceof byte[]) {
+            return val;
+        }
+        if (val instanceof Number) {
+            return val;
+        }
+        if (val instanceof Timestamp) {
+            return ((Timestamp) val).toLocalDateTime().toString();
+        }
+        if (val instanceof java.sql.Date) {
+            return ((java.sql.Date) val).toLocalDate().toString();
+        }
+        if (val instanceof Time) {
+            return ((Time) val).toLocalTime().toString();
+        }
+        if (val instanceof Clob) {
+            Clob clob = (Clob) val;
+            return clob.getSubString(1, (int) clob.length());
+        }
+        if (val instanceof Blob) {
+            Blob blob = (Blob) val;
+            return blob.getBytes(1, (int) blob.length());
+        }
+        return val.toString();
+    }
+
+    /**
+     * Generated keys are only asked for on INSERT/REPLACE, pgjdbc answers RETURN_GENERATED_KEYS by appending
+     * RETURNING * to the statement, which would send back every updated or deleted row.
+     */
+    protected UpdateResult executeUpdate(String sql, JsonArray params) throws SQLException {
+        final boolean insert = isInsert(sql);
+        return withStatement(sql, insert, stmt -> {
+            bind(stmt, params);
+            int updated = stmt.executeUpdate();
+            JsonArray keys = new JsonArray();
+            if (insert) {
+                try (java.sql.ResultSet rs = stmt.getGeneratedKeys()) {
+                    while (rs.next()) {
+                        keys.add(toJsonValue(rs.getObject(1)));
+                    }
+                }
+            }
+            return new UpdateResult(updated, keys);
+        });
+    }
+
+    protected static boolean isInsert(String sql) {
+        int i = 0;
+        int len = sql.length();
+        while (i < len) {
+            if (Character.isWhitespace(sql.charAt(i))) {
+                i++;
+            } else if (sql.startsWith("/*", i)) {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? len : end + 2;
+            } else {
+                break;
+            }
+        }
+        return sql.regionMatches(true, i, "INSERT", 0, 6) || sql.regionMatches(true, i, "REPLACE", 0, 7);
+    }
+
+    protected ResultSet executeQuery(String sql, JsonArray params) throws SQLException {
+        return withStatement(sql, false, stmt -> {
+            bind(stmt, params);
+            try (java.sql.ResultSet rs = stmt.executeQuery()) {
+                return toResultSet(rs);
+            }
+        });
+    }
+
+    protected SQLRowStream openStream(String sql, JsonArray params, Context target) throws SQLException {
+        // Postgres only uses a cursor inside a transaction, the stream commits and turns autocommit back on when closed
+        boolean restoreAutoCommit = conn.getAutoCommit() && conn.getMetaData().getURL().startsWith("jdbc:postgresql:");
+        if (restoreAutoCommit) {
+            conn.setAutoCommit(false);
+        }
+        PreparedStatement stmt = conn.prepareStatement(sql, java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY);
+        try {
+            applyTimeout(stmt);
+            stmt.setFetchSize(pool.fetchSize);
+            bind(stmt, params);
+            java.sql.ResultSet rs = stmt.executeQuery();
+            stream = new JDBCRowStream(this, stmt, rs, columns(rs.getMetaData()), target, restoreAutoCommit);
+            return stream;
+        } catch (SQLException e) {
+            JDBCPool.closeQuietly(stmt);
+            if (restoreAutoCommit) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public SQLConnection setAutoCommit(boolean autoCommit, Handler<AsyncResult<Void>> resultHandler) {
+        run(resultHandler, () -> {
+            conn.setAutoCommit(autoCommit);
+            return null;
+        });
+        return this;
+    }
+
+    @Override
+    public SQLConnection execute(String sql, Handler<AsyncResult<Void>> resultHandler) {
+        run(resultHandler, () -> {
+            try (Statement stmt = conn.createStatement()) {
+                applyTimeout(stmt);
+                stmt.execute(sql);
+            }
+            return null;
+        });
+        return this;
+    }
+
+    @Override
+    public SQLConnection query(String sql, Handler<AsyncResult<ResultSet>> resultHandler) {
+        run(resultHandler, () -> executeQuery(sql, null));
+        return this;
+    }
+
+    @Override
+    public SQLConnection queryWithParams(String sql, JsonArray params, Handler<AsyncResult<ResultSet>> resultHandler) {
+        run(resultHandler, () -> executeQuery(sql, params));
+        return this;
+    }
+
+    @Override
+    public SQLConnection queryStream(String sql, Handler<AsyncResult<SQLRowStream>> handler) {
+        return queryStreamWithParams(sql, null, handler);
+    }
+
+    @Override
+    public SQLConnection queryStreamWithParams(String sql, JsonArray params, Handler<AsyncResult<SQLRowStream>> handler) {
+        Context current = Vertx.currentContext();
+        final Context target = current != null ? current : context;
+        run(handler, () -> openStream(sql, params, target));
+        return this;
+    }
+
+    @Override
+    public SQLConnection update(String sql, Handler<AsyncResult<UpdateResult>> resultHandler) {
+        run(resultHandler, () -> executeUpdate(sql, null));
+        return this;
+    }
+
+    @Override
+    public SQLConnection updateWithParams(String sql, JsonArray params, Handler<AsyncResult<UpdateResult>> resultHandler) {
+        run(resultHandler, () -> executeUpdate(sql, params));
+        return this;
+    }
+
+    @Override
+    public SQLConnection call(String sql, Handler<AsyncResult<ResultSet>> resultHandler) {
+        return callWithParams(sql, null, null, resultHandler);
+    }
+
+    /**
+     * outputs are not registered, procedures hand back their result set only.
+     */
+    @Override
+    public SQLConnection callWithParams(String sql, JsonArray params, JsonArray outputs, Handler<AsyncResult<ResultSet>> resultHandler) {
+        run(resultHandler, () -> {
+            try (CallableStatement stmt = conn.prepareCall(sql)) {
+                applyTimeout(stmt);
+                bind(stmt, params);
+                if (!stmt.execute()) {
+                    return new ResultSet(new ArrayList<>(), new ArrayList<>(), null);
+                }
+                try (java.sql.ResultSet rs = stmt.getResultSet()) {
+                    return toResultSet(rs);
+                }
+            }
+        });
+        return this;
+    }
+
+    @Override
+    public void close(Handler<AsyncResult<Void>> handler) {
+        if (closed) {
+            if (handler != null) {
+                handler.handle(Future.succeededFuture());
+            }
+            return;
+        }
+        Context current = Vertx.currentContext();
+        final Context target = current != null ? current : context;
+        closed = true;
+        submit(() -> {
+            boolean clean;
+            if (stream != null) {
+                stream.closeResources();
+            }
+            try {
+                // a transaction left open is rolled back, the next user gets the connection in autocommit mode
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+                clean = !conn.isClosed();
+            } catch (SQLException e) {
+                clean = false;
+            }
+            if (clean) {
+                pool.release(pooled);
+            } else {
+                JDBCPool.closeQuietly(conn);
+                pool.discarded();
+            }
+            if (handler != null) {
+                target.runOnContext(v -> handler.handle(Future.succeededFuture()));
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        close(null);
+    }
+
+    @Override
+    public SQLConnection commit(Handler<AsyncResult<Void>> handler) {
+        run(handler, () -> {
+            conn.commit();
+            return null;
+        });
+        return this;
+    }
+
+    @Override
+    public SQLConnection rollback(Handler<AsyncResult<Void>> handler) {
+        run(handler, () -> {
+            conn.rollback();
+            return null;
+        });
+        return this;
+    }
+
+    @Override
+    public SQLConnection setQueryTimeout(int timeoutInSeconds) {
+        queryTimeout = timeoutInSeconds;
+        return this;
+    }
+
+    @Override
+    public SQLConnection batch(List<String> sqlStatements, Handler<AsyncResult<List<Integer>>> handler) {
+        run(handler, () -> {
+            try (Statement stmt = conn.createStatement()) {
+                applyTimeout(stmt);
+                for (String sql : sqlStatements) {
+                    stmt.addBatch(sql);
+                }
+                return counts(stmt.executeBatch());
+            }
+        });
+        return this;
+    }
+
+    @Override
+    public SQLConnection batchWithParams(String sqlStatement, List<JsonArray> args, Handler<AsyncResult<List<Integer>>> handler) {
+        run(handler, () -> withStatement(sqlStatement, false, stmt -> {
+            try {
+                for (JsonArray params : args) {
+                    bind(stmt, params);
+                    stmt.addBatch();
+                }
+                return counts(stmt.executeBatch());
+            } finally {
+                stmt.clearBatch();
+            }
+        }));
+        return this;
+    }
+
+    @Override
+    public SQLConnection batchCallableWithParams(String sqlStatement, List<JsonArray> inArgs, List<JsonArray> outArgs, Handler<AsyncResult<List<Integer>>> handler) {
+        run(handler, () -> {
+            try (CallableStatement stmt = conn.prepareCall(sqlStatement)) {
+                applyTimeout(stmt);
+                for (JsonArray params : inArgs) {
+                    bind(stmt, params);
+                    stmt.addBatch();
+                }
+                return counts(stmt.executeBatch());
+            }
+        });
+        return this;
+    }
+
+    protected static List<Integer> counts(int[] counts) {
+        List<Integer> list = new ArrayList<>(counts.length);
+        for (int c : counts) {
+            list.add(c);
+        }
+        return list;
+    }
+
+    @Override
+    public SQLConnection setTransactionIsolation(TransactionIsolation isolation, Handler<AsyncResult<Void>> handler) {
+        run(handler, () -> {
+            conn.setTransactionIsolation(toJdbc(isolation));
+            return null;
+        });
+        return this;
+    }
+
+    @Override
+    public SQLConnection getTransactionIsolation(Handler<AsyncResult<TransactionIsolation>> handler) {
+        run(handler, () -> fromJdbc(conn.getTransactionIsolation()));
+        return this;
+    }
+
+    protected static int toJdbc(TransactionIsolation isolation) {
+        switch (isolation) {
+            case READ_UNCOMMITTED:
+                return Connection.TRANSACTION_READ_UNCOMMITTED;
+            case READ_COMMITTED:
+                return Connection.TRANSACTION_READ_COMMITTED;
+            case REPEATABLE_READ:
+                return Connection.TRANSACTION_REPEATABLE_READ;
+            case SERIALIZABLE:
+                return Connection.TRANSACTION_SERIALIZABLE;
+            default:
+                return Connection.TRANSACTION_NONE;
+        }
+    }
+
+    protected static TransactionIsolation fromJdbc(int level) {
+        switch (level) {
+            case Connection.TRANSACTION_READ_UNCOMMITTED:
+                return TransactionIsolation.READ_UNCOMMITTED;
+            case Connection.TRANSACTION_READ_COMMITTED:
+                return TransactionIsolation.READ_COMMITTED;
+            case Connection.TRANSACTION_REPEATABLE_READ:
+                return TransactionIsolation.REPEATABLE_READ;
+            case Connection.TRANSACTION_SERIALIZABLE:
+                return TransactionIsolation.SERIALIZABLE;
+            default:
+                return TransactionIsolation.NONE;
+        }
+    }
+
+    /**
+     * Runs blocking work with the java.sql.Connection on the executor, eg. jOOQ execution, see JDBCSQLClient.jooq().
+     */
+    public <T> void withConnection(java.util.function.Function<Connection, T> work, Handler<AsyncResult<T>> handler) {
+        run(handler, () -> work.apply(conn));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <N> N unwrap() {
+        return (N) conn;
+    }
+}
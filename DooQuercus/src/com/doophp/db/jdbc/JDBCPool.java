@@ -0,0 +1,355 @@
+package com.doophp.db.jdbc;
+
+import com.doophp.db.SQLMetrics;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.asyncsql.AsyncSQLClient;
+import io.vertx.ext.sql.SQLClient;
+import io.vertx.ext.sql.SQLConnection;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JDBC connection pool behind the AsyncSQLClient interface, so SQLClient runs on it unchanged (see JDBCSQLClient).
+ *
+ * Every blocking JDBC call runs on the pool's executor, virtual threads when the JDK has them (21+) and a bounded
+ * pool of maxPoolSize daemon threads otherwise, and its result is handed back on the Vert.x context of the caller.
+ * Taking a connection never blocks: an idle one is reused, a new one is opened on the executor while the pool is
+ * below maxPoolSize, otherwise the request waits in line for the next released connection.
+ *
+ * Config: "url" (built from host, port and database when missing), "username", "password", "maxPoolSize",
+ * "jdbc_properties" (driver properties), "jdbc_executor" ("virtual" or "bounded"), "jdbc_fetch_size" (rows per
+ * cursor fetch of a stream, 500), "jdbc_validate_idle_ms" (connections idle longer are checked with isValid()
+ * before reuse, 30000) and "jdbc_statement_cache_size" (prepared statements kept per connection, 64, see StatementCache).
+ * MySQL gets server side prepared statements and cursor fetch unless the properties say otherwise.
+ */
+public class JDBCPool implements AsyncSQLClient {
+
+    protected static final Map<String, JDBCPool> pools = new ConcurrentHashMap<>();
+
+    protected final Vertx vertx;
+    protected final String poolName;
+    protected final String url;
+    protected final Properties properties;
+    protected final int maxPoolSize;
+    protected final int fetchSize;
+    protected final long validateIdleMs;
+    protected final ExecutorService executor;
+    protected final int statementCacheSize;
+    protected final Deque<Pooled> idle = new ArrayDeque<>();
+    protected final Deque<Waiter> waiters = new ArrayDeque<>();
+    protected int size = 0;
+    protected boolean closed = false;
+
+    protected final LongAdder statementHits = new LongAdder();
+    protected final LongAdder statementMisses = new LongAdder();
+    protected final LongAdder statementEvictions = new LongAdder();
+    protected SQLMetrics metrics;
+
+    /**
+     * A physical connection and its statement cache, null when "jdbc_statement_cache_size" is 0.
+     */
+    protected static class Pooled {
+        final Connection conn;
+        final StatementCache statements;
+        long since = System.currentTimeMillis();
+
+        Pooled(Connection conn, StatementCache statements) {
+            this.conn = conn;
+            this.statements = statements;
+        }
+    }
+
+    protected static class Waiter {
+        final Context context;
+        final Handler<AsyncResult<SQLConnection>> handler;
+
+        Waiter(Context context, Handler<AsyncResult<SQLConnection>> handler) {
+            this.context = context;
+            this.handler = handler;
+        }
+    }
+
+    public JDBCPool(Vertx vertx, String poolName, JsonObject config) {
+        this.vertx = vertx;
+        this.poolName = poolName;
+        this.url = url(config);
+        this.properties = properties(config);
+        this.maxPoolSize = config.getInteger("maxPoolSize", 10);
+        this.fetchSize = config.getInteger("jdbc_fetch_size", 500);
+        this.validateIdleMs = config.getLong("jdbc_validate_idle_ms", 30000L);
+        this.statementCacheSize = config.getInteger("jdbc_statement_cache_size", 64);
+        this.executor = executor(poolName, maxPoolSize, !"bounded".equals(config.getString("jdbc_executor", "virtual")));
+    }
+
+    /**
+     * Pool shared by every client created with the same pool name, like MySQLClient.createShared().
+     */
+    public static JDBCPool forPool(Vertx vertx, String poolName, JsonObject config) {
+        return pools.computeIfAbsent(poolName, name -> new JDBCPool(vertx, name, config));
+    }
+
+    /**
+     * Virtual thread per task executor when the JDK has one (looked up reflectively, this builds on Java 8),
+     * else a bounded pool. Tasks only run while they own a connection, so threads = maxPoolSize never starves.
+     */
+    protected static ExecutorService executor(String poolName, int threads, boolean virtual) {
+        if (virtual) {
+            try {
+                Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // older JDK, fall back to platform threads
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "doo-jdbc-" + poolName + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    protected static String url(JsonObject config) {
+        String url = config.getString("url");
+        if (url != null) {
+            return url;
+        }
+        boolean postgres = "POSTGRES".equalsIgnoreCase(config.getString("sql_dialect"));
+        return "jdbc:" + (postgres ? "postgresql" : "mysql") + "://" + config.getString("host", "localhost") + ":"
+                + config.getInteger("port", postgres ? 5432 : 3306) + "/" + config.getString("database", "");
+    }
+
+    protected static Properties properties(JsonObject config) {
+        Properties props = new Properties();
+        if (url(config).startsWith("jdbc:mysql:")) {
+            props.setProperty("useServerPrepStmts", "true");
+            props.setProperty("useCursorFetch", "true");
+        }
+        JsonObject extra = config.getJsonObject("jdbc_properties");
+        if (extra != null) {
+            for (Map.Entry<String, Object> e : extra) {
+                props.setProperty(e.getKey(), String.valueOf(e.getValue()));
+            }
+        }
+        if (config.getString("username") != null) {
+            props.setProperty("user", config.getString("username"));
+        }
+        if (config.getString("password") != null) {
+            props.setProperty("password", config.getString("password"));
+        }
+        return props;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    @Override
+    public SQLClient getConnection(Handler<AsyncResult<SQLConnection>> handler) {
+        Context context = vertx.getOrCreateContext();
+        Pooled reuse = null;
+        synchronized (this) {
+            if (closed) {
+                context.runOnContext(v -> handler.handle(Future.failedFuture(new IllegalStateException("JDBC pool " + poolName + " is closed"))));
+                return this;
+            }
+            if (!idle.isEmpty()) {
+                reuse = idle.pop();
+            } else if (size < maxPoolSize) {
+                size++;
+            } else {
+                waiters.add(new Waiter(context, handler));
+                return this;
+            }
+        }
+        handOut(reuse, context, handler);
+        return this;
+    }
+
+    /**
+     * Validates a reused connection (opens a new one when reuse is null or no longer valid) on the executor.
+     */
+    protected void handOut(Pooled reuse, Context context, Handler<AsyncResult<SQLConnection>> handler) {
+        executor.execute(() -> {
+            Connection conn = null;
+            try {
+                Pooled pooled;
+                if (reuse != null && (System.currentTimeMillis() - reuse.since < validateIdleMs || reuse.conn.isValid(2))) {
+                    pooled = reuse;
+                } else {
+                    if (reuse != null) {
+                        closeQuietly(reuse.conn);
+                    }
+                    // a new connection starts with an empty statement cache, statements of the old one are gone with it
+                    conn = DriverManager.getConnection(url, properties);
+                    pooled = new Pooled(conn, statementCacheSize > 0 ? new StatementCache(conn, statementCacheSize, this) : null);
+                }
+                JDBCConnection wrapped = new JDBCConnection(this, pooled, context);
+                context.runOnContext(v -> handler.handle(Future.succeededFuture(wrapped)));
+            } catch (Throwable e) {
+                if (conn != null) {
+                    closeQuietly(conn);
+                }
+                discarded();
+                context.runOnContext(v -> handler.handle(Future.failedFuture(e)));
+            }
+        });
+    }
+
+    /**
+     * A connection given back in a clean state (autocommit on), called on the executor.
+     */
+    protected void release(Pooled pooled) {
+        Waiter next;
+        synchronized (this) {
+            if (closed) {
+                size--;
+                closeQuietly(pooled.conn);
+                shutdownWhenDrained();
+                return;
+            }
+            next = waiters.poll();
+            if (next == null) {
+                pooled.since = System.currentTimeMillis();
+                idle.push(pooled);
+                return;
+            }
+        }
+        JDBCConnection wrapped = new JDBCConnection(this, pooled, next.context);
+        next.context.runOnContext(v -> next.handler.handle(Future.succeededFuture(wrapped)));
+    }
+
+    /**
+     * A connection that broke or failed to open, its slot goes to the next waiter.
+     */
+    protected void discarded() {
+        Waiter next;
+        synchronized (this) {
+            next = waiters.poll();
+            if (next == null) {
+                size--;
+                shutdownWhenDrained();
+                return;
+            }
+        }
+        handOut(null, next.context, next.handler);
+    }
+
+    /**
+     * Stops the executor once a closed pool has no connection out any more, those still need it to be released.
+     */
+    protected synchronized void shutdownWhenDrained() {
+        if (closed && size == 0) {
+            executor.shutdown();
+        }
+    }
+
+    protected static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+            // already broken
+        }
+    }
+
+    protected SQLMetrics metrics() {
+        if (metrics == null) {
+            metrics = SQLMetrics.get(poolName);
+        }
+        return metrics;
+    }
+
+    protected void statementCacheHit() {
+        statementHits.increment();
+        SQLMetrics m = metrics();
+        if (m != null) {
+            m.statementCacheHit();
+        }
+    }
+
+    protected void statementCacheMiss() {
+        statementMisses.increment();
+        SQLMetrics m = metrics();
+        if (m != null) {
+            m.statementCacheMiss();
+        }
+    }
+
+    protected void statementCacheEviction() {
+        statementEvictions.increment();
+        SQLMetrics m = metrics();
+        if (m != null) {
+            m.statementCacheEviction();
+        }
+    }
+
+    public synchronized JsonObject stats() {
+        return new JsonObject()
+                .put("size", size)
+                .put("idle", idle.size())
+                .put("waiting", waiters.size())
+                .put("max_size", maxPoolSize)
+                .put("statement_cache", new JsonObject()
+                        .put("capacity", statementCacheSize)
+                        .put("hits", statementHits.sum())
+                        .put("misses", statementMisses.sum())
+                        .put("evictions", statementEvictions.sum()));
+    }
+
+    @Override
+    public void close(Handler<AsyncResult<Void>> handler) {
+        Context context = vertx.getOrCreateContext();
+        Deque<Pooled> toClose;
+        Deque<Waiter> failed;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            size -= idle.size();
+            idle.clear();
+            failed = new ArrayDeque<>(waiters);
+            waiters.clear();
+        }
+        pools.remove(poolName, this);
+        for (Waiter w : failed) {
+            w.context.runOnContext(v -> w.handler.handle(Future.failedFuture(new IllegalStateException("JDBC pool " + poolName + " is closed"))));
+        }
+        executor.execute(() -> {
+            for (Pooled i : toClose) {
+                closeQuietly(i.conn);
+            }
+            shutdownWhenDrained();
+            if (handler != null) {
+                context.runOnContext(v -> handler.handle(Future.succeededFuture()));
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        close(null);
+    }
+}
@@ -0,0 +1,216 @@
+package com.doophp.db.jdbc;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.SQLRowStream;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Rows of a JDBC cursor as a SQLRowStream. One fetch of up to jdbc_fetch_size rows runs on the executor at a time,
+ * the next one only starts when the rows of the last are handed out and the stream is not paused, so a slow
+ * consumer holds back the database instead of filling memory. Handlers run on the context the stream was opened from.
+ */
+public class JDBCRowStream implements SQLRowStream {
+
+    protected final JDBCConnection owner;
+    protected final PreparedStatement stmt;
+    protected final ResultSet rs;
+    protected final List<String> columns;
+    protected final Context context;
+    protected final boolean restoreAutoCommit;
+    protected final Deque<JsonArray> buffer = new ArrayDeque<>();
+    protected Handler<JsonArray> handler;
+    protected Handler<Void> endHandler;
+    protected Handler<Throwable> exceptionHandler;
+    protected boolean paused = false;
+    protected boolean fetching = false;
+    protected boolean exhausted = false;
+    protected boolean closed = false;
+    protected volatile boolean resourcesClosed = false;
+
+    public JDBCRowStream(JDBCConnection owner, PreparedStatement stmt, ResultSet rs, List<String> columns, Context context, boolean restoreAutoCommit) {
+        this.owner = owner;
+        this.stmt = stmt;
+        this.rs = rs;
+        this.columns = columns;
+        this.context = context;
+        this.restoreAutoCommit = restoreAutoCommit;
+    }
+
+    @Override
+    public SQLRowStream handler(Handler<JsonArray> handler) {
+        this.handler = handler;
+        if (handler != null) {
+            drain();
+        }
+        return this;
+    }
+
+    @Override
+    public SQLRowStream exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override
+    public SQLRowStream endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        return this;
+    }
+
+    @Override
+    public SQLRowStream resultSetClosedHandler(Handler<Void> handler) {
+        // one result set per statement, the end handler is called when it is done
+        return this;
+    }
+
+    @Override
+    public void moreResults() {
+    }
+
+    @Override
+    public SQLRowStream pause() {
+        paused = true;
+        return this;
+    }
+
+    @Override
+    public SQLRowStream resume() {
+        if (paused) {
+            paused = false;
+            drain();
+        }
+        return this;
+    }
+
+    @Override
+    public int column(String name) {
+        return columns.indexOf(name);
+    }
+
+    @Override
+    public List<String> columns() {
+        return columns;
+    }
+
+    protected void drain() {
+        while (!paused && !closed && handler != null && !buffer.isEmpty()) {
+            handler.handle(buffer.poll());
+        }
+        if (paused || closed || handler == null || !buffer.isEmpty() || fetching) {
+            return;
+        }
+        if (exhausted) {
+            close(res -> {
+                if (endHandler != null) {
+                    endHandler.handle(null);
+                }
+            });
+            return;
+        }
+        fetch();
+    }
+
+    protected void fetch() {
+        if (owner.closed) {
+            fail(new IllegalStateException("Connection closed while streaming"));
+            return;
+        }
+        fetching = true;
+        owner.submit(() -> {
+            List<JsonArray> rows = new ArrayList<>();
+            Throwable error = null;
+            boolean last = false;
+            try {
+                while (rows.size() < owner.pool.fetchSize) {
+                    if (!rs.next()) {
+                        last = true;
+                        break;
+                    }
+                    rows.add(JDBCConnection.row(rs, columns.size()));
+                }
+            } catch (Throwable e) {
+                error = e;
+            }
+            final Throwable failure = error;
+            final boolean end = last;
+            context.runOnContext(v -> {
+                fetching = false;
+                if (failure != null) {
+                    fail(failure);
+                    return;
+                }
+                buffer.addAll(rows);
+                exhausted = end;
+                drain();
+            });
+        });
+    }
+
+    protected void fail(Throwable err) {
+        close(res -> {
+            if (exceptionHandler != null) {
+                exceptionHandler.handle(err);
+            }
+        });
+    }
+
+    @Override
+    public void close(Handler<AsyncResult<Void>> handler) {
+        if (closed) {
+            if (handler != null) {
+                handler.handle(Future.succeededFuture());
+            }
+            return;
+        }
+        closed = true;
+        buffer.clear();
+        if (owner.closed) {
+            // the connection was closed first and closed the cursor before going back to the pool
+            if (handler != null) {
+                handler.handle(Future.succeededFuture());
+            }
+            return;
+        }
+        owner.submit(() -> {
+            closeResources();
+            if (handler != null) {
+                context.runOnContext(v -> handler.handle(Future.succeededFuture()));
+            }
+        });
+    }
+
+    /**
+     * Closes the cursor, runs on the executor (from close() or from the connection's own close).
+     */
+    protected void closeResources() {
+        if (resourcesClosed) {
+            return;
+        }
+        resourcesClosed = true;
+        JDBCPool.closeQuietly(rs);
+        JDBCPool.closeQuietly(stmt);
+        if (restoreAutoCommit) {
+            try {
+                owner.conn.commit();
+                owner.conn.setAutoCommit(true);
+            } catch (Exception ignored) {
+                // the connection is checked again when it goes back to the pool
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        close(null);
+    }
+}
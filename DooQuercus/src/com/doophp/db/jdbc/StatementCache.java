@@ -0,0 +1,107 @@
+package com.doophp.db.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU of the PreparedStatements of one physical connection, keyed by SQL text, so the hot statements are parsed
+ * and planned by the server once per connection instead of on every execution. The least recently used statement
+ * is closed when a new one does not fit. A statement is only cached from the second time its SQL is seen, so SQL
+ * built per call (inline values, varying IN lists) runs as a one off statement and can't push the hot ones out.
+ * It lives as long as the connection and is only used from the connection's tasks, one at a time, so it needs no locking.
+ *
+ * Hits, misses and evictions are counted on the pool (JDBCPool.stats() and the pool's SQLMetrics).
+ */
+public class StatementCache {
+
+    protected final Connection conn;
+    protected final int capacity;
+    protected final JDBCPool pool;
+    protected final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>(32, 0.75f, true);
+    /**
+     * Keys seen recently but not cached yet, a few times the capacity.
+     */
+    protected final LinkedHashMap<String, Boolean> seen;
+
+    public StatementCache(Connection conn, int capacity, JDBCPool pool) {
+        this.conn = conn;
+        this.capacity = capacity;
+        this.pool = pool;
+        this.seen = new LinkedHashMap<String, Boolean>(32, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity * 4;
+            }
+        };
+    }
+
+    /**
+     * Cached statement for sql, prepared (evicting the least recently used one when full) on a miss.
+     * Null the first time sql is seen, the caller runs it as a one off statement then.
+     * Statements prepared for generated keys are cached apart from the plain ones.
+     */
+    public PreparedStatement get(String sql, boolean generatedKeys) throws SQLException {
+        String key = generatedKeys ? "K\u0000" + sql : sql;
+        PreparedStatement stmt = statements.get(key);
+        if (stmt != null && !stmt.isClosed()) {
+            pool.statementCacheHit();
+            return stmt;
+        }
+        pool.statementCacheMiss();
+        if (stmt == null && seen.put(key, Boolean.TRUE) == null) {
+            return null;
+        }
+        stmt = generatedKeys ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : conn.prepareStatement(sql);
+        statements.put(key, stmt);
+        if (statements.size() > capacity) {
+            Iterator<Map.Entry<String, PreparedStatement>> eldest = statements.entrySet().iterator();
+            JDBCPool.closeQuietly(eldest.next().getValue());
+            eldest.remove();
+            pool.statementCacheEviction();
+        }
+        return stmt;
+    }
+
+    public void evict(String sql, boolean generatedKeys) {
+        PreparedStatement stmt = statements.remove(generatedKeys ? "K\u0000" + sql : sql);
+        if (stmt != null) {
+            JDBCPool.closeQuietly(stmt);
+            pool.statementCacheEviction();
+        }
+    }
+
+    /**
+     * True when err says the server side statement is gone or outdated rather than the statement being wrong:
+     * it was closed, the server lost the handle (MySQL 1243, Postgres 26000, eg. after a reconnect) or the plan
+     * no longer matches the table (Postgres "cached plan must not change result type" after a schema change).
+     * Such a statement is prepared again and the execution retried once.
+     */
+    public static boolean isStale(PreparedStatement stmt, SQLException err) {
+        try {
+            if (stmt.isClosed()) {
+                return true;
+            }
+        } catch (SQLException e) {
+            return true;
+        }
+        String message = String.valueOf(err.getMessage());
+        return err.getErrorCode() == 1243 || "26000".equals(err.getSQLState()) || message.contains("cached plan must not change result type");
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public void clear() {
+        for (PreparedStatement stmt : statements.values()) {
+            JDBCPool.closeQuietly(stmt);
+        }
+        statements.clear();
+        seen.clear();
+    }
+}
@@ -1,6 +1,10 @@
 package com.doophp.db.jooq;
 
 import com.caucho.quercus.env.*;
+import com.doophp.db.BatchLoader;
+import com.doophp.db.Deadline;
+import com.doophp.db.NestedResultHydrator;
+import com.doophp.db.TransactionWork;
 import com.doophp.db.SQLClient;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
@@ -31,12 +35,13 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.TimeZone;
+import java.util.function.Supplier;
 import static org.jooq.impl.DSL.*;
 
 /**
  * Created by leng on 12/27/16.
  */
-public class BaseModel {
+public class BaseModel implements Cloneable {
 
     protected SQLClient client;
     /**
@@ -157,6 +162,28 @@ public class BaseModel {
         return client.dsl();
     }
 
+    /**
+     * Copy of this model whose calls run under the request's deadline, see SQLClient.withDeadline().
+     * The model itself is left as it is since it may be shared by other requests: $model = $model->withDeadline(3000);
+     */
+    public BaseModel withDeadline(Deadline deadline) {
+        try {
+            BaseModel copy = (BaseModel) clone();
+            copy.client = client.withDeadline(deadline);
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public BaseModel withDeadline(long timeoutMs) {
+        return withDeadline(Deadline.after(timeoutMs));
+    }
+
+    public Deadline getDeadline() {
+        return client.getDeadline();
+    }
+
 //    public void query(Env env, String sql, JsonArray params) {
 //        client.query(env, sql, params, null, null);
 //    }
@@ -189,6 +216,30 @@ public class BaseModel {
         client.query(env, sql, params, handler, errorHandler);
     }
 
+    public void query(Env env, String sql, JsonArray params, boolean columnar, final Callable handler, final Callable errorHandler) {
+        client.query(env, sql, params, columnar, handler, errorHandler);
+    }
+
+    public void queryColumnar(Env env, String sql, JsonArray params, final Callable handler, final Callable errorHandler) {
+        client.queryColumnar(env, sql, params, handler, errorHandler);
+    }
+
+    public void queryStream(Env env, String sql, JsonArray params, int batchSize, final Callable onBatch, final Callable onEnd, final Callable onError) {
+        client.queryStream(env, sql, params, batchSize, onBatch, onEnd, onError);
+    }
+
+    public void queryPrimary(Env env, String sql, JsonArray params, final Callable handler, final Callable errorHandler) {
+        client.queryPrimary(env, sql, params, handler, errorHandler);
+    }
+
+    public void queryCached(Env env, String sql, JsonArray params, long ttlMs, final Callable handler, final Callable errorHandler) {
+        client.queryCached(env, sql, params, ttlMs, handler, errorHandler);
+    }
+
+    public void queryCached(Env env, String sql, JsonArray params, long ttlMs, JsonArray tables, final Callable handler, final Callable errorHandler) {
+        client.queryCached(env, sql, params, ttlMs, tables, handler, errorHandler);
+    }
+
     public void update(Env env, String sql, JsonArray params) {
         client.update(env, sql, params, null, null);
     }
@@ -253,6 +304,10 @@ public class BaseModel {
         client.update(env, sql, params, handler, errorHandler);
     }
 
+    public void insertGrouped(Env env, String sql, JsonArray params, final Callable handler, final Callable errorHandler) {
+        client.insertGrouped(env, sql, params, handler, errorHandler);
+    }
+
     public void delete(Env env, String sql, JsonArray params) {
         client.update(env, sql, params, null, null);
     }
@@ -285,6 +340,64 @@ public class BaseModel {
         client.update(env, sql, params, handler, errorHandler);
     }
 
+    // ====================== Query templates =====================
+    /**
+     * Rendered once per model class + name, later calls reuse the cached SQL and bind order without calling builder.
+     */
+    public QueryTemplate template(String name, Supplier<? extends QueryPart> builder) {
+        return QueryTemplate.getOrCreate(templateKey(name), dsl(), builder);
+    }
+
+    /**
+     * PHP variant, builder is only called the first time and must return a jOOQ query.
+     */
+    public QueryTemplate template(Env env, String name, final Callable builder) {
+        return QueryTemplate.getOrCreate(templateKey(name), dsl(), () -> (QueryPart) builder.call(env).toJavaObject());
+    }
+
+    protected String templateKey(String name) {
+        return getClass().getName() + "#" + dsl().configuration().dialect() + "#" + name;
+    }
+
+    public void query(Env env, QueryTemplate template, JsonArray params, final Callable handler, final Callable errorHandler) {
+        client.query(env, template.getSql(), template.bind(params), handler, errorHandler);
+    }
+
+    public void query(Env env, QueryTemplate template, JsonObject params, final Callable handler, final Callable errorHandler) {
+        client.query(env, template.getSql(), template.bind(params), handler, errorHandler);
+    }
+
+    public void update(Env env, QueryTemplate template, JsonArray params, final Callable handler, final Callable errorHandler) {
+        client.update(env, template.getSql(), template.bind(params), handler, errorHandler);
+    }
+
+    public void update(Env env, QueryTemplate template, JsonObject params, final Callable handler, final Callable errorHandler) {
+        client.update(env, template.getSql(), template.bind(params), handler, errorHandler);
+    }
+
+    public void queryRaw(QueryTemplate template, JsonArray params, Handler<JsonArray> handler, Handler<Throwable> errorHandler) {
+        client.queryRaw(template.getSql(), template.bind(params), handler, errorHandler);
+    }
+
+    public void updateRaw(QueryTemplate template, JsonArray params, Handler<JsonObject> handler, Handler<Throwable> errorHandler) {
+        client.updateRaw(template.getSql(), template.bind(params), handler, errorHandler);
+    }
+
+    // ====================== Keyset pagination =====================
+    /**
+     * Pages of the query by a declared key instead of LIMIT/OFFSET, builder is called once per page, see KeysetPager.
+     */
+    public KeysetPager keyset(Supplier<? extends SelectQuery<?>> builder) {
+        return new KeysetPager(client, dsl(), builder);
+    }
+
+    /**
+     * PHP variant, builder must return a new jOOQ SelectQuery (eg. $dsl->selectQuery()) on every call.
+     */
+    public KeysetPager keyset(Env env, final Callable builder) {
+        return keyset(() -> (SelectQuery<?>) builder.call(env).toJavaObject());
+    }
+
     public Field alias(TableImpl table, TableField<?, ?> field) {
         return alias(table.getName(), field, "-");
     }
@@ -427,6 +540,52 @@ public class BaseModel {
         client.updateRaw(sql, params, handler, errorHandler);
     }
 
+    /**
+     * Query whose columns are aliased "table-field" (alias(), getAllFieldAlias()), handler receives rows nested per table.
+     */
+    public void queryNested(Env env, String sql, JsonArray params, final Callable handler, final Callable errorHandler) {
+        client.queryResultSet(sql, params, false, res -> {
+            if (res.failed()) {
+                getDefaultError(env, errorHandler).handle(res.cause());
+                return;
+            }
+            Value nested;
+            try {
+                nested = NestedResultHydrator.toNested(env, res.result(), "-");
+            } catch (RuntimeException e) {
+                getDefaultError(env, errorHandler).handle(e);
+                return;
+            }
+            handler.call(env, nested);
+        });
+    }
+
+    /**
+     * Nested query grouped by parentTable.parentKey, each table in childTables comes out as a list per parent,
+     * eg. queryNested($env, $sql, $params, 'user', 'id', ['order'], ...) gives array(array('user' => ..., 'order' => array(...)))
+     */
+    public void queryNested(Env env, String sql, JsonArray params, String parentTable, String parentKey, JsonArray childTables, final Callable handler, final Callable errorHandler) {
+        client.queryResultSet(sql, params, false, res -> {
+            if (res.failed()) {
+                getDefaultError(env, errorHandler).handle(res.cause());
+                return;
+            }
+            Value nested;
+            try {
+                List<String> children = new ArrayList<>();
+                for (int i = 0; i < childTables.size(); i++) {
+                    children.add(childTables.getString(i));
+                }
+                // a parent table or key that is not in the result only shows up here, after the query ran
+                nested = NestedResultHydrator.toNested(env, res.result(), "-", parentTable, parentKey, children);
+            } catch (RuntimeException e) {
+                getDefaultError(env, errorHandler).handle(e);
+                return;
+            }
+            handler.call(env, nested);
+        });
+    }
+
     public void queryRaw(SQLConnection conn, String sql, JsonArray params, Handler<JsonArray> handler, Handler<Throwable> errorHandler) {
         client.queryRaw(conn, sql, params, handler, errorHandler);
     }
@@ -435,11 +594,33 @@ public class BaseModel {
         client.queryRaw(sql, params, handler, errorHandler);
     }
 
+    public void queryRawPrimary(String sql, JsonArray params, Handler<JsonArray> handler, Handler<Throwable> errorHandler) {
+        client.queryRawPrimary(sql, params, handler, errorHandler);
+    }
+
+
+    /**
+     * New by-id batching loader, keep one per request so lookups are deduped within that request only.
+     */
+    public BatchLoader batchLoader() {
+        return new BatchLoader(client);
+    }
 
     public void connect(Handler<AsyncResult<SQLConnection>> res) {
         client.connect(res);
     }
 
+    /**
+     * Commits or rolls back and always releases the connection, see SQLClient.inTransaction().
+     */
+    public <T> void inTransaction(TransactionWork<T> work, Handler<T> onDone, Handler<Throwable> onError) {
+        client.inTransaction(work, onDone, onError);
+    }
+
+    public void inTransaction(Env env, final Callable work, final Callable onDone, final Callable onError) {
+        client.inTransaction(env, work, onDone, onError);
+    }
+
     public void startTx(SQLConnection conn, Handler<ResultSet> done) {
         client.startTx(conn, done);
     }
@@ -476,23 +657,18 @@ public class BaseModel {
     }
 
     public void batchInsertWithParams(Env env, String sql, List<JsonArray> batchParams, final Callable handler, final Callable errorHandler) {
-        connect(connRes -> {
-            final SQLConnection conn = connRes.result();
-
-            Handler<Throwable> defaultErr = getDefaultErrorTx(env, conn, errorHandler);
-            final List<Integer> batchInsertIDs = new ArrayList<>();
-
-            startTx(conn, res1 -> {
-                nextBatchInsertOp(batchParams.listIterator(), batchInsertIDs, conn, sql, defaultErr, res2 -> {
-                    commit(conn, resCommit -> {
-                        if (handler != null) {
-                            JsonArray arr = new JsonArray(res2);
-                            handler.call(env, client.toPhpArray(env, arr));
-                        }
-                    });
-                });
-            });
-        });
+        client.<List<Long>>inTransaction((conn, done) -> {
+            client.batchInsertRaw(conn, sql, batchParams, done::complete, done::fail);
+        }, res2 -> {
+            if (handler != null) {
+                JsonArray arr = new JsonArray(res2);
+                handler.call(env, client.toPhpArray(env, arr));
+            }
+        }, getDefaultError(env, errorHandler));
+    }
+
+    public void batchInsertWithParams(Env env, Insert<?> insert, List<JsonArray> batchParams, final Callable handler, final Callable errorHandler) {
+        batchInsertWithParams(env, dsl().render(insert), batchParams, handler, errorHandler);
     }
 
     protected void nextBatchInsertOp(ListIterator<JsonArray> iterator, List<Integer> batchInsertIDs, SQLConnection conn, String sql, Handler<Throwable> errorHandler, Handler<List<Integer>> doneBatchHandler) {
@@ -513,19 +689,24 @@ public class BaseModel {
     }
 
     public void batchUpdateWithParams(Env env, String sql, List<JsonArray> batchParams, final Callable handler, final Callable errorHandler) {
-        connect(connRes -> {
-            final SQLConnection conn = connRes.result();
-
-            Handler<Throwable> defaultErr = getDefaultErrorTx(env, conn, errorHandler);
-
-            startTx(conn, res1 -> {
-                nextBatchUpdateOp(batchParams.listIterator(), conn, sql, defaultErr, res2 -> {
-                    commit(conn, resCommit -> {
-                        handler.call(env, env.wrapJava(res2));
-                    });
-                });
-            });
-        });
+        client.<Boolean>inTransaction((conn, done) -> {
+            nextBatchUpdateOp(batchParams.listIterator(), conn, sql, done::fail, done::complete);
+        }, res2 -> {
+            handler.call(env, env.wrapJava(res2));
+        }, getDefaultError(env, errorHandler));
+    }
+
+    /**
+     * Non transactional variant for sweeps that don't need atomicity. Rows are updated over up to concurrency pooled
+     * connections, handler receives array('total', 'updated', 'succeeded', 'failed', 'errors' => array(array('index', 'error'))).
+     * errorHandler is only called, with the first exception, when every row failed.
+     */
+    public void batchUpdateWithParams(Env env, String sql, List<JsonArray> batchParams, int concurrency, final Callable handler, final Callable errorHandler) {
+        client.batchUpdateParallel(sql, batchParams, concurrency, res -> {
+            if (handler != null) {
+                handler.call(env, PhpTypes.arrayFromJson(env, res));
+            }
+        }, getDefaultError(env, errorHandler));
     }
 
     protected void nextBatchUpdateOp(ListIterator<JsonArray> iterator, SQLConnection conn, String sql, Handler<Throwable> errorHandler, Handler<Boolean> doneBatchHandler) {
@@ -543,19 +724,15 @@ public class BaseModel {
     }
 
     public void batchDeleteWithParams(Env env, String sql, List<JsonArray> batchParams, final Callable handler, final Callable errorHandler) {
-        connect(connRes -> {
-            final SQLConnection conn = connRes.result();
-
-            Handler<Throwable> defaultErr = getDefaultErrorTx(env, conn, errorHandler);
-
-            startTx(conn, res1 -> {
-                nextBatchDeleteOp(batchParams.listIterator(), conn, sql, defaultErr, res2 -> {
-                    commit(conn, resCommit -> {
-                        handler.call(env, env.wrapJava(res2));
-                    });
-                });
-            });
-        });
+        client.<Boolean>inTransaction((conn, done) -> {
+            nextBatchDeleteOp(batchParams.listIterator(), conn, sql, done::fail, done::complete);
+        }, res2 -> {
+            handler.call(env, env.wrapJava(res2));
+        }, getDefaultError(env, errorHandler));
+    }
+
+    public void batchDeleteWithParams(Env env, String sql, List<JsonArray> batchParams, int concurrency, final Callable handler, final Callable errorHandler) {
+        batchUpdateWithParams(env, sql, batchParams, concurrency, handler, errorHandler);
     }
 
     protected void nextBatchDeleteOp(ListIterator<JsonArray> iterator, SQLConnection conn, String sql, Handler<Throwable> errorHandler, Handler<Boolean> doneBatchHandler) {
@@ -582,7 +759,9 @@ public class BaseModel {
                 if (cause == null) {
                     cause = error;
                 }
-                errorHandler.call(env, env.wrapJava(cause));
+                if (errorHandler != null) {
+                    errorHandler.call(env, env.wrapJava(cause));
+                }
             }
         };
     }
@@ -596,7 +775,9 @@ public class BaseModel {
                 if (cause == null) {
                     cause = error;
                 }
-                errorHandler.call(env, env.wrapJava(cause));
+                if (errorHandler != null) {
+                    errorHandler.call(env, env.wrapJava(cause));
+                }
             }
         };
     }
@@ -609,7 +790,9 @@ public class BaseModel {
                 if (cause == null) {
                     cause = error;
                 }
-                errorHandler.call(env, env.wrapJava(cause));
+                if (errorHandler != null) {
+                    errorHandler.call(env, env.wrapJava(cause));
+                }
             }
         };
     }
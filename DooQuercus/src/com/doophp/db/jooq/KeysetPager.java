@@ -0,0 +1,272 @@
+package com.doophp.db.jooq;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.Value;
+import com.doophp.db.SQLClient;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.SelectQuery;
+import org.jooq.SortField;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.jooq.impl.DSL.val;
+
+/**
+ * Keyset (seek method) pagination over a declared ordered key, instead of LIMIT/OFFSET which makes the database scan
+ * and throw away every row before a deep page. A page is "WHERE ... AND (key) > (last key seen) ORDER BY key LIMIT n",
+ * so every page after the first runs the same SQL whatever its depth and an index on the key columns serves it.
+ *
+ * $this->keyset(function() { return $query; })->desc(Post::CREATED)->asc(Post::ID)->limit(50)
+ *      ->page($cursor, function($page) { $page['rows'], $page['next'], $page['prev'] }, $onError);
+ *
+ * The last key column must make the order unique (usually the primary key), key columns should be NOT NULL and have
+ * to be in the select list under their own name. next/prev are opaque cursor tokens (null at either end), pass one
+ * back to page() to move forward or backward. The builder is called for every page since adding the seek changes
+ * the jOOQ query.
+ */
+public class KeysetPager {
+
+    protected static final String AFTER = "a";
+    protected static final String BEFORE = "b";
+
+    protected final SQLClient client;
+    protected final DSLContext dsl;
+    protected final Supplier<? extends SelectQuery<?>> query;
+    protected final List<Field<?>> keys = new ArrayList<>();
+    protected final List<Boolean> descending = new ArrayList<>();
+    protected int limit = 20;
+
+    public static class Page {
+        public final ResultSet rows;
+        public final String next;
+        public final String prev;
+
+        public Page(ResultSet rows, String next, String prev) {
+            this.rows = rows;
+            this.next = next;
+            this.prev = prev;
+        }
+    }
+
+    public KeysetPager(SQLClient client, DSLContext dsl, Supplier<? extends SelectQuery<?>> query) {
+        this.client = client;
+        this.dsl = dsl;
+        this.query = query;
+    }
+
+    public KeysetPager asc(Field<?> key) {
+        keys.add(key);
+        descending.add(false);
+        return this;
+    }
+
+    public KeysetPager desc(Field<?> key) {
+        keys.add(key);
+        descending.add(true);
+        return this;
+    }
+
+    public KeysetPager limit(int limit) {
+        this.limit = Math.max(1, limit);
+        return this;
+    }
+
+    /**
+     * First page with a null cursor, otherwise the page after (next) or before (prev) the cursor.
+     */
+    public void page(String cursor, Handler<AsyncResult<Page>> handler) {
+        final String direction;
+        final List<Object> from;
+        final SelectQuery<?> select;
+        try {
+            if (keys.isEmpty()) {
+                throw new IllegalStateException("Keyset pagination needs at least one key, call asc() or desc()");
+            }
+            List<Object> token = cursor == null || cursor.isEmpty() ? null : decode(cursor);
+            direction = token == null ? AFTER : (String) token.get(0);
+            from = token == null ? null : token.subList(1, token.size());
+            select = build(direction, from);
+        } catch (RuntimeException e) {
+            handler.handle(Future.failedFuture(e));
+            return;
+        }
+
+        JsonArray params = new JsonArray();
+        for (Object value : dsl.extractBindValues(select)) {
+            QueryTemplate.addValue(params, value);
+        }
+        client.queryResultSet(dsl.render(select), params, false, res -> {
+            if (res.failed()) {
+                handler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            try {
+                handler.handle(Future.succeededFuture(toPage(res.result(), direction, from)));
+            } catch (RuntimeException e) {
+                handler.handle(Future.failedFuture(e));
+            }
+        });
+    }
+
+    /**
+     * PHP variant, handler is called with array('rows' => ..., 'next' => cursor or null, 'prev' => cursor or null).
+     */
+    public void page(Env env, String cursor, final Callable handler, final Callable errorHandler) {
+        page(cursor, res -> {
+            if (res.failed()) {
+                if (errorHandler != null) {
+                    errorHandler.call(env, env.wrapJava(res.cause()));
+                }
+                return;
+            }
+            Page page = res.result();
+            ArrayValue out = new ArrayValueImpl();
+            out.put(env.createString("rows"), client.toPhpArray(env, page.rows));
+            out.put(env.createString("next"), page.next == null ? NullValue.NULL : env.createString(page.next));
+            out.put(env.createString("prev"), page.prev == null ? NullValue.NULL : env.createString(page.prev));
+            handler.call(env, out);
+        });
+    }
+
+    /**
+     * Backward pages run with the order reversed and seek after the cursor, their rows are flipped back afterwards.
+     */
+    protected SelectQuery<?> build(String direction, List<Object> from) {
+        SelectQuery<?> select = query.get();
+        boolean reverse = BEFORE.equals(direction);
+        List<SortField<?>> order = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            order.add(descending.get(i) != reverse ? keys.get(i).desc() : keys.get(i).asc());
+        }
+        select.addOrderBy(order);
+        if (from != null) {
+            if (from.size() != keys.size()) {
+                throw new IllegalArgumentException("Cursor does not match the keyset of this query");
+            }
+            List<Field<?>> seek = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                seek.add(seekValue(keys.get(i), from.get(i)));
+            }
+            select.addSeekAfter(seek);
+        }
+        // one extra row tells whether there is a page beyond this one
+        select.addLimit(limit + 1);
+        return select;
+    }
+
+    /**
+     * Value typed like the key column. Drivers return timestamps and times as ISO strings (2017-01-01T10:00:00.000Z),
+     * which jOOQ's converter does not read, so those are parsed here.
+     */
+    protected static Field<?> seekValue(Field<?> key, Object value) {
+        Class<?> type = key.getType();
+        if (value instanceof String && (type == Timestamp.class || type == Time.class)) {
+            String s = (String) value;
+            try {
+                if (type == Time.class) {
+                    value = Time.valueOf(LocalTime.parse(s));
+                } else if (s.endsWith("Z") || s.lastIndexOf('+') > 10 || s.lastIndexOf('-') > 10) {
+                    value = Timestamp.from(OffsetDateTime.parse(s).toInstant());
+                } else {
+                    value = Timestamp.valueOf(LocalDateTime.parse(s.replace(' ', 'T')));
+                }
+            } catch (DateTimeParseException e) {
+                // left to jOOQ, eg. a format of the database not in ISO 8601
+            }
+        }
+        return val(value, key);
+    }
+
+    protected Page toPage(ResultSet rs, String direction, List<Object> from) {
+        List<JsonArray> results = rs.getResults() == null ? new ArrayList<>() : new ArrayList<>(rs.getResults());
+        boolean more = results.size() > limit;
+        if (more) {
+            results = results.subList(0, limit);
+        }
+        boolean backward = BEFORE.equals(direction);
+        if (backward) {
+            Collections.reverse(results);
+        }
+        ResultSet rows = new ResultSet(rs.getColumnNames(), results, null);
+
+        if (results.isEmpty()) {
+            // past either end, the cursor itself leads back
+            String back = from == null ? null : encode(backward ? AFTER : BEFORE, from);
+            return new Page(rows, backward ? back : null, backward ? null : back);
+        }
+        int[] columns = keyColumns(rs.getColumnNames());
+        String next = !backward && !more ? null : encode(AFTER, keyOf(results.get(results.size() - 1), columns));
+        String prev = backward ? (more ? encode(BEFORE, keyOf(results.get(0), columns)) : null)
+                : (from == null ? null : encode(BEFORE, keyOf(results.get(0), columns)));
+        return new Page(rows, next, prev);
+    }
+
+    protected int[] keyColumns(List<String> columnNames) {
+        int[] columns = new int[keys.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = columnNames.indexOf(keys.get(i).getName());
+            if (columns[i] < 0) {
+                throw new IllegalStateException("Keyset column " + keys.get(i).getName() + " is not in the select list");
+            }
+        }
+        return columns;
+    }
+
+    protected static List<Object> keyOf(JsonArray row, int[] columns) {
+        List<Object> key = new ArrayList<>(columns.length);
+        for (int column : columns) {
+            key.add(row.getValue(column));
+        }
+        return key;
+    }
+
+    protected static String encode(String direction, List<Object> key) {
+        JsonArray token = new JsonArray().add(direction);
+        for (Object value : key) {
+            if (value == null) {
+                token.addNull();
+            } else {
+                token.add(value);
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.encode().getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected static List<Object> decode(String cursor) {
+        JsonArray token;
+        try {
+            token = new JsonArray(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid keyset cursor", e);
+        }
+        if (token.size() < 2 || !(AFTER.equals(token.getValue(0)) || BEFORE.equals(token.getValue(0)))) {
+            throw new IllegalArgumentException("Invalid keyset cursor");
+        }
+        List<Object> values = new ArrayList<>(token.size());
+        for (int i = 0; i < token.size(); i++) {
+            values.add(token.getValue(i));
+        }
+        return values;
+    }
+}
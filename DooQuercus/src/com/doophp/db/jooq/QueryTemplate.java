@@ -0,0 +1,218 @@
+package com.doophp.db.jooq;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.jooq.DSLContext;
+import org.jooq.QueryPart;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A jOOQ query rendered once into SQL plus its bind order, so hot paths skip building and rendering the query tree.
+ *
+ * Build the query with named params for the values supplied per call, eg. field("id").eq(param("id", 0)),
+ * anything else bound in the query (unnamed values, LIMIT) keeps the value it had when the template was defined.
+ * Per call params are given either by name (JsonObject) or in the order the names first appear (JsonArray), every
+ * named param has to be given and nothing else. When the names can't be told from the rendered SQL (eg. ':' inside
+ * literals) the template is positional: a JsonArray then carries a value for every ? in order, defaults included.
+ *
+ * Templates are kept in a process wide LRU keyed by name, see BaseModel.template().
+ */
+public class QueryTemplate {
+
+    public static int maxTemplates = 1000;
+
+    protected static final Map<String, QueryTemplate> templates = Collections.synchronizedMap(new LinkedHashMap<String, QueryTemplate>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryTemplate> eldest) {
+            return size() > maxTemplates;
+        }
+    });
+
+    protected final String sql;
+    /**
+     * Param name for every ? in sql, numeric names are unnamed binds.
+     */
+    protected final List<String> bindNames;
+    protected final List<Object> defaults;
+    /**
+     * Distinct named params in order of first appearance, maps positional per call params.
+     */
+    protected final List<String> names;
+    /**
+     * Names could not be mapped to binds, per call values are bound to every ? in order.
+     */
+    protected final boolean positional;
+
+    public QueryTemplate(String sql, List<String> bindNames, List<Object> defaults) {
+        this(sql, bindNames, defaults, false);
+    }
+
+    public QueryTemplate(String sql, List<String> bindNames, List<Object> defaults, boolean positional) {
+        this.sql = sql;
+        this.bindNames = bindNames;
+        this.defaults = defaults;
+        this.positional = positional;
+        this.names = new ArrayList<>();
+        for (String name : bindNames) {
+            if (!isPositional(name) && !names.contains(name)) {
+                names.add(name);
+            }
+        }
+    }
+
+    public static QueryTemplate get(String key) {
+        return templates.get(key);
+    }
+
+    public static QueryTemplate getOrCreate(String key, DSLContext dsl, Supplier<? extends QueryPart> builder) {
+        QueryTemplate template = templates.get(key);
+        if (template == null) {
+            template = create(dsl, builder.get());
+            templates.put(key, template);
+        }
+        return template;
+    }
+
+    public static void clear() {
+        templates.clear();
+    }
+
+    public static QueryTemplate create(DSLContext dsl, QueryPart query) {
+        String sql = dsl.render(query);
+        List<Object> defaults = dsl.extractBindValues(query);
+        List<String> bindNames = parseNames(dsl.renderNamedParams(query));
+
+        if (bindNames.size() != defaults.size()) {
+            // could not map names to binds (eg. ':' inside literals), treat every bind as positional
+            bindNames = new ArrayList<>();
+            for (int i = 0; i < defaults.size(); i++) {
+                bindNames.add(String.valueOf(i + 1));
+            }
+            return new QueryTemplate(sql, bindNames, defaults, true);
+        }
+        return new QueryTemplate(sql, bindNames, defaults);
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    public boolean isPositional() {
+        return positional;
+    }
+
+    /**
+     * Bind values for a call, values in the order of getNames() (of every ? for a positional template).
+     * Throws IllegalArgumentException when the number of values doesn't match.
+     */
+    public JsonArray bind(JsonArray values) {
+        int size = values == null ? 0 : values.size();
+        int expected = positional ? bindNames.size() : names.size();
+        if (size != expected) {
+            throw new IllegalArgumentException("Query template takes " + expected + " params, got " + size
+                    + (positional ? " (positional template, pass a value for every ?)" : ""));
+        }
+        if (positional) {
+            return values == null ? new JsonArray() : values.copy();
+        }
+        JsonObject named = new JsonObject();
+        for (int i = 0; i < size; i++) {
+            named.put(names.get(i), values.getValue(i));
+        }
+        return bind(named);
+    }
+
+    /**
+     * Bind values for a call by name, throws IllegalArgumentException for a missing or unknown name.
+     */
+    public JsonArray bind(JsonObject values) {
+        if (positional && values != null && !values.isEmpty()) {
+            throw new IllegalArgumentException("Query template params can't be named, pass them in order");
+        }
+        if (values != null) {
+            for (String name : values.fieldNames()) {
+                if (!names.contains(name)) {
+                    throw new IllegalArgumentException("Unknown query template param: " + name);
+                }
+            }
+        }
+        JsonArray params = new JsonArray();
+        for (int i = 0; i < bindNames.size(); i++) {
+            String name = bindNames.get(i);
+            if (isPositional(name)) {
+                addValue(params, defaults.get(i));
+            } else if (values != null && values.containsKey(name)) {
+                params.add(values.getValue(name));
+            } else {
+                throw new IllegalArgumentException("Missing query template param: " + name);
+            }
+        }
+        return params;
+    }
+
+    protected static void addValue(JsonArray params, Object val) {
+        if (val == null) {
+            params.addNull();
+        } else if (val instanceof String || val instanceof Boolean || val instanceof Integer || val instanceof Long || val instanceof Double || val instanceof Float) {
+            params.add(val);
+        } else if (val instanceof Short || val instanceof Byte || val instanceof org.jooq.types.UNumber && !(val instanceof org.jooq.types.ULong)) {
+            params.add(((Number) val).longValue());
+        } else {
+            params.add(val.toString());
+        }
+    }
+
+    protected static boolean isPositional(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Names of :name placeholders in rendered SQL in order, skipping quoted text and postgres :: casts.
+     */
+    protected static List<String> parseNames(String namedSql) {
+        List<String> names = new ArrayList<>();
+        char quote = 0;
+        int len = namedSql.length();
+        for (int i = 0; i < len; i++) {
+            char c = namedSql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == ':') {
+                if (i + 1 < len && namedSql.charAt(i + 1) == ':') {
+                    i++;
+                    continue;
+                }
+                int end = i + 1;
+                while (end < len && (Character.isLetterOrDigit(namedSql.charAt(end)) || namedSql.charAt(end) == '_')) {
+                    end++;
+                }
+                if (end > i + 1) {
+                    names.add(namedSql.substring(i + 1, end));
+                    i = end - 1;
+                }
+            }
+        }
+        return names;
+    }
+}
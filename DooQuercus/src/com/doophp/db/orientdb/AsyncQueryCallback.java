@@ -7,8 +7,11 @@ package com.doophp.db.orientdb;
  * Time: 5:30 PM
  * To change this template use File | Settings | File Templates.
  */
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
 import com.caucho.quercus.env.Callable;
 import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
 import com.caucho.quercus.env.Value;
 import com.caucho.quercus.lib.spl.ArrayAccess;
 import com.caucho.quercus.lib.spl.Countable;
@@ -16,6 +19,15 @@ import com.caucho.quercus.lib.spl.Countable;
 import com.orientechnologies.orient.core.command.OCommandResultListener;
 import com.orientechnologies.orient.core.record.impl.ODocument;
 
+/**
+ * Passes the records of an async query to PHP, one call per record: handlerResult($doc, $count).
+ *
+ * With a batch size the records are collected and handlerResult is called once per batch with an array of documents
+ * and the count so far: handlerResult($docs, $count). A batch is handed over when it holds batchSize documents or,
+ * with batchTimeMs > 0, when a record arrives batchTimeMs or more after the first one of the batch. Returning false
+ * from handlerResult stops the query either way. handlerEnd($total) gets the number of records received, after the
+ * last (partial) batch.
+ */
 public class AsyncQueryCallback implements OCommandResultListener{
     /**
      * A Quercus environment.
@@ -27,6 +39,12 @@ public class AsyncQueryCallback implements OCommandResultListener{
 
     public long resultCount = 0;
 
+    private int batchSize = 0;
+    private long batchTimeMs = 0;
+    private ArrayValue batch;
+    private long batchStart;
+    private boolean stopped = false;
+
 
     public AsyncQueryCallback(Env env, Callable handlerResult, Callable handlerEnd) {
         this.env = env;
@@ -34,17 +52,51 @@ public class AsyncQueryCallback implements OCommandResultListener{
         this.handlerEnd = handlerEnd;
     }
 
+    public AsyncQueryCallback(Env env, Callable handlerResult, Callable handlerEnd, int batchSize) {
+        this(env, handlerResult, handlerEnd, batchSize, 0);
+    }
+
+    public AsyncQueryCallback(Env env, Callable handlerResult, Callable handlerEnd, int batchSize, long batchTimeMs) {
+        this(env, handlerResult, handlerEnd);
+        this.batchSize = Math.max(1, batchSize);
+        this.batchTimeMs = batchTimeMs;
+    }
+
     @Override
     public boolean result(Object iRecord) {
         resultCount++;
         ODocument doc = (ODocument) iRecord;
-        Value va = handlerResult.call(env, env.wrapJava(doc), env.wrapJava(resultCount));
-        Boolean ret = va.toJavaBoolean();
-        return ret;
+        if (batchSize == 0) {
+            Value va = handlerResult.call(env, env.wrapJava(doc), LongValue.create(resultCount));
+            stopped = !va.toJavaBoolean();
+            return !stopped;
+        }
+
+        if (batch == null) {
+            batch = new ArrayValueImpl();
+            batchStart = batchTimeMs > 0 ? System.currentTimeMillis() : 0;
+        }
+        batch.append(env.wrapJava(doc));
+        if (batch.getSize() >= batchSize || batchTimeMs > 0 && System.currentTimeMillis() - batchStart >= batchTimeMs) {
+            return flush();
+        }
+        return true;
+    }
+
+    private boolean flush() {
+        ArrayValue docs = batch;
+        batch = null;
+        Value va = handlerResult.call(env, docs, LongValue.create(resultCount));
+        stopped = !va.toJavaBoolean();
+        return !stopped;
     }
 
     @Override
     public void end() {
-        this.handlerEnd.call(env, env.wrapJava(resultCount));
+        if (batch != null && !stopped) {
+            flush();
+        }
+        batch = null;
+        this.handlerEnd.call(env, LongValue.create(resultCount));
     }
 }
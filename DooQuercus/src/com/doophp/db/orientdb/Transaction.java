@@ -3,8 +3,18 @@ package com.doophp.db.orientdb;
 import com.caucho.quercus.env.Callable;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.Value;
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.ODatabaseRecord;
+import com.orientechnologies.orient.core.exception.OConcurrentModificationException;
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Created with IntelliJ IDEA.
@@ -14,6 +24,11 @@ import com.orientechnologies.orient.core.record.impl.ODocument;
  * To change this template use File | Settings | File Templates.
  */
 public class Transaction {
+  /**
+   * One single threaded worker per database URL, transactions of a database run one after another off the event loop.
+   */
+  private static final Map<String, WorkerExecutor> executors = new ConcurrentHashMap<>();
+
   /**
    * A Quercus environment.
    */
@@ -24,6 +39,10 @@ public class Transaction {
   private Callable handlerDone;
   private Callable codeBlock;
 
+  private int maxRetries = 5;
+  private long retryDelayMs = 10;
+  private long maxRetryDelayMs = 1000;
+
   public Transaction(Env env, ODatabaseDocumentTx db, Callable codeBlock, Callable handlerDone, Callable handlerException) {
     this.env = env;
     this.db = db;
@@ -45,4 +64,99 @@ public class Transaction {
     }
   }
 
-}
\ No newline at end of file
+  public Transaction setMaxRetries(int maxRetries) {
+    this.maxRetries = Math.max(0, maxRetries);
+    return this;
+  }
+
+  /**
+   * Backoff before retry n is a random time between half and all of retryDelayMs * 2^n, at most maxRetryDelayMs.
+   */
+  public Transaction setRetryDelay(long retryDelayMs, long maxRetryDelayMs) {
+    this.retryDelayMs = Math.max(1, retryDelayMs);
+    this.maxRetryDelayMs = Math.max(this.retryDelayMs, maxRetryDelayMs);
+    return this;
+  }
+
+  /**
+   * Runs begin, the code block and commit on the database's worker thread instead of the calling event loop.
+   * When the commit conflicts (OConcurrentModificationException) the transaction is rolled back and the whole code
+   * block runs again after a backoff, up to maxRetries times. handlerDone/handlerException are called on the
+   * caller's context, handlerException with the last error once retries are used up or on any other error.
+   *
+   * ODatabaseDocumentTx is not thread safe, the worker owns db until handlerDone or handlerException is called.
+   * Don't touch it from the caller (or anything else) before that, give the transaction its own instance
+   * (eg. one acquired from the pool) when the caller's is still in use.
+   */
+  public void commitAsync() {
+    Context context = Vertx.currentContext();
+    if (context == null) {
+      throw new IllegalStateException("commitAsync() has to be called on a Vert.x context");
+    }
+    attempt(context, 0);
+  }
+
+  private void attempt(Context context, int retry) {
+    executor(context.owner(), db).<Void>executeBlocking(future -> {
+      // the worker thread is shared by every database with this URL, leave its thread-local as it was found
+      ODatabaseRecord previous = ODatabaseRecordThreadLocal.INSTANCE.getIfDefined();
+      ODatabaseRecordThreadLocal.INSTANCE.set(db);
+      try {
+        db.begin();
+        codeBlock.call(env);
+        db.commit();
+        future.complete();
+      }
+      catch (Exception e) {
+        try {
+          db.rollback();
+        }
+        catch (Exception ignored) {
+          // the commit failure is what gets reported
+        }
+        future.fail(e);
+      }
+      finally {
+        if (previous == null) {
+          ODatabaseRecordThreadLocal.INSTANCE.remove();
+        }
+        else {
+          ODatabaseRecordThreadLocal.INSTANCE.set(previous);
+        }
+      }
+    }, true, res -> {
+      if (res.succeeded()) {
+        handlerDone.call(env);
+        return;
+      }
+      if (retry < maxRetries && isConflict(res.cause())) {
+        // timer instead of sleeping keeps the worker free for other transactions of the database
+        context.owner().setTimer(backoff(retry), id -> attempt(context, retry + 1));
+        return;
+      }
+      handlerException.call(env, env.wrapJava(res.cause()));
+    });
+  }
+
+  private long backoff(int retry) {
+    long delay = Math.min(maxRetryDelayMs, retryDelayMs << Math.min(retry, 20));
+    return Math.max(1, delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+  }
+
+  /**
+   * The exception may reach here wrapped by Quercus when thrown inside the PHP code block.
+   */
+  private static boolean isConflict(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+      if (t instanceof OConcurrentModificationException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static WorkerExecutor executor(Vertx vertx, ODatabaseDocumentTx db) {
+    return executors.computeIfAbsent(db.getURL(), url -> vertx.createSharedWorkerExecutor("doo-orientdb-" + url, 1));
+  }
+
+}
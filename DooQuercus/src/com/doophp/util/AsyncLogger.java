@@ -0,0 +1,388 @@
+package com.doophp.util;
+
+import io.vertx.core.logging.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Logger front for the DB and mail layers that keeps the calling (event loop) thread out of the logging work.
+ *
+ * A disabled level costs one field check: no message is built, nothing is allocated. Messages are parameterized,
+ * "Executing SQL Query: {}" with up to two args, or a Supplier, and are only formatted on the writer thread.
+ * Enabled messages go through a lock free bounded ring buffer shared by all loggers and are written to the Vert.x
+ * Logger by one daemon thread. When the buffer is full a message is dropped and counted, the writer reports
+ * the drop count once it catches up, so logging never blocks a caller. ERROR messages are never dropped, with a
+ * full buffer they are written directly by the calling thread (possibly ahead of older buffered messages).
+ * A shutdown hook lets the writer drain the buffer for up to doo.log.shutdown_ms (1000) before the JVM exits.
+ *
+ * Args are formatted later, pass values that are not changed after the call (String, JsonArray of params, etc).
+ * A Throwable as the last arg is logged as the exception of the message.
+ */
+public class AsyncLogger {
+
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+
+    protected static final Ring ring = new Ring(Integer.getInteger("doo.log.buffer", 8192));
+
+    protected volatile Logger logger;
+    protected volatile int level = INFO;
+
+    protected static class Event {
+        final Logger logger;
+        final int level;
+        final String prefix;
+        final Object message;
+        final Object arg1;
+        final Object arg2;
+        final int argCount;
+
+        Event(Logger logger, int level, String prefix, Object message, Object arg1, Object arg2, int argCount) {
+            this.logger = logger;
+            this.level = level;
+            this.prefix = prefix;
+            this.message = message;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.argCount = argCount;
+        }
+    }
+
+    public AsyncLogger() {
+    }
+
+    public AsyncLogger(Logger logger, int level) {
+        this.logger = logger;
+        this.level = level;
+    }
+
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    public Logger getLogger() {
+        return logger;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isEnabled(int level) {
+        return this.level >= level && logger != null;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(DEBUG);
+    }
+
+    public boolean isInfoEnabled() {
+        return isEnabled(INFO);
+    }
+
+    /**
+     * Level from a name (error, warn, info, debug, off), unknown names give INFO.
+     */
+    public static int levelOf(String name) {
+        if (name == null) {
+            return INFO;
+        }
+        switch (name.toLowerCase()) {
+            case "off":
+                return OFF;
+            case "error":
+                return ERROR;
+            case "warn":
+                return WARN;
+            case "debug":
+                return DEBUG;
+            default:
+                return INFO;
+        }
+    }
+
+    public void log(int level, String prefix, Object message) {
+        if (isEnabled(level)) {
+            enqueue(level, prefix, message, null, null, 0);
+        }
+    }
+
+    public void log(int level, String prefix, Object message, Object arg) {
+        if (isEnabled(level)) {
+            enqueue(level, prefix, message, arg, null, 1);
+        }
+    }
+
+    public void log(int level, String prefix, Object message, Object arg1, Object arg2) {
+        if (isEnabled(level)) {
+            enqueue(level, prefix, message, arg1, arg2, 2);
+        }
+    }
+
+    public void debug(String message) {
+        log(DEBUG, null, message);
+    }
+
+    public void debug(String message, Object arg) {
+        log(DEBUG, null, message, arg);
+    }
+
+    public void debug(String message, Object arg1, Object arg2) {
+        log(DEBUG, null, message, arg1, arg2);
+    }
+
+    public void debug(Supplier<?> message) {
+        log(DEBUG, null, message);
+    }
+
+    public void info(String message) {
+        log(INFO, null, message);
+    }
+
+    public void info(String message, Object arg) {
+        log(INFO, null, message, arg);
+    }
+
+    public void info(String message, Object arg1, Object arg2) {
+        log(INFO, null, message, arg1, arg2);
+    }
+
+    public void warn(String message) {
+        log(WARN, null, message);
+    }
+
+    public void warn(String message, Object arg) {
+        log(WARN, null, message, arg);
+    }
+
+    public void error(String message) {
+        log(ERROR, null, message);
+    }
+
+    public void error(String message, Object arg) {
+        log(ERROR, null, message, arg);
+    }
+
+    public void error(String message, Object arg1, Object arg2) {
+        log(ERROR, null, message, arg1, arg2);
+    }
+
+    protected void enqueue(int level, String prefix, Object message, Object arg1, Object arg2, int argCount) {
+        Event e = new Event(logger, level, prefix, message, arg1, arg2, argCount);
+        if (ring.offer(e)) {
+            return;
+        }
+        if (level != ERROR) {
+            ring.dropped.increment();
+            return;
+        }
+        try {
+            write(e);
+        } catch (Throwable ignored) {
+            // same as on the writer thread, a failing appender must not reach the caller
+        }
+    }
+
+    /**
+     * Messages dropped so far because the buffer was full, ERROR messages are never dropped.
+     */
+    public static long dropped() {
+        return ring.dropped.sum();
+    }
+
+    /**
+     * Messages waiting to be written.
+     */
+    public static long pending() {
+        return ring.size();
+    }
+
+    protected static void write(Event e) {
+        Object arg1 = e.arg1;
+        Object arg2 = e.arg2;
+        int args = e.argCount;
+        Throwable error = null;
+        if (args == 2 && arg2 instanceof Throwable) {
+            error = (Throwable) arg2;
+            args = 1;
+        } else if (args == 1 && arg1 instanceof Throwable) {
+            error = (Throwable) arg1;
+            args = 0;
+        }
+
+        Object message = e.message instanceof Supplier ? ((Supplier<?>) e.message).get() : e.message;
+        String text = format(String.valueOf(message), args, arg1, arg2);
+        if (e.prefix != null) {
+            text = e.prefix + text;
+        }
+
+        switch (e.level) {
+            case ERROR:
+                e.logger.error(text, error);
+                break;
+            case WARN:
+                e.logger.warn(text, error);
+                break;
+            case INFO:
+                e.logger.info(text, error);
+                break;
+            default:
+                e.logger.debug(text, error);
+        }
+    }
+
+    /**
+     * Replaces the first {} placeholders with the args, args without a placeholder are appended.
+     */
+    protected static String format(String message, int args, Object arg1, Object arg2) {
+        if (args == 0) {
+            return message;
+        }
+        StringBuilder out = new StringBuilder(message.length() + 32);
+        int from = 0;
+        for (int i = 0; i < args; i++) {
+            Object arg = i == 0 ? arg1 : arg2;
+            int pos = message.indexOf("{}", from);
+            if (pos < 0) {
+                out.append(message, from, message.length()).append(' ').append(arg);
+                from = message.length();
+                continue;
+            }
+            out.append(message, from, pos).append(arg);
+            from = pos + 2;
+        }
+        out.append(message, from, message.length());
+        return out.toString();
+    }
+
+    /**
+     * Multi producer, single consumer ring buffer. Producers claim a slot with one CAS and never wait,
+     * the writer thread is started with the first message. While the buffer is empty the writer parks for longer
+     * and longer (up to MAX_IDLE_PARK_NANOS), a producer that finds it idle wakes it up.
+     */
+    protected static class Ring implements Runnable {
+        static final long MIN_IDLE_PARK_NANOS = 50000L;
+        static final long MAX_IDLE_PARK_NANOS = 100000000L;
+
+        final AtomicReferenceArray<Event> slots;
+        final int mask;
+        final AtomicLong head = new AtomicLong();
+        volatile long tail = 0;
+        final LongAdder dropped = new LongAdder();
+        long reportedDrops = 0;
+        Logger lastLogger;
+        volatile Thread writer;
+        volatile boolean idle = false;
+        volatile boolean closing = false;
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            slots = new AtomicReferenceArray<>(size);
+            mask = size - 1;
+        }
+
+        long size() {
+            return head.get() - tail;
+        }
+
+        boolean offer(Event e) {
+            if (writer == null) {
+                start();
+            }
+            while (true) {
+                long h = head.get();
+                if (h - tail >= slots.length()) {
+                    return false;
+                }
+                if (head.compareAndSet(h, h + 1)) {
+                    // a volatile set, so either the writer sees the event before it parks or we see it idle
+                    slots.set((int) (h & mask), e);
+                    if (idle) {
+                        LockSupport.unpark(writer);
+                    }
+                    return true;
+                }
+            }
+        }
+
+        synchronized void start() {
+            if (writer != null) {
+                return;
+            }
+            Thread t = new Thread(this, "doo-async-logger");
+            t.setDaemon(true);
+            t.start();
+            writer = t;
+            Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "doo-async-logger-drain"));
+        }
+
+        /**
+         * Lets the writer flush what is buffered and waits for it, at most doo.log.shutdown_ms.
+         */
+        void drain() {
+            closing = true;
+            Thread t = writer;
+            LockSupport.unpark(t);
+            try {
+                t.join(Long.getLong("doo.log.shutdown_ms", 1000L));
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            long idlePark = MIN_IDLE_PARK_NANOS;
+            while (true) {
+                int index = (int) (tail & mask);
+                Event e = slots.get(index);
+                if (e == null) {
+                    if (head.get() > tail) {
+                        // a producer claimed the slot and is about to fill it
+                        LockSupport.parkNanos(1000L);
+                        continue;
+                    }
+                    reportDrops();
+                    if (closing) {
+                        return;
+                    }
+                    idle = true;
+                    if (slots.get(index) == null && !closing) {
+                        LockSupport.parkNanos(idlePark);
+                        idlePark = Math.min(idlePark * 2, MAX_IDLE_PARK_NANOS);
+                    }
+                    idle = false;
+                    continue;
+                }
+                idlePark = MIN_IDLE_PARK_NANOS;
+                slots.lazySet(index, null);
+                tail = tail + 1;
+                lastLogger = e.logger;
+                try {
+                    write(e);
+                } catch (Throwable ignored) {
+                    // a failing appender must not kill the writer
+                }
+            }
+        }
+
+        void reportDrops() {
+            long drops = dropped.sum();
+            if (drops > reportedDrops && lastLogger != null) {
+                lastLogger.warn("[AsyncLogger]: " + (drops - reportedDrops) + " log messages dropped, buffer full");
+                reportedDrops = drops;
+            }
+        }
+    }
+}
@@ -22,6 +22,10 @@ public class JooqUtil {
         return jooq;
     }
 
+    /**
+     * Opens a blocking JDBC connection, do not call it on an event loop. Pools with "backend": "jdbc" run jOOQ
+     * without blocking through JDBCSQLClient.jooq().
+     */
     public static DSLContext create(Env env, String userName, String password, String url, String dialect) throws SQLException {
 //      String userName = "root";
 //      String password = "root";
@@ -23,7 +23,8 @@ public class MailMandrill {
     public JsonObject conf;
     public VertxImpl vertx;
     public Env env;
-    public boolean debugEnabled = true;
+    public boolean debugEnabled = false;
+    protected final AsyncLogger log = new AsyncLogger(null, AsyncLogger.DEBUG);
 
     public String prefixLogInfo = "[INFO_MAIL_MANDRILL]: ";
     public String prefixLogDebug = "[DEBUG_MAIL_MANDRILL]: ";
@@ -103,36 +104,47 @@ public class MailMandrill {
 
     public void setLogger(Logger logger) {
         this.logger = logger;
+        log.setLogger(logger);
+    }
+
+    /**
+     * The async logger, kept in sync with the public logger field.
+     */
+    protected AsyncLogger log() {
+        if (log.getLogger() != logger) {
+            log.setLogger(logger);
+        }
+        return log;
     }
 
     public void logInfo(Object obj, Object obj2) {
-        if (logger == null) return;
-        logger.info(prefixLogInfo + obj, obj2);
+        log().log(AsyncLogger.INFO, prefixLogInfo, obj, obj2);
     }
 
     public void logInfo(Object obj) {
-        if (logger == null) return;
-        logger.info(prefixLogInfo + obj);
+        log().log(AsyncLogger.INFO, prefixLogInfo, obj);
     }
 
     public void logDebug(Object obj, Object obj2) {
-        if (logger == null || !debugEnabled) return;
-        logDebug(prefixLogDebug + obj, obj2);
+        if (!debugEnabled) return;
+        log().log(AsyncLogger.DEBUG, prefixLogDebug, obj, obj2);
     }
 
     public void logDebug(Object obj) {
-        if (logger == null || !debugEnabled) return;
-        this.logger.debug(prefixLogDebug + obj);
+        if (!debugEnabled) return;
+        log().log(AsyncLogger.DEBUG, prefixLogDebug, obj);
     }
 
     public void logError(Object obj, Object obj2) {
-        if (logger == null) return;
-        logError(prefixLogError + obj, obj2);
+        log().log(AsyncLogger.ERROR, prefixLogError, obj, obj2);
     }
 
     public void logError(Object obj) {
-        if (logger == null) return;
-        logger.error(prefixLogError + obj);
+        log().log(AsyncLogger.ERROR, prefixLogError, obj);
+    }
+
+    public void logError(Object obj, Object arg1, Object arg2) {
+        log().log(AsyncLogger.ERROR, prefixLogError, obj, arg1, arg2);
     }
 
 //    public static Value getFrom(ObjectExtValue obj, String key)
@@ -203,7 +215,7 @@ public class MailMandrill {
 
         JsonObject recipient1 = new JsonObject();
         if (getFrom(conf, "toEmailDev")!=null && !getFrom(mail, "toEmailDev").toString().equals("")) {
-            logDebug("SENT TO " + getFrom(mail, "toEmailDev").toString());
+            logDebug("SENT TO {}", getFrom(mail, "toEmailDev"));
             recipient1.put("email", getFrom(mail, "toEmailDev").toString());
         }
         else {
@@ -230,8 +242,7 @@ public class MailMandrill {
         mailJson.put("message", msgJson);
 
         final String body = mailJson.encode();
-        logDebug("Mandrill sent json");
-        logDebug(body);
+        logDebug("Mandrill sent json {}", body);
 
         HttpClientOptions httpOpt = new HttpClientOptions().setDefaultHost("mandrillapp.com").setDefaultPort(443).setSsl(true).setConnectTimeout(10000).setTrustAll(true).setTryUseCompression(true);
 
@@ -242,7 +253,7 @@ public class MailMandrill {
         HttpClient client = vertx.createHttpClient(httpOpt);
 
         HttpClientRequest request = client.post("/api/1.0/messages/send.json", response -> {
-            logDebug("Received response with status code " + response.statusCode());
+            logDebug("Received response with status code {}", response.statusCode());
 
             response.bodyHandler(buffer -> {
                 logDebug("ENDED email response");
@@ -259,8 +270,7 @@ public class MailMandrill {
         });
 
         request.exceptionHandler(e -> {
-            logError("Email http client exception: " + e.getMessage());
-            e.printStackTrace();
+            logError("Email http client exception: {}", e.getMessage(), e);
 
             if (errorHandler != null) {
                 errorHandler.call(env, env.wrapJava("Email http client exception"));
@@ -15,10 +15,12 @@ import io.vertx.lang.php.util.PhpTypes;
  */
 public class VertxUtil {
 
+    /**
+     * Gets the process wide client of poolName (see SQLClient.forPool()) and calls handler once its pool is warmed up.
+     */
     public static void initForPhp(Env env, VertxImpl vertx, Value configValue, String poolName, Callable handler) {
-        SQLClient db = new SQLClient(env, vertx, configValue, poolName);
-        db.initForPhp(env, handler);
-        handler.call(env, PhpTypes.arrayFromJson(env, new io.vertx.core.json.JsonArray().add(true)));
+        SQLClient db = SQLClient.forPool(env, vertx, configValue, poolName);
+        db.warmUp(res -> handler.call(env, PhpTypes.arrayFromJson(env, new io.vertx.core.json.JsonArray().add(res.succeeded()))));
     }
 
     public static HttpServerOptions createSslOptionWithJks(Env env, String certPath, String password, boolean trustOption) {